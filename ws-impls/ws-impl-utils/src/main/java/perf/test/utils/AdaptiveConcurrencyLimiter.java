@@ -0,0 +1,274 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * A concurrency limiter for backend calls that finds the permissible concurrency from the observed round trip times,
+ * in the style of TCP Vegas. <br/>
+ * The lowest round trip time seen recently is taken as the no-load baseline. For every sample, the number of requests
+ * queued in the backend is estimated as {@code limit * (1 - baseline/rtt)}. The limit grows while this estimate is
+ * small and shrinks once it grows large, or when a call is dropped (timed out or rejected by the backend). <br/>
+ * The baseline is reset periodically so that the limiter follows a backend whose latency changes over time. <br/>
+ * The baseline only means something for calls of similar latency, so every backend dependency must have its own
+ * limiter, see {@link Registry}. A sample is applied without locking; a sample that races with another update of the
+ * limit is dropped, as there is a sample for every call.
+ *
+ * Usage:
+ * <pre>
+ *     if (limiter.tryAcquire()) {
+ *         long start = System.nanoTime();
+ *         // make the call and then call one of onSuccess(start), onResponse(start, status), onDropped() or onIgnore()
+ *     } else {
+ *         // fail fast, the backend is saturated.
+ *     }
+ * </pre>
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final int ALPHA = 3; // Grow the limit while the estimated queue is smaller than this.
+    private static final int BETA = 6; // Shrink the limit when the estimated queue is larger than this.
+    private static final int BASELINE_RESET_SAMPLES = 1000;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger limit;
+    private final AtomicLong baselineRttNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicInteger samples = new AtomicInteger();
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this("backend", initialLimit, minLimit, maxLimit);
+    }
+
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits, min: " + minLimit + ", max: " + maxLimit);
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = new AtomicInteger(Math.max(minLimit, Math.min(initialLimit, maxLimit)));
+    }
+
+    /**
+     * Attempts to reserve a slot for a backend call. Every successful acquire must be followed by exactly one call to
+     * {@link #onSuccess(long)}, {@link #onResponse(long, int)}, {@link #onDropped()} or {@link #onIgnore()}.
+     *
+     * @return {@code true} if the call can proceed.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit.get()) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the slot for a call that completed successfully and samples its round trip time.
+     *
+     * @param startNanos Value of {@link System#nanoTime()} when the call was started.
+     */
+    public void onSuccess(long startNanos) {
+        int inflightAtCompletion = inflight.getAndDecrement();
+        update(System.nanoTime() - startNanos, inflightAtCompletion, false);
+    }
+
+    /**
+     * Releases the slot for a call that received a response with the passed HTTP status code. Overload responses (503
+     * and 429) are treated as drops and any other non 2xx response is ignored.
+     *
+     * @param startNanos Value of {@link System#nanoTime()} when the call was started.
+     */
+    public void onResponse(long startNanos, int statusCode) {
+        if (statusCode >= 200 && statusCode < 300) {
+            onSuccess(startNanos);
+        } else if (statusCode == 503 || statusCode == 429) {
+            onDropped();
+        } else {
+            onIgnore();
+        }
+    }
+
+    /**
+     * Releases the slot for a call that was dropped, i.e. timed out or was rejected because of overload.
+     */
+    public void onDropped() {
+        int inflightAtCompletion = inflight.getAndDecrement();
+        update(0, inflightAtCompletion, true);
+    }
+
+    /**
+     * Releases the slot for a call whose outcome says nothing about the backend load, eg: a bad request.
+     */
+    public void onIgnore() {
+        inflight.decrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        return limit.get();
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public String getStatus() {
+        return String.format("limit: %d, inflight: %d, rejected: %d", getLimit(), getInflight(), getRejectedCount());
+    }
+
+    private void update(long rttNanos, int inflightAtCompletion, boolean dropped) {
+        int currentLimit = limit.get();
+        double step = Math.max(1, Math.log10(currentLimit));
+        int newLimit;
+        if (dropped) {
+            newLimit = (int) (currentLimit - step);
+        } else {
+            long baseline = updateBaseline(rttNanos);
+
+            if (inflightAtCompletion * 2 < currentLimit) {
+                return; // Not using the limit, so the samples do not tell whether a higher limit is useful.
+            }
+
+            double queueSize = Math.ceil(currentLimit * (1 - (double) baseline / Math.max(1, rttNanos)));
+            if (queueSize < ALPHA * step) {
+                newLimit = (int) (currentLimit + step);
+            } else if (queueSize > BETA * step) {
+                newLimit = (int) (currentLimit - step);
+            } else {
+                return;
+            }
+        }
+        limit.compareAndSet(currentLimit, Math.max(minLimit, Math.min(newLimit, maxLimit)));
+    }
+
+    /**
+     * Lowers the baseline to the passed round trip time, or resets it every {@link #BASELINE_RESET_SAMPLES} samples.
+     *
+     * @return The baseline to use for the passed sample.
+     */
+    private long updateBaseline(long rttNanos) {
+        long sample = Math.max(1, rttNanos);
+        if (samples.incrementAndGet() % BASELINE_RESET_SAMPLES == 0) {
+            baselineRttNanos.set(sample);
+            return sample;
+        }
+        while (true) {
+            long baseline = baselineRttNanos.get();
+            if (sample >= baseline || baselineRttNanos.compareAndSet(baseline, sample)) {
+                return Math.min(sample, baseline);
+            }
+        }
+    }
+
+    /**
+     * Lazily created limiters, one per backend dependency, eg: as named by
+     * {@link DependencyGuard#dependencyName(String, String)}.
+     */
+    public static class Registry {
+
+        private final int initialLimit;
+        private final int minLimit;
+        private final int maxLimit;
+        private final ConcurrentMap<String, AdaptiveConcurrencyLimiter> limiters =
+                new ConcurrentHashMap<String, AdaptiveConcurrencyLimiter>();
+
+        public Registry(int initialLimit, int minLimit, int maxLimit) {
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        public AdaptiveConcurrencyLimiter get(String dependencyName) {
+            AdaptiveConcurrencyLimiter limiter = limiters.get(dependencyName);
+            if (null == limiter) {
+                limiter = new AdaptiveConcurrencyLimiter(dependencyName, initialLimit, minLimit, maxLimit);
+                AdaptiveConcurrencyLimiter existing = limiters.putIfAbsent(dependencyName, limiter);
+                if (null != existing) {
+                    limiter = existing;
+                }
+            }
+            return limiter;
+        }
+
+        public Iterable<AdaptiveConcurrencyLimiter> getAll() {
+            return limiters.values();
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testRejectAtLimit() throws Exception {
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+            assertTrue(limiter.tryAcquire());
+            assertTrue(limiter.tryAcquire());
+            assertFalse("Acquired beyond limit.", limiter.tryAcquire());
+            assertEquals(1, limiter.getRejectedCount());
+            limiter.onIgnore();
+            assertTrue("Release did not free a slot.", limiter.tryAcquire());
+        }
+
+        @Test
+        public void testGrowsWithoutQueueing() throws Exception {
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+            for (int i = 0; i < 50; i++) {
+                limiter.update(TimeUnit.MILLISECONDS.toNanos(10), limiter.getLimit(), false);
+            }
+            assertTrue("Limit did not grow with flat latency.", limiter.getLimit() > 10);
+        }
+
+        @Test
+        public void testShrinksOnQueueingAndDrops() throws Exception {
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(50, 1, 100);
+            limiter.update(TimeUnit.MILLISECONDS.toNanos(10), 50, false);
+            for (int i = 0; i < 10; i++) {
+                limiter.update(TimeUnit.MILLISECONDS.toNanos(100), limiter.getLimit(), false);
+            }
+            int afterQueueing = limiter.getLimit();
+            assertTrue("Limit did not shrink with rising latency.", afterQueueing < 50);
+            limiter.update(0, afterQueueing, true);
+            assertTrue("Limit did not shrink on drop.", limiter.getLimit() < afterQueueing);
+        }
+
+        @Test
+        public void testDependenciesDoNotShareBaseline() throws Exception {
+            Registry registry = new Registry(20, 1, 100);
+            AdaptiveConcurrencyLimiter fast = registry.get("D");
+            AdaptiveConcurrencyLimiter slow = registry.get("B");
+            assertTrue("Same limiter for different dependencies.", fast != slow);
+            assertTrue("New limiter for the same dependency.", slow == registry.get("B"));
+            for (int i = 0; i < 50; i++) {
+                fast.update(TimeUnit.MILLISECONDS.toNanos(1), fast.getLimit(), false);
+                slow.update(TimeUnit.MILLISECONDS.toNanos(150), slow.getLimit(), false);
+            }
+            assertTrue("Limit of a slow dependency shrank without queueing.", slow.getLimit() > 20);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package perf.test.utils;
+
+import org.codehaus.jackson.JsonFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * An incremental parser for the JSON representation of a {@link BackendResponse}. The content is fed chunk by chunk, as
+ * it is received, and the response is available as soon as the last byte of the top level object has been fed. <br/>
+ * This avoids buffering the complete content before parsing, which is not possible with the blocking jackson parser.
+ * The parser is a small push based tokenizer; fields other than the ones of {@link BackendResponse} are skipped,
+ * including nested objects and arrays.
+ *
+ * This class is not thread-safe, a new instance is required for every response.
+ */
+public class BackendResponseStreamParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_DEPTH = 64;
+
+    private enum State {
+        Value, String, StringEscape, Number, Literal, Done
+    }
+
+    private State state = State.Value;
+
+    // Container stack, true for an object and false for an array.
+    private final boolean[] containers = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean expectFieldName;
+
+    private byte[] token = new byte[64]; // Raw bytes of the current string, number or literal.
+    private int tokenLength;
+    private boolean tokenHasEscape;
+
+    private String currentField;
+    private long responseKey;
+    private int delay;
+    private int numItems;
+    private int itemSize;
+    private List<String> items;
+    private boolean inItems;
+
+    /**
+     * Feeds the next chunk of the content. All remaining bytes of the passed buffer are consumed.
+     *
+     * @throws IOException If the content is not a valid backend response.
+     */
+    public void feed(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            switch (state) {
+                case Done:
+                    if (!isWhitespace(b)) {
+                        throw new IOException("Unexpected content after the end of the response: " + (char) b);
+                    }
+                    break;
+                case String:
+                    if (b == '"') {
+                        state = State.Value;
+                        onString(decodeString());
+                    } else {
+                        if (b == '\\') {
+                            state = State.StringEscape;
+                            tokenHasEscape = true;
+                        }
+                        appendToToken(b);
+                    }
+                    break;
+                case StringEscape:
+                    state = State.String; // Only an escaped quote matters here, the rest is unescaped on completion.
+                    appendToToken(b);
+                    break;
+                case Number:
+                case Literal:
+                    if (isDelimiter(b)) {
+                        State completed = state;
+                        state = State.Value;
+                        if (completed == State.Number) {
+                            onNumber(new String(token, 0, tokenLength, UTF_8));
+                        } else {
+                            onLiteral(new String(token, 0, tokenLength, UTF_8));
+                        }
+                        onStructural(b);
+                    } else {
+                        appendToToken(b);
+                    }
+                    break;
+                case Value:
+                    if (b == '"') {
+                        startToken(State.String);
+                    } else if (b == '-' || (b >= '0' && b <= '9')) {
+                        startToken(State.Number);
+                        appendToToken(b);
+                    } else if (b == 't' || b == 'f' || b == 'n') {
+                        startToken(State.Literal);
+                        appendToToken(b);
+                    } else {
+                        onStructural(b);
+                    }
+                    break;
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return state == State.Done;
+    }
+
+    /**
+     * Returns the parsed response.
+     *
+     * @throws IOException If the complete response has not been fed yet.
+     */
+    public BackendResponse getResponse() throws IOException {
+        if (!isComplete()) {
+            throw new IOException("Incomplete backend response.");
+        }
+        String[] itemsArray = null == items ? null : items.toArray(new String[items.size()]);
+        return new BackendResponse(responseKey, delay, numItems, itemSize, itemsArray);
+    }
+
+    private void onStructural(byte b) throws IOException {
+        if (isWhitespace(b)) {
+            return;
+        }
+        switch (b) {
+            case '{':
+                push(true);
+                expectFieldName = true;
+                break;
+            case '[':
+                if (depth == 1 && "items".equals(currentField)) {
+                    inItems = true;
+                    items = new ArrayList<String>(Math.max(numItems, 1));
+                }
+                push(false);
+                expectFieldName = false;
+                break;
+            case '}':
+            case ']':
+                pop(b == '}');
+                expectFieldName = false;
+                if (depth == 0) {
+                    state = State.Done;
+                } else if (depth == 1) {
+                    inItems = false;
+                }
+                break;
+            case ',':
+                expectFieldName = depth > 0 && containers[depth - 1];
+                break;
+            case ':':
+                expectFieldName = false;
+                break;
+            default:
+                throw new IOException("Unexpected character in backend response: " + (char) b);
+        }
+    }
+
+    private void onString(String value) throws IOException {
+        if (depth == 0) {
+            throw new IOException("Expected backend response to start with an object.");
+        }
+        if (expectFieldName) {
+            expectFieldName = false;
+            if (depth == 1) {
+                currentField = value;
+            }
+        } else if (inItems && depth == 2) {
+            items.add(value);
+        }
+    }
+
+    private void onNumber(String value) throws IOException {
+        if (depth != 1) {
+            return;
+        }
+        try {
+            if ("responseKey".equals(currentField)) {
+                responseKey = Long.parseLong(value);
+            } else if ("delay".equals(currentField)) {
+                delay = Integer.parseInt(value);
+            } else if ("itemSize".equals(currentField)) {
+                itemSize = Integer.parseInt(value);
+            } else if ("numItems".equals(currentField)) {
+                numItems = Integer.parseInt(value);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid value " + value + " for field " + currentField, e);
+        }
+    }
+
+    private static void onLiteral(String value) throws IOException {
+        if (!"true".equals(value) && !"false".equals(value) && !"null".equals(value)) {
+            throw new IOException("Invalid literal in backend response: " + value);
+        }
+    }
+
+    private void push(boolean object) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw new IOException("Backend response nested deeper than " + MAX_DEPTH);
+        }
+        containers[depth++] = object;
+    }
+
+    private void pop(boolean object) throws IOException {
+        if (depth == 0 || containers[depth - 1] != object) {
+            throw new IOException("Unbalanced " + (object ? "object" : "array") + " in backend response.");
+        }
+        depth--;
+    }
+
+    private void startToken(State tokenState) {
+        state = tokenState;
+        tokenLength = 0;
+        tokenHasEscape = false;
+    }
+
+    private void appendToToken(byte b) {
+        if (tokenLength == token.length) {
+            byte[] expanded = new byte[token.length * 2];
+            System.arraycopy(token, 0, expanded, 0, tokenLength);
+            token = expanded;
+        }
+        token[tokenLength++] = b;
+    }
+
+    private String decodeString() throws IOException {
+        // Multi-byte characters may be split across chunks, so the string is only decoded once complete.
+        String raw = new String(token, 0, tokenLength, UTF_8);
+        return tokenHasEscape ? unescape(raw) : raw;
+    }
+
+    private static String unescape(String raw) throws IOException {
+        StringBuilder unescaped = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (++i == raw.length()) {
+                throw new IOException("Incomplete escape sequence in backend response.");
+            }
+            char escaped = raw.charAt(i);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    unescaped.append(escaped);
+                    break;
+                case 'b':
+                    unescaped.append('\b');
+                    break;
+                case 'f':
+                    unescaped.append('\f');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= raw.length()) {
+                        throw new IOException("Incomplete unicode escape in backend response.");
+                    }
+                    try {
+                        unescaped.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid unicode escape in backend response.", e);
+                    }
+                    i += 4;
+                    break;
+                default:
+                    throw new IOException("Invalid escape sequence in backend response: \\" + escaped);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return isWhitespace(b) || b == ',' || b == '}' || b == ']' || b == ':';
+    }
+
+    public static class UnitTest {
+
+        private static final String JSON = "{ \"responseKey\": 9999, \"delay\": 50, \"itemSize\": 128, \"numItems\": 2, "
+                                           + "\"items\": [ \"Lor\\\"em\", \"Ips\\u00fcm \u00e9\" ]}";
+        private static final String JSON_WITH_UNKNOWN_FIELDS = "{ \"responseKey\": 9999, \"numItems\": 2, "
+                                                               + "\"extra\": {\"nested\": [1, {\"a\": true}]}, "
+                                                               + "\"items\": [ \"Lor\\\"em\", \"Ips\\u00fcm \u00e9\" ]}";
+
+        @Test
+        public void testParseInEveryTwoChunkSplit() throws Exception {
+            byte[] content = JSON.getBytes(UTF_8);
+            BackendResponse expected = BackendResponse.fromJson(new JsonFactory(), content);
+            for (int split = 0; split <= content.length; split++) {
+                BackendResponseStreamParser parser = new BackendResponseStreamParser();
+                parser.feed(ByteBuffer.wrap(content, 0, split));
+                parser.feed(ByteBuffer.wrap(content, split, content.length - split));
+                assertTrue("Not complete for split at " + split, parser.isComplete());
+                assertSameResponse(expected, parser.getResponse());
+            }
+        }
+
+        @Test
+        public void testParseByteByByte() throws Exception {
+            byte[] content = JSON_WITH_UNKNOWN_FIELDS.getBytes(UTF_8);
+            BackendResponseStreamParser parser = new BackendResponseStreamParser();
+            for (int i = 0; i < content.length; i++) {
+                assertFalse("Completed before the last byte.", parser.isComplete());
+                parser.feed(ByteBuffer.wrap(content, i, 1));
+            }
+            BackendResponse response = parser.getResponse();
+            assertEquals(9999, response.getResponseKey());
+            assertEquals(2, response.getItems().length);
+            assertEquals("Lor\"em", response.getItems()[0]);
+            assertEquals("Ips\u00fcm \u00e9", response.getItems()[1]);
+        }
+
+        @Test
+        public void testNoItems() throws Exception {
+            BackendResponseStreamParser parser = new BackendResponseStreamParser();
+            parser.feed(ByteBuffer.wrap("{\"responseKey\": -1, \"delay\": 0}".getBytes(UTF_8)));
+            assertEquals(-1, parser.getResponse().getResponseKey());
+            assertNull(parser.getResponse().getItems());
+        }
+
+        @Test
+        public void testInvalidContent() throws Exception {
+            assertInvalid("{\"delay\": 1]");
+            assertInvalid("{\"delay\": 1}}");
+            assertInvalid("{\"delay\": nope}");
+            assertInvalid("{\"delay\": \"1\"} x");
+        }
+
+        @Test(expected = IOException.class)
+        public void testIncomplete() throws Exception {
+            BackendResponseStreamParser parser = new BackendResponseStreamParser();
+            parser.feed(ByteBuffer.wrap("{\"delay\": 1".getBytes(UTF_8)));
+            parser.getResponse();
+        }
+
+        private static void assertInvalid(String json) {
+            try {
+                new BackendResponseStreamParser().feed(ByteBuffer.wrap(json.getBytes(UTF_8)));
+                fail("Invalid content parsed: " + json);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        private static void assertSameResponse(BackendResponse expected, BackendResponse actual) {
+            assertEquals(expected.getResponseKey(), actual.getResponseKey());
+            assertEquals(expected.getDelay(), actual.getDelay());
+            assertEquals(expected.getItemSize(), actual.getItemSize());
+            assertEquals(expected.getNumItems(), actual.getNumItems());
+            assertEquals(expected.getItems().length, actual.getItems().length);
+            for (int i = 0; i < expected.getItems().length; i++) {
+                assertEquals(expected.getItems()[i], actual.getItems()[i]);
+            }
+        }
+    }
+}
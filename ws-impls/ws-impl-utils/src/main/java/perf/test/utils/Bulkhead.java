@@ -0,0 +1,75 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * A concurrency quota for calls to a single dependency. Calls over the quota are rejected immediately instead of
+ * waiting, so that a slow dependency can only tie up its own share of threads and connections.
+ */
+public class Bulkhead {
+
+    private final int maxConcurrent;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Bulkhead(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("Max concurrent calls must be positive, found: " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Reserves a slot for a call, every successful acquire must be followed by a {@link #release()}.
+     *
+     * @return {@code true} if the call can proceed.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= maxConcurrent) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inflight.decrementAndGet();
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testQuota() throws Exception {
+            Bulkhead bulkhead = new Bulkhead(1);
+            assertTrue(bulkhead.tryAcquire());
+            assertFalse("Acquired beyond quota.", bulkhead.tryAcquire());
+            assertEquals(1, bulkhead.getRejectedCount());
+            bulkhead.release();
+            assertTrue("Release did not free the slot.", bulkhead.tryAcquire());
+        }
+    }
+}
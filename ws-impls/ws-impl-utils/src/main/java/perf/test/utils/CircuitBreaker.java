@@ -0,0 +1,163 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * A circuit breaker over a rolling window of call outcomes. <br/>
+ * The window is divided into buckets, each holding the success and failure counts for a slice of time. Once the window
+ * has at least {@code minRequests} calls and the failure percentage reaches {@code errorThresholdPercent}, the circuit
+ * opens and every call is rejected without touching the dependency. After {@code sleepWindowMs} a single trial call is
+ * let through: its success closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State { Closed, Open, HalfOpen }
+
+    private static final int BUCKET_COUNT = 10;
+
+    private final int errorThresholdPercent;
+    private final int minRequests;
+    private final long sleepWindowMs;
+    private final long bucketSizeMs;
+
+    private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray successes = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray failures = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicInteger state = new AtomicInteger(State.Closed.ordinal());
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private volatile long openedAt;
+
+    public CircuitBreaker(int errorThresholdPercent, int minRequests, long windowMs, long sleepWindowMs) {
+        this.errorThresholdPercent = errorThresholdPercent;
+        this.minRequests = minRequests;
+        this.sleepWindowMs = sleepWindowMs;
+        bucketSizeMs = Math.max(1, windowMs / BUCKET_COUNT);
+    }
+
+    /**
+     * Returns whether a call can be made now. Every allowed call must be followed by exactly one of
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnore()}.
+     */
+    public boolean allowRequest() {
+        int current = state.get();
+        if (current == State.Closed.ordinal()) {
+            return true;
+        }
+        if (current == State.Open.ordinal() && System.currentTimeMillis() - openedAt >= sleepWindowMs
+            && state.compareAndSet(current, State.HalfOpen.ordinal())) {
+            return true; // Trial call.
+        }
+        shortCircuited.incrementAndGet();
+        return false;
+    }
+
+    public void onSuccess() {
+        if (state.compareAndSet(State.HalfOpen.ordinal(), State.Closed.ordinal())) {
+            resetWindow();
+        }
+        record(successes);
+    }
+
+    public void onFailure() {
+        record(failures);
+        if (state.compareAndSet(State.HalfOpen.ordinal(), State.Open.ordinal())) {
+            openedAt = System.currentTimeMillis();
+            return;
+        }
+        if (state.get() == State.Closed.ordinal()) {
+            long failed = sum(failures);
+            long total = failed + sum(successes);
+            if (total >= minRequests && failed * 100 >= errorThresholdPercent * total
+                && state.compareAndSet(State.Closed.ordinal(), State.Open.ordinal())) {
+                openedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Called for a call whose outcome says nothing about the health of the dependency. If this was the trial call, the
+     * next call becomes the trial.
+     */
+    public void onIgnore() {
+        if (state.compareAndSet(State.HalfOpen.ordinal(), State.Open.ordinal())) {
+            openedAt = System.currentTimeMillis() - sleepWindowMs;
+        }
+    }
+
+    public State getState() {
+        return State.values()[state.get()];
+    }
+
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+
+    private void record(AtomicLongArray counts) {
+        long epoch = System.currentTimeMillis() / bucketSizeMs;
+        int bucket = (int) (epoch % BUCKET_COUNT);
+        long bucketEpoch = bucketEpochs.get(bucket);
+        if (bucketEpoch != epoch && bucketEpochs.compareAndSet(bucket, bucketEpoch, epoch)) {
+            // Bucket now belongs to a new time slice, counts recorded concurrently with this reset may be lost.
+            successes.set(bucket, 0);
+            failures.set(bucket, 0);
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    private long sum(AtomicLongArray counts) {
+        long oldestEpoch = System.currentTimeMillis() / bucketSizeMs - BUCKET_COUNT + 1;
+        long toReturn = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (bucketEpochs.get(i) >= oldestEpoch) {
+                toReturn += counts.get(i);
+            }
+        }
+        return toReturn;
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            successes.set(i, 0);
+            failures.set(i, 0);
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testOpensOnErrors() throws Exception {
+            CircuitBreaker breaker = new CircuitBreaker(50, 4, 10000, 60000);
+            breaker.onSuccess();
+            breaker.onFailure();
+            breaker.onFailure();
+            assertEquals("Opened before min requests.", State.Closed, breaker.getState());
+            breaker.onFailure();
+            assertEquals(State.Open, breaker.getState());
+            assertFalse("Open circuit allowed a request.", breaker.allowRequest());
+            assertEquals(1, breaker.getShortCircuitedCount());
+        }
+
+        @Test
+        public void testTrialCall() throws Exception {
+            CircuitBreaker breaker = new CircuitBreaker(50, 1, 10000, 0);
+            breaker.onFailure();
+            assertEquals(State.Open, breaker.getState());
+            assertTrue("Trial call not allowed after sleep window.", breaker.allowRequest());
+            assertFalse("More than one trial call allowed.", breaker.allowRequest());
+            breaker.onFailure();
+            assertEquals("Failed trial did not reopen.", State.Open, breaker.getState());
+            assertTrue(breaker.allowRequest());
+            breaker.onSuccess();
+            assertEquals("Successful trial did not close.", State.Closed, breaker.getState());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package perf.test.utils;
+
+/**
+ * Thrown when a backend call is rejected by an {@link AdaptiveConcurrencyLimiter} as the backend is saturated.
+ */
+public class ConcurrencyLimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 6024911315542381732L;
+
+    public ConcurrencyLimitExceededException(String operation, int limit) {
+        super(String.format("Backend concurrency limit of %d reached, rejected: %s", limit, operation));
+    }
+}
@@ -0,0 +1,115 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * An end-to-end deadline for a top level request. Every backend call made while serving the request should be bounded
+ * by {@link #getRemainingMillis()} and should not be started at all once the deadline {@link #isExpired()}. <br/>
+ * A deadline is propagated downstream as the remaining budget in milliseconds in the header {@link #HEADER_NAME}. A
+ * relative budget is used instead of an absolute time so that clock skew between hosts does not matter.
+ */
+public class Deadline {
+
+    public static final String HEADER_NAME = "X-Request-Budget-Ms";
+
+    private final long expiryNanos;
+
+    private Deadline(long expiryNanos) {
+        this.expiryNanos = expiryNanos;
+    }
+
+    public static Deadline afterMillis(long budgetMillis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+    }
+
+    /**
+     * Creates a deadline from the budget received in the {@link #HEADER_NAME} header of an inbound request. The
+     * resulting deadline is never later than the passed default budget. A missing or invalid header value is ignored.
+     *
+     * @param headerValue Value of the {@link #HEADER_NAME} header, {@code null} if absent.
+     * @param defaultBudgetMillis Budget to use for this request.
+     */
+    public static Deadline fromHeader(String headerValue, long defaultBudgetMillis) {
+        long budget = defaultBudgetMillis;
+        if (null != headerValue) {
+            try {
+                budget = Math.min(budget, Math.max(0, Long.parseLong(headerValue.trim())));
+            } catch (NumberFormatException e) {
+                // Invalid budget from upstream, use our own.
+            }
+        }
+        return afterMillis(budget);
+    }
+
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiryNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return expiryNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Throws a {@link DeadlineExceededException} if this deadline has expired.
+     *
+     * @param operation Operation which is about to start, used for the error message.
+     */
+    public void checkNotExpired(String operation) {
+        if (isExpired()) {
+            throw new DeadlineExceededException(operation);
+        }
+    }
+
+    public String toHeaderValue() {
+        return String.valueOf(getRemainingMillis());
+    }
+
+    /**
+     * Returns {@code true} if the passed throwable or any of its causes is a {@link DeadlineExceededException}.
+     */
+    public static boolean isDeadlineExceeded(Throwable throwable) {
+        Throwable cause = throwable;
+        while (null != cause) {
+            if (cause instanceof DeadlineExceededException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testHeaderBudget() throws Exception {
+            Deadline deadline = fromHeader("100", 10000);
+            assertTrue("Budget from header not honored.", deadline.getRemainingMillis() <= 100);
+
+            deadline = fromHeader("100000", 1000);
+            assertTrue("Default budget not honored.", deadline.getRemainingMillis() <= 1000);
+
+            deadline = fromHeader("junk", 1000);
+            assertTrue("Invalid header not ignored.", deadline.getRemainingMillis() > 100);
+        }
+
+        @Test
+        public void testExpiry() throws Exception {
+            Deadline deadline = afterMillis(0);
+            assertTrue(deadline.isExpired());
+            assertEquals(0, deadline.getRemainingMillis());
+            assertFalse(afterMillis(10000).isExpired());
+            try {
+                deadline.checkNotExpired("test");
+                throw new AssertionError("Expired deadline did not throw.");
+            } catch (DeadlineExceededException e) {
+                assertTrue(isDeadlineExceeded(new RuntimeException(e)));
+            }
+        }
+    }
+}
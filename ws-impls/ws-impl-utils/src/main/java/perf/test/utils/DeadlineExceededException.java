@@ -0,0 +1,13 @@
+package perf.test.utils;
+
+/**
+ * Thrown when an operation can not be started or completed within the {@link Deadline} of the top level request.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = -3218460926745301286L;
+
+    public DeadlineExceededException(String operation) {
+        super("Request deadline exceeded: " + operation);
+    }
+}
@@ -0,0 +1,127 @@
+package perf.test.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Isolates calls to one backend dependency with a {@link Bulkhead} and a {@link CircuitBreaker}. <br/>
+ * A call must {@link #enter()} the guard before it is made and report its outcome exactly once by one of
+ * {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnore()}.
+ */
+public class DependencyGuard {
+
+    private final String name;
+    private final Bulkhead bulkhead;
+    private final CircuitBreaker circuitBreaker;
+
+    public DependencyGuard(String name, Config config) {
+        this.name = name;
+        bulkhead = new Bulkhead(config.maxConcurrent);
+        circuitBreaker = new CircuitBreaker(config.errorThresholdPercent, config.minRequests, config.windowMs,
+                                            config.sleepWindowMs);
+    }
+
+    /**
+     * Admits a call to this dependency.
+     *
+     * @throws DependencyUnavailableException If the circuit is open or the bulkhead is full.
+     */
+    public void enter() {
+        if (!circuitBreaker.allowRequest()) {
+            throw new DependencyUnavailableException(name, "circuit open");
+        }
+        if (!bulkhead.tryAcquire()) {
+            circuitBreaker.onIgnore();
+            throw new DependencyUnavailableException(name, "bulkhead full");
+        }
+    }
+
+    public void onSuccess() {
+        bulkhead.release();
+        circuitBreaker.onSuccess();
+    }
+
+    public void onFailure() {
+        bulkhead.release();
+        circuitBreaker.onFailure();
+    }
+
+    public void onIgnore() {
+        bulkhead.release();
+        circuitBreaker.onIgnore();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return String.format("circuit: %s, inflight: %d/%d, bulkhead rejected: %d, short circuited: %d",
+                             circuitBreaker.getState(), bulkhead.getInflight(), bulkhead.getMaxConcurrent(),
+                             bulkhead.getRejectedCount(), circuitBreaker.getShortCircuitedCount());
+    }
+
+    /**
+     * Returns the name of the backend dependency for a mock backend uri, i.e. the value of its {@code type} query
+     * parameter, or the passed default if the uri has none.
+     */
+    public static String dependencyName(String uri, String defaultName) {
+        int start = uri.indexOf("type=");
+        if (start < 0) {
+            return defaultName;
+        }
+        start += "type=".length();
+        int end = uri.indexOf('&', start);
+        return end < 0 ? uri.substring(start) : uri.substring(start, end);
+    }
+
+    /**
+     * Settings shared by all the guards of an implementation.
+     */
+    public static class Config {
+
+        private final int maxConcurrent;
+        private final int errorThresholdPercent;
+        private final int minRequests;
+        private final long windowMs;
+        private final long sleepWindowMs;
+
+        public Config(int maxConcurrent, int errorThresholdPercent, int minRequests, long windowMs,
+                      long sleepWindowMs) {
+            this.maxConcurrent = maxConcurrent;
+            this.errorThresholdPercent = errorThresholdPercent;
+            this.minRequests = minRequests;
+            this.windowMs = windowMs;
+            this.sleepWindowMs = sleepWindowMs;
+        }
+    }
+
+    /**
+     * Lazily created guards, one per dependency name.
+     */
+    public static class Registry {
+
+        private final Config config;
+        private final ConcurrentMap<String, DependencyGuard> guards = new ConcurrentHashMap<String, DependencyGuard>();
+
+        public Registry(Config config) {
+            this.config = config;
+        }
+
+        public DependencyGuard get(String dependencyName) {
+            DependencyGuard guard = guards.get(dependencyName);
+            if (null == guard) {
+                guard = new DependencyGuard(dependencyName, config);
+                DependencyGuard existing = guards.putIfAbsent(dependencyName, guard);
+                if (null != existing) {
+                    guard = existing;
+                }
+            }
+            return guard;
+        }
+
+        public Iterable<DependencyGuard> getAll() {
+            return guards.values();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package perf.test.utils;
+
+/**
+ * Thrown when a call to a dependency is rejected by its {@link DependencyGuard}, without touching the dependency.
+ */
+public class DependencyUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = -1486075125320563017L;
+
+    public DependencyUnavailableException(String dependency, String reason) {
+        super(String.format("Dependency %s unavailable: %s", dependency, reason));
+    }
+}
@@ -18,6 +18,13 @@ public class EventLogger {
         LOG.debug(PropertyNames.EventLogSamplePercentage.getPropertyName() + ": " + SAMPLE_PERCENTAGE);
     }
 
+    /**
+     * Returns {@code false} if no event is ever logged, so that the callers can skip building the event messages.
+     */
+    public static boolean isEnabled() {
+        return SAMPLE_PERCENTAGE > 0 && LOG.isDebugEnabled();
+    }
+
     public static final void log(String requestId, String eventMsg) {
         if (Sampler.shouldSample(requestId.hashCode(), SAMPLE_PERCENTAGE)) {
             if(LOG.isDebugEnabled()) {
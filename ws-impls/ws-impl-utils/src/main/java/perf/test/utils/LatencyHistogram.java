@@ -0,0 +1,116 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * A lock free latency histogram with a resolution of one millisecond. Latencies larger than the configured max are
+ * recorded in an overflow bucket and reported as the max value. <br/>
+ * Recording is a couple of atomic increments, so this can be used on the request path. Percentile computation scans
+ * all buckets and hence callers on the hot path should cache the result.
+ */
+public class LatencyHistogram {
+
+    private final int maxMillis;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public LatencyHistogram(int maxMillis) {
+        this.maxMillis = maxMillis;
+        buckets = new AtomicLongArray(maxMillis + 1);
+    }
+
+    public void record(long latencyMillis) {
+        int bucket = (int) Math.max(0, Math.min(latencyMillis, maxMillis));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(latencyMillis);
+    }
+
+    /**
+     * Returns the latency at the passed percentile.
+     *
+     * @param percentile Percentile between 0 and 100.
+     *
+     * @return Latency in milliseconds at the passed percentile, {@code -1} if nothing is recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total <= 0) {
+            return -1;
+        }
+        long threshold = (long) Math.ceil(total * (percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i <= maxMillis; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold) {
+                return i;
+            }
+        }
+        return maxMillis;
+    }
+
+    /**
+     * Returns the number of recorded latencies less than or equal to the passed value.
+     */
+    public long getCountAtOrBelow(long latencyMillis) {
+        int upto = (int) Math.max(0, Math.min(latencyMillis, maxMillis));
+        long toReturn = 0;
+        for (int i = 0; i <= upto; i++) {
+            toReturn += buckets.get(i);
+        }
+        return toReturn;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public int getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Clears all the recorded values. Any values recorded concurrently with the reset may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i <= maxMillis; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testPercentile() throws Exception {
+            LatencyHistogram histogram = new LatencyHistogram(1000);
+            assertEquals(-1, histogram.getPercentile(99));
+            for (int i = 1; i <= 100; i++) {
+                histogram.record(i);
+            }
+            assertEquals(50, histogram.getPercentile(50));
+            assertEquals(99, histogram.getPercentile(99));
+            assertEquals(100, histogram.getPercentile(100));
+            assertEquals(10, histogram.getCountAtOrBelow(10));
+        }
+
+        @Test
+        public void testOverflow() throws Exception {
+            LatencyHistogram histogram = new LatencyHistogram(10);
+            histogram.record(5000);
+            assertEquals(10, histogram.getPercentile(50));
+            assertEquals(5000, histogram.getSum());
+        }
+    }
+}
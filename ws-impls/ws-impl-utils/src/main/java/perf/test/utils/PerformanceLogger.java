@@ -25,6 +25,10 @@ public class PerformanceLogger {
         return INSTANCE;
     }
 
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
     public void start(String uuid, String name) {
         if(!isEnabled) return;
 
@@ -3,7 +3,9 @@ package perf.test.utils;
 /**
  * All the properties used by netty module. The property values are obtained as {@link System#getProperty(String, String)} for
  * the property name specified by {@link perf.test.netty.PropertyNames#getPropertyName()} with a default value as specified
- * by {@link perf.test.netty.PropertyNames#getDefaultVal()}
+ * by {@link perf.test.netty.PropertyNames#getDefaultVal()}. <br/>
+ * The values are read on their first use and cached, as they are read on every request; {@link #reload()} reads them
+ * again.
  *
  * @author Nitesh Kant (nkant@netflix.com)
  */
@@ -12,14 +14,26 @@ public enum PropertyNames {
     EventLogSamplePercentage("event-log.sample-percentage", "100"),
     PerfLogEnabled("perf-log.enabled", "false");
 
-    private String propertyName;
-    private String defaultVal;
+    private final String propertyName;
+    private final String defaultVal;
+    private volatile Value value; // Read on the first use, null after a reload.
 
     PropertyNames(String propertyName, String defaultVal) {
         this.propertyName = propertyName;
         this.defaultVal = defaultVal;
     }
 
+    /**
+     * Reads all the properties again on their next use, eg: after they were changed with
+     * {@link System#setProperty(String, String)}. Components that read a property once, eg: on startup, keep their
+     * value.
+     */
+    public static void reload() {
+        for (PropertyNames property : values()) {
+            property.value = null;
+        }
+    }
+
     public String getDefaultVal() {
         return defaultVal;
     }
@@ -29,17 +43,54 @@ public enum PropertyNames {
     }
 
     public boolean getValueAsBoolean() {
-        String property = getValueAsString();
-        return Boolean.getBoolean(property);
+        return getValue().booleanValue;
     }
 
     public int getValueAsInt() {
-        String property = getValueAsString();
-        return Integer.parseInt(property);
+        Value value = getValue();
+        if (!value.isInt) {
+            return Integer.parseInt(value.stringValue); // Throws the same error as on every call before caching.
+        }
+        return value.intValue;
     }
 
     public String getValueAsString() {
-        return System.getProperty(propertyName, defaultVal);
+        return getValue().stringValue;
+    }
+
+    private Value getValue() {
+        Value value = this.value;
+        if (null == value) {
+            String stringValue = System.getProperty(propertyName, defaultVal);
+            value = new Value(stringValue, Boolean.getBoolean(stringValue));
+            this.value = value; // Concurrent first reads may all read the property, with the same result.
+        }
+        return value;
     }
 
+    /**
+     * The value of a property in all its forms, parsed once.
+     */
+    private static final class Value {
+
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final boolean isInt;
+        private final int intValue;
+
+        private Value(String stringValue, boolean booleanValue) {
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            int parsed = 0;
+            boolean parsedInt = false;
+            try {
+                parsed = Integer.parseInt(stringValue);
+                parsedInt = true;
+            } catch (NumberFormatException e) {
+                // Not an int property, the error is thrown by getValueAsInt().
+            }
+            isInt = parsedInt;
+            intValue = parsed;
+        }
+    }
 }
@@ -6,6 +6,7 @@ import org.codehaus.jackson.JsonGenerator;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.util.HashMap;
@@ -60,9 +61,57 @@ public class ServiceResponseBuilder {
             BackendResponse responseC, BackendResponse responseD,
             BackendResponse responseE) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        JsonGenerator jsonGenerator = jsonFactory.createJsonGenerator(bos);
+        writeTestAResponse(jsonFactory, bos, responseA, responseB, responseC, responseD, responseE);
+        return bos;
+    }
+
+    /**
+     * Same as {@link #buildTestAResponse(JsonFactory, BackendResponse[])} but writes the response to the passed stream,
+     * eg: a stream over a pooled buffer, instead of an intermediate byte array.
+     */
+    public static void writeTestAResponse(JsonFactory jsonFactory, OutputStream out, BackendResponse[] orderedResponse)
+            throws IOException {
+        writeTestAResponse(jsonFactory, out, orderedResponse[0], orderedResponse[1], orderedResponse[2],
+                           orderedResponse[3], orderedResponse[4]);
+    }
+
+    public static void writeTestAResponse(JsonFactory jsonFactory, OutputStream out,
+            BackendResponse responseA, BackendResponse responseB,
+            BackendResponse responseC, BackendResponse responseD,
+            BackendResponse responseE) throws IOException {
+        JsonGenerator jsonGenerator = jsonFactory.createJsonGenerator(out);
 
         jsonGenerator.writeStartObject();
+        writeTestAMetadata(jsonGenerator, responseA, responseB, responseC, responseD, responseE);
+
+        // all items from responses
+        jsonGenerator.writeArrayFieldStart("items");
+        addItemsFromResponse(jsonGenerator, responseA);
+        addItemsFromResponse(jsonGenerator, responseB);
+        addItemsFromResponse(jsonGenerator, responseC);
+        addItemsFromResponse(jsonGenerator, responseD);
+        addItemsFromResponse(jsonGenerator, responseE);
+        jsonGenerator.writeEndArray();
+
+        jsonGenerator.writeEndObject();
+        jsonGenerator.close();
+    }
+
+    /**
+     * Writes all the fields of the test A response except the items, ie: the response key and the delay, item size and
+     * number of items of every backend response. Used as is by the implementations that write the items without
+     * decoding them.
+     */
+    public static void writeTestAMetadata(JsonGenerator jsonGenerator, BackendResponse[] orderedResponse)
+            throws IOException {
+        writeTestAMetadata(jsonGenerator, orderedResponse[0], orderedResponse[1], orderedResponse[2],
+                           orderedResponse[3], orderedResponse[4]);
+    }
+
+    public static void writeTestAMetadata(JsonGenerator jsonGenerator,
+            BackendResponse responseA, BackendResponse responseB,
+            BackendResponse responseC, BackendResponse responseD,
+            BackendResponse responseE) throws IOException {
         // multiplication of C, D, E responseKey
         jsonGenerator.writeNumberField("responseKey", responseC.getResponseKey() + responseD.getResponseKey() +
                 responseE.getResponseKey());
@@ -93,20 +142,6 @@ public class ServiceResponseBuilder {
         writeTuple(jsonGenerator, "d", responseD.getNumItems());
         writeTuple(jsonGenerator, "e", responseE.getNumItems());
         jsonGenerator.writeEndArray();
-
-        // all items from responses
-        jsonGenerator.writeArrayFieldStart("items");
-        addItemsFromResponse(jsonGenerator, responseA);
-        addItemsFromResponse(jsonGenerator, responseB);
-        addItemsFromResponse(jsonGenerator, responseC);
-        addItemsFromResponse(jsonGenerator, responseD);
-        addItemsFromResponse(jsonGenerator, responseE);
-        jsonGenerator.writeEndArray();
-
-        jsonGenerator.writeEndObject();
-        jsonGenerator.close();
-
-        return bos;
     }
 
     private static void addItemsFromResponse(JsonGenerator jsonGenerator, BackendResponse a) throws IOException {
@@ -0,0 +1,95 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * A counter that is updated by many threads and read rarely, in the style of java 8's {@code LongAdder}. <br/>
+ * The count is spread over cells that are on different cache lines and every thread updates the cell assigned to it,
+ * so threads updating the counter concurrently do not contend on a single cache line. Reading the count sums all the
+ * cells and hence is not an atomic snapshot with respect to concurrent updates.
+ */
+public class StripedCounter {
+
+    private static final int CELL_PADDING = 16; // Longs per cell, two 64 byte cache lines to defeat adjacent prefetch.
+
+    private static final AtomicInteger nextThreadIndex = new AtomicInteger();
+    private static final ThreadLocal<Integer> threadIndex = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return nextThreadIndex.getAndIncrement();
+        }
+    };
+
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes Number of cells, rounded up to a power of two.
+     */
+    public StripedCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(2, stripes) - 1) << 1;
+        mask = size - 1;
+        cells = new AtomicLongArray((size + 1) * CELL_PADDING); // The first cell is padded from the array header.
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(((threadIndex.get() & mask) + 1) * CELL_PADDING, delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = CELL_PADDING; i < cells.length(); i += CELL_PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    int getStripes() {
+        return mask + 1;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testStripesRoundedToPowerOfTwo() throws Exception {
+            assertEquals(8, new StripedCounter(5).getStripes());
+            assertEquals(2, new StripedCounter(1).getStripes());
+        }
+
+        @Test
+        public void testConcurrentIncrements() throws Exception {
+            final StripedCounter counter = new StripedCounter(4);
+            final int threads = 8;
+            final int increments = 10000;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < increments; j++) {
+                            counter.increment();
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            counter.add(-5);
+            assertEquals(threads * increments - 5, counter.sum());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package perf.test.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * A fixed size ring buffer of trace checkpoints, written by a single thread and read by any thread. <br/>
+ * A checkpoint is a timestamp, a trace id, a checkpoint code and an argument, so recording one does not allocate and
+ * does not contend with other threads. When full, the oldest checkpoints are overwritten. <br/>
+ * Readers do not block the writer: {@link #snapshot(List)} copies the buffer and then drops the checkpoints that may
+ * have been overwritten while copying. As the writer may be overwriting the oldest checkpoint at any time, a snapshot
+ * holds at most {@code capacity - 1} checkpoints.
+ */
+public class TraceRingBuffer {
+
+    private final String owner;
+    private final int mask;
+    private final long[] timestamps;
+    private final long[] traceIds;
+    private final int[] codes;
+    private final long[] args;
+    private final AtomicLong written = new AtomicLong(); // Only incremented by the writer.
+
+    /**
+     * @param owner Name of the writing thread, added to every checkpoint read from this buffer.
+     * @param capacity Number of checkpoints retained, rounded up to a power of two.
+     */
+    public TraceRingBuffer(String owner, int capacity) {
+        this.owner = owner;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        timestamps = new long[size];
+        traceIds = new long[size];
+        codes = new int[size];
+        args = new long[size];
+    }
+
+    /**
+     * Records a checkpoint. Must only be called by the thread owning this buffer.
+     */
+    public void record(long traceId, int code, long arg) {
+        long index = written.get();
+        int slot = (int) (index & mask);
+        timestamps[slot] = System.nanoTime();
+        traceIds[slot] = traceId;
+        codes[slot] = code;
+        args[slot] = arg;
+        written.lazySet(index + 1); // Publishes the slot to the readers.
+    }
+
+    /**
+     * Adds the checkpoints in this buffer to the passed list, oldest first.
+     */
+    public void snapshot(List<Checkpoint> toPopulate) {
+        long end = written.get();
+        // The slot of the oldest checkpoint, end - capacity, is the one the writer may be writing.
+        long start = Math.max(0, end - timestamps.length + 1);
+        List<Checkpoint> copied = new ArrayList<Checkpoint>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            int slot = (int) (i & mask);
+            copied.add(new Checkpoint(owner, timestamps[slot], traceIds[slot], codes[slot], args[slot]));
+        }
+        // The checkpoints written since the copy started, and the one being written now (index written), have
+        // overwritten the copied checkpoints of the same slots.
+        long overwrittenUpto = written.get() - timestamps.length;
+        for (int i = 0; i < copied.size(); i++) {
+            if (start + i > overwrittenUpto) {
+                toPopulate.add(copied.get(i));
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    public static class Checkpoint {
+
+        private final String owner;
+        private final long nanoTime;
+        private final long traceId;
+        private final int code;
+        private final long arg;
+
+        Checkpoint(String owner, long nanoTime, long traceId, int code, long arg) {
+            this.owner = owner;
+            this.nanoTime = nanoTime;
+            this.traceId = traceId;
+            this.code = code;
+            this.arg = arg;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Value of {@link System#nanoTime()} when the checkpoint was recorded.
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+
+        public long getTraceId() {
+            return traceId;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public long getArg() {
+            return arg;
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testCapacityRoundedToPowerOfTwo() throws Exception {
+            assertEquals(8, new TraceRingBuffer("test", 5).getCapacity());
+            assertEquals(8, new TraceRingBuffer("test", 8).getCapacity());
+            assertEquals(2, new TraceRingBuffer("test", 0).getCapacity());
+        }
+
+        @Test
+        public void testSnapshotBeforeWrap() throws Exception {
+            TraceRingBuffer buffer = new TraceRingBuffer("test", 4);
+            buffer.record(1, 10, 100);
+            buffer.record(2, 20, 200);
+            List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+            buffer.snapshot(checkpoints);
+            assertEquals(2, checkpoints.size());
+            assertEquals(1, checkpoints.get(0).getTraceId());
+            assertEquals(20, checkpoints.get(1).getCode());
+            assertEquals(200, checkpoints.get(1).getArg());
+            assertEquals("test", checkpoints.get(1).getOwner());
+        }
+
+        @Test
+        public void testOldestOverwritten() throws Exception {
+            TraceRingBuffer buffer = new TraceRingBuffer("test", 4);
+            for (int i = 0; i < 10; i++) {
+                buffer.record(i, i, i);
+            }
+            List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+            buffer.snapshot(checkpoints);
+            assertEquals(3, checkpoints.size()); // The oldest slot may be being overwritten.
+            for (int i = 0; i < 3; i++) {
+                assertEquals(7 + i, checkpoints.get(i).getTraceId());
+            }
+        }
+
+        @Test
+        public void testNoTornCheckpointWithConcurrentWriter() throws Exception {
+            final TraceRingBuffer buffer = new TraceRingBuffer("test", 2);
+            final AtomicBoolean stop = new AtomicBoolean();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long value = 0; !stop.get(); value++) {
+                        buffer.record(value, (int) value, value);
+                    }
+                }
+            });
+            writer.start();
+            try {
+                List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+                for (int i = 0; i < 1000000; i++) {
+                    checkpoints.clear();
+                    buffer.snapshot(checkpoints);
+                    for (Checkpoint checkpoint : checkpoints) {
+                        assertEquals("Torn checkpoint.", checkpoint.getTraceId(), checkpoint.getArg());
+                        assertEquals("Torn checkpoint.", (int) checkpoint.getTraceId(), checkpoint.getCode());
+                    }
+                }
+            } finally {
+                stop.set(true);
+                writer.join();
+            }
+        }
+    }
+}
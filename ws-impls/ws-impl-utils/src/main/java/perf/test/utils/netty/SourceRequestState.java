@@ -10,7 +10,7 @@ import java.util.UUID;
  */
 public class SourceRequestState {
 
-    private static final AttributeKey<String> REQUEST_UUID = new AttributeKey("request_uuid");
+    private static final AttributeKey<String> REQUEST_UUID = AttributeKey.valueOf("request_uuid");
 
     private static final SourceRequestState INSTANCE = new SourceRequestState();
 
@@ -4,7 +4,9 @@ package perf.test.jetty;
 /**
  * All the properties used by netty module. The property values are obtained as {@link System#getProperty(String, String)} for
  * the property name specified by {@link #getPropertyName()} with a default value as specified
- * by {@link #getDefaultVal()}
+ * by {@link #getDefaultVal()}. <br/>
+ * The values are read on their first use and cached, as they are read on every request; {@link #reload()} reads them
+ * again.
  *
  * @author Nitesh Kant (nkant@netflix.com)
  */
@@ -13,6 +15,9 @@ public enum PropertyNames {
     ServerContextPath("http.server.context.path", "/ws-java-jetty"),
     ServerPort("http.server.port", "8698"),
     TestCaseExecutionTimeoutMs("test.execution.timeout.ms", "60000"),
+    PropertiesContextPath("http.server.properties.endpoint", "/properties"), // Sets properties and reloads them.
+    RequestDeadlineMs("perf.test.request.deadline.ms", "0"), // 0 means no deadline for the top level requests.
+    RequestDeadlinePropagate("perf.test.request.deadline.propagate", "false"), // Send remaining budget to the backend.
 
     ClientReadTimeout("client.read.timeout", "500"),
     ClientConnectTimeout("client.connect.timeout", "500"),
@@ -20,6 +25,11 @@ public enum PropertyNames {
     MockBackendMaxConnectionsPerTest("perf.test.backend.host.maxconn.per.test", "100"),
     MockBackendClientQueueSize("perf.test.backend.host.client.q.size", "1000"),
 
+    BackendLimiterEnable("perf.test.backend.limiter.enable", "false"),
+    BackendLimiterInitialLimit("perf.test.backend.limiter.initial", "20"),
+    BackendLimiterMinLimit("perf.test.backend.limiter.min", "1"),
+    BackendLimiterMaxLimit("perf.test.backend.limiter.max", "1000"),
+
     ErrorHeaderName("perf.test.error.header.name", "X-wsperf-error"),
 
     TestCaseAResponseBufferMaxSize("perf.test.testA.response.buffer.size", String.valueOf(1024 * 1024 * 2)),
@@ -44,14 +54,26 @@ public enum PropertyNames {
     TestCaseACallEItemSize("perf.test.testA.callE.itemSize", "30"),
     TestCaseACallEItemDelay("perf.test.testA.callE.delay", "40");
 
-    private String propertyName;
-    private String defaultVal;
+    private final String propertyName;
+    private final String defaultVal;
+    private volatile Value value; // Read on the first use, null after a reload.
 
     PropertyNames(String propertyName, String defaultVal) {
         this.propertyName = propertyName;
         this.defaultVal = defaultVal;
     }
 
+    /**
+     * Reads all the properties again on their next use, eg: after they were changed with
+     * {@link System#setProperty(String, String)}. Components that read a property once, eg: on startup, keep their
+     * value.
+     */
+    public static void reload() {
+        for (PropertyNames property : values()) {
+            property.value = null;
+        }
+    }
+
     public String getDefaultVal() {
         return defaultVal;
     }
@@ -61,15 +83,54 @@ public enum PropertyNames {
     }
 
     public boolean getValueAsBoolean() {
-        return Boolean.getBoolean(propertyName);
+        return getValue().booleanValue;
     }
 
     public int getValueAsInt() {
-        String property = System.getProperty(propertyName, defaultVal);
-        return Integer.parseInt(property);
+        Value value = getValue();
+        if (!value.isInt) {
+            return Integer.parseInt(value.stringValue); // Throws the same error as on every call before caching.
+        }
+        return value.intValue;
     }
 
     public String getValueAsString() {
-        return System.getProperty(propertyName, defaultVal);
+        return getValue().stringValue;
+    }
+
+    private Value getValue() {
+        Value value = this.value;
+        if (null == value) {
+            // As Boolean.getBoolean(), the default value is not used for a boolean.
+            value = new Value(System.getProperty(propertyName, defaultVal), Boolean.getBoolean(propertyName));
+            this.value = value; // Concurrent first reads may all read the property, with the same result.
+        }
+        return value;
+    }
+
+    /**
+     * The value of a property in all its forms, parsed once.
+     */
+    private static final class Value {
+
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final boolean isInt;
+        private final int intValue;
+
+        private Value(String stringValue, boolean booleanValue) {
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            int parsed = 0;
+            boolean parsedInt = false;
+            try {
+                parsed = Integer.parseInt(stringValue);
+                parsedInt = true;
+            } catch (NumberFormatException e) {
+                // Not an int property, the error is thrown by getValueAsInt().
+            }
+            isInt = parsedInt;
+            intValue = parsed;
+        }
     }
 }
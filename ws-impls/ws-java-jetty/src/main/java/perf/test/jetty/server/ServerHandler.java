@@ -15,6 +15,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Map;
 
 /**
 * @author Nitesh Kant
@@ -62,6 +63,10 @@ public class ServerHandler extends AbstractHandler {
                     response.addHeader(PropertyNames.ErrorHeaderName.getValueAsString(), "Test case failed: " + e.getMessage());
                     continuation.complete();
                 }
+            } else if (testCasePath.startsWith(PropertyNames.PropertiesContextPath.getValueAsString())) {
+                Map<String, String[]> parameters = request.getParameterMap();
+                response.setContentType("text/plain");
+                response.getWriter().write(updateProperties(parameters));
             } else {
                 logger.error("Unknown testcase: " + testCasePath);
                 response.setStatus(404);
@@ -71,6 +76,42 @@ public class ServerHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Sets the passed properties, ignoring unknown property names, and reloads all the properties, so that the values
+     * read on every request change. The values read once, eg: on startup, do not change.
+     *
+     * @return The properties that were set.
+     */
+    private String updateProperties(Map<String, String[]> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            if (isPropertyName(parameter.getKey()) && parameter.getValue().length > 0) {
+                String value = parameter.getValue()[parameter.getValue().length - 1];
+                System.setProperty(parameter.getKey(), value);
+                result.append(parameter.getKey()).append('=').append(value).append('\n');
+            }
+        }
+        PropertyNames.reload();
+        perf.test.utils.PropertyNames.reload();
+        result.append("Properties reloaded.\n");
+        logger.info(result.toString());
+        return result.toString();
+    }
+
+    private static boolean isPropertyName(String name) {
+        for (PropertyNames property : PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        for (perf.test.utils.PropertyNames property : perf.test.utils.PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     protected void doStop() throws Exception {
         TestRegistry.shutdown();
@@ -3,6 +3,7 @@ package perf.test.jetty.server.tests;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -17,9 +18,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import perf.test.jetty.PropertyNames;
+import perf.test.utils.AdaptiveConcurrencyLimiter;
 import perf.test.utils.BackendResponse;
+import perf.test.utils.Deadline;
 import perf.test.utils.ServiceResponseBuilder;
 import perf.test.utils.BackendMockHostSelector;
+import perf.test.utils.DependencyGuard;
 
 /**
  * @author Nitesh Kant
@@ -29,31 +33,37 @@ public class TestCaseA extends TestCaseHandler {
     private static Logger logger = LoggerFactory.getLogger(TestCaseA.class);
 
     public static final String CALL_A_URI_WITHOUT_ID = constructUri(
+            "A",
             PropertyNames.TestCaseACallANumItems.getValueAsInt(),
             PropertyNames.TestCaseACallAItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallAItemDelay.getValueAsInt());
 
     public static final String CALL_B_URI_WITHOUT_ID = constructUri(
+            "B",
             PropertyNames.TestCaseACallBNumItems.getValueAsInt(),
             PropertyNames.TestCaseACallBItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallBItemDelay.getValueAsInt());
 
     public static final String CALL_C_URI_WITHOUT_ID = constructUri(
+            "C",
             PropertyNames.TestCaseACallCNumItems.getValueAsInt(),
             PropertyNames.TestCaseACallCItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallCItemDelay.getValueAsInt());
 
     public static final String CALL_D_URI_WITHOUT_ID = constructUri(
+            "D",
             PropertyNames.TestCaseACallDNumItems.getValueAsInt(),
             PropertyNames.TestCaseACallDItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallDItemDelay.getValueAsInt());
 
     public static final String CALL_E_URI_WITHOUT_ID = constructUri(
+            "E",
             PropertyNames.TestCaseACallENumItems.getValueAsInt(),
             PropertyNames.TestCaseACallEItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallEItemDelay.getValueAsInt());
 
     private HttpClient backendClient;
+    private final AdaptiveConcurrencyLimiter.Registry backendLimiters; // null if the limiter is disabled.
 
     public TestCaseA() throws Exception {
         super("testA");
@@ -68,15 +78,23 @@ public class TestCaseA extends TestCaseHandler {
         backendClient.setMaxConnectionsPerDestination(PropertyNames.MockBackendMaxConnectionsPerTest.getValueAsInt());
         backendClient.setMaxRequestsQueuedPerDestination(PropertyNames.MockBackendClientQueueSize.getValueAsInt());
         backendClient.start();
+        if (PropertyNames.BackendLimiterEnable.getValueAsBoolean()) {
+            backendLimiters = new AdaptiveConcurrencyLimiter.Registry(
+                    PropertyNames.BackendLimiterInitialLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMinLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMaxLimit.getValueAsInt());
+        } else {
+            backendLimiters = null;
+        }
     }
 
     @Override
     protected void doExecute(String id, Request baseRequest, final HttpServletResponse topLevelResponse,
-            final Continuation continuation, final Runnable onCompleteHandler)
+            final Continuation continuation, final Runnable onCompleteHandler, Deadline deadline)
             throws InterruptedException, ExecutionException, TimeoutException {
 
         // The below is why you should use RxJava
-        final ResponseCollector responseCollector = new ResponseCollector();
+        final ResponseCollector responseCollector = new ResponseCollector(deadline);
 
         final MoveForwardBarrier topLevelMoveFwdBarrier = new MoveForwardBarrier("top", 2);
 
@@ -113,8 +131,8 @@ public class TestCaseA extends TestCaseHandler {
                                     }
                                 };
 
-                        backendClient.newRequest(CALL_C_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey()).send(callCListener);
-                        backendClient.newRequest(CALL_D_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey()).send(callDListener);
+                        send(CALL_C_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey(), callCListener);
+                        send(CALL_D_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey(), callDListener);
                     }
                 };
 
@@ -135,19 +153,58 @@ public class TestCaseA extends TestCaseHandler {
                                         }
                                     }
                                 };
-                        backendClient.newRequest(CALL_E_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_B_INDEX].getResponseKey()).send(callEListener);
+                        send(CALL_E_URI_WITHOUT_ID + responseCollector.responses[ResponseCollector.RESPONSE_B_INDEX].getResponseKey(), callEListener);
                     }
                 };
 
-        backendClient.newRequest(CALL_A_URI_WITHOUT_ID + id).send(callAListener);
-        backendClient.newRequest(CALL_B_URI_WITHOUT_ID + id).send(callBListener);
+        send(CALL_A_URI_WITHOUT_ID + id, callAListener);
+        send(CALL_B_URI_WITHOUT_ID + id, callBListener);
+    }
+
+    /**
+     * Sends a backend request bounded by the deadline of the top level request, if any. No request is sent once the
+     * deadline has expired.
+     */
+    private void send(String uri, JettyClientResponseListener listener) {
+        Deadline deadline = listener.responseCollector.deadline;
+        org.eclipse.jetty.client.api.Request request = backendClient.newRequest(uri);
+        if (null != deadline) {
+            if (deadline.isExpired()) {
+                handleErrorFromExtCalls(listener.continuation, listener.topLevelResponse,
+                                        listener.eventualCompletionHandler, "Call " + listener.responseCollectorIndex,
+                                        "Deadline exceeded.", HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                return;
+            }
+            request.timeout(Math.max(1, deadline.getRemainingMillis()), TimeUnit.MILLISECONDS); // 0 is no timeout.
+            if (PropertyNames.RequestDeadlinePropagate.getValueAsBoolean()) {
+                request.header(Deadline.HEADER_NAME, deadline.toHeaderValue());
+            }
+        }
+        if (null != backendLimiters) {
+            AdaptiveConcurrencyLimiter backendLimiter = backendLimiters.get(DependencyGuard.dependencyName(uri, uri));
+            if (!backendLimiter.tryAcquire()) {
+                handleErrorFromExtCalls(listener.continuation, listener.topLevelResponse,
+                                        listener.eventualCompletionHandler, "Call " + listener.responseCollectorIndex,
+                                        "Backend concurrency limit reached.", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            listener.backendLimiter = backendLimiter;
+            listener.limiterStartNanos = System.nanoTime();
+        }
+        request.send(listener);
     }
 
     private void handleErrorFromExtCalls(Continuation continuation, HttpServletResponse topLevelResponse,
             Runnable onCompleteHandler, String callName, String message) {
+        handleErrorFromExtCalls(continuation, topLevelResponse, onCompleteHandler, callName, message,
+                                HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    private void handleErrorFromExtCalls(Continuation continuation, HttpServletResponse topLevelResponse,
+            Runnable onCompleteHandler, String callName, String message, int status) {
         if (continuation.isSuspended()) {
             // Fail fast
-            topLevelResponse.setStatus(500);
+            topLevelResponse.setStatus(status);
             topLevelResponse.addHeader(PropertyNames.ErrorHeaderName.getValueAsString(),
                                        "Testcase A " + callName + " failed. Error: " + String.valueOf(message)); // do addHeader here so that we get all errors till the continuation resumes.
             onCompleteHandler.run();
@@ -167,9 +224,9 @@ public class TestCaseA extends TestCaseHandler {
         return status >= 200 && status < 300;
     }
 
-    private static String constructUri(int numItems, int itemSize, int delay) {
-        String uri = String.format("%s/mock.json?numItems=%d&itemSize=%d&delay=%d&id=",
-                                      BackendMockHostSelector.getRandomBackendHost(), numItems, itemSize,
+    private static String constructUri(String type, int numItems, int itemSize, int delay) {
+        String uri = String.format("%s/mock.json?type=%s&numItems=%d&itemSize=%d&delay=%d&id=",
+                                      BackendMockHostSelector.getRandomBackendHost(), type, numItems, itemSize,
                                       delay);
         if (logger.isDebugEnabled()) {
             logger.debug("Created a new uri: " + uri);
@@ -189,6 +246,8 @@ public class TestCaseA extends TestCaseHandler {
         protected final Runnable eventualCompletionHandler;
         protected final ResponseCollector responseCollector;
         protected final int responseCollectorIndex;
+        private AdaptiveConcurrencyLimiter backendLimiter; // Set only if a backend limiter slot is acquired for this call.
+        private long limiterStartNanos;
 
 
         public JettyClientResponseListener(Continuation continuation, HttpServletResponse topLevelResponse,
@@ -205,6 +264,15 @@ public class TestCaseA extends TestCaseHandler {
 
         @Override
         public void onComplete(Result result) {
+            if (null != backendLimiter) {
+                if (null != result.getResponse() && !result.isFailed()) {
+                    backendLimiter.onResponse(limiterStartNanos, result.getResponse().getStatus());
+                } else if (result.getFailure() instanceof TimeoutException) {
+                    backendLimiter.onDropped();
+                } else {
+                    backendLimiter.onIgnore();
+                }
+            }
             if (isSuccess(result)) {
                 byte[] content = getContent();
                 try {
@@ -215,6 +283,9 @@ public class TestCaseA extends TestCaseHandler {
                     handleErrorFromExtCalls(continuation, topLevelResponse, eventualCompletionHandler, "Call A",
                                             e.getMessage());
                 }
+            } else if (null != responseCollector.deadline && responseCollector.deadline.isExpired()) {
+                handleErrorFromExtCalls(continuation, topLevelResponse, eventualCompletionHandler, "Call A",
+                                        "Deadline exceeded.", HttpServletResponse.SC_GATEWAY_TIMEOUT);
             } else {
                 handleErrorFromExtCalls(continuation, topLevelResponse, eventualCompletionHandler, "Call A", null);
             }
@@ -241,6 +312,11 @@ public class TestCaseA extends TestCaseHandler {
     public static class ResponseCollector {
 
         private BackendResponse[] responses = new BackendResponse[5];
+        private final Deadline deadline; // null if there is no deadline.
+
+        private ResponseCollector(Deadline deadline) {
+            this.deadline = deadline;
+        }
 
         private static final int RESPONSE_A_INDEX = 0;
         private static final int RESPONSE_B_INDEX = 1;
@@ -6,6 +6,7 @@ import org.eclipse.jetty.server.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import perf.test.jetty.PropertyNames;
+import perf.test.utils.Deadline;
 import perf.test.utils.ServiceResponseBuilder;
 
 import javax.servlet.http.HttpServletResponse;
@@ -40,6 +41,14 @@ public abstract class TestCaseHandler {
             return;
         }
 
+        Deadline deadline = null;
+        int deadlineMs = PropertyNames.RequestDeadlineMs.getValueAsInt();
+        if (deadlineMs > 0) {
+            deadline = Deadline.fromHeader(baseRequest.getHeader(Deadline.HEADER_NAME), deadlineMs);
+            continuation.setTimeout(Math.min(PropertyNames.TestCaseExecutionTimeoutMs.getValueAsInt(),
+                                             Math.max(1, deadline.getRemainingMillis())));
+        }
+
         continuation.suspend(response);
 
         doExecute(id, baseRequest, response, continuation, new Runnable() {
@@ -49,11 +58,16 @@ public abstract class TestCaseHandler {
                 onComplete(startTime, continuation);
             }
 
-        });
+        }, deadline);
     }
 
+    /**
+     * Executes the test case.
+     *
+     * @param deadline Deadline for all the backend calls made by this test case, {@code null} if there is none.
+     */
     protected abstract void doExecute(String id, Request baseRequest, HttpServletResponse response,
-            Continuation continuation, final Runnable onCompleteHandler) throws Exception;
+            Continuation continuation, final Runnable onCompleteHandler, Deadline deadline) throws Exception;
 
     protected void onComplete(long startTime, Continuation continuation) {
         if (!continuation.isSuspended()) {
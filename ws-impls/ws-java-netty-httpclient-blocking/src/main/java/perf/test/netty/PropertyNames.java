@@ -3,7 +3,9 @@ package perf.test.netty;
 /**
  * All the properties used by netty module. The property values are obtained as {@link System#getProperty(String, String)} for
  * the property name specified by {@link perf.test.netty.PropertyNames#getPropertyName()} with a default value as specified
- * by {@link perf.test.netty.PropertyNames#getDefaultVal()}
+ * by {@link perf.test.netty.PropertyNames#getDefaultVal()}. <br/>
+ * The values are read on their first use and cached, as they are read on every request; {@link #reload()} reads them
+ * again.
  *
  * @author Nitesh Kant (nkant@netflix.com)
  */
@@ -11,12 +13,18 @@ public enum PropertyNames {
 
     ServerHandlerEventExecutorGroupSize("server-handler.event-executor-group-size", "1000"),
     BackendRequestThreadPoolSize("backend-request.max-thread-pool-size", "2000"),
+    BackendRequestVirtualThreads("backend-request.virtual-threads", "false"), // Needs java 21, ignores the pool size.
 
     ClientConnectTimeout("client.connect.timeout", "1000"),
     ClientSocketTimeout("client.socket.timeout", "1000"),
     ClientConnectionRequestTimeout("client.connection-request.timeout", "1010"),
     ClientMaxConnectionsTotal("client.max-connections-total", "1000"),
 
+    BackendLimiterEnable("perf.test.backend.limiter.enable", "false"),
+    BackendLimiterInitialLimit("perf.test.backend.limiter.initial", "20"),
+    BackendLimiterMinLimit("perf.test.backend.limiter.min", "1"),
+    BackendLimiterMaxLimit("perf.test.backend.limiter.max", "1000"),
+
     ServerIOBlocking("http.server.io.blocking", "false"),
     ServerEventLoopCount("http.server.eventloop.count", "0"), // 0 means default, should be set if io is blocking
     ServerContextPath("http.server.context.path", "/ws-java-netty/"),
@@ -39,6 +47,7 @@ public enum PropertyNames {
 
     StatusRetrieverContextPath("http.server.status.endpoint", "status/"),
     RequestTracerContentPath("http.server.tracer.endpoint", "trace/"),
+    PropertiesContextPath("http.server.properties.endpoint", "properties/"), // Sets properties and reloads them.
 
     TestCaseACallANumItems("perf.test.testA.callA.numItems", "2"),
     TestCaseACallAItemSize("perf.test.testA.callA.itemSize", "50"),
@@ -60,14 +69,26 @@ public enum PropertyNames {
     TestCaseACallEItemSize("perf.test.testA.callE.itemSize", "30"),
     TestCaseACallEItemDelay("perf.test.testA.callE.delay", "40");
     
-    private String propertyName;
-    private String defaultVal;
+    private final String propertyName;
+    private final String defaultVal;
+    private volatile Value value; // Read on the first use, null after a reload.
 
     PropertyNames(String propertyName, String defaultVal) {
         this.propertyName = propertyName;
         this.defaultVal = defaultVal;
     }
 
+    /**
+     * Reads all the properties again on their next use, eg: after they were changed with
+     * {@link System#setProperty(String, String)}. Components that read a property once, eg: on startup, keep their
+     * value.
+     */
+    public static void reload() {
+        for (PropertyNames property : values()) {
+            property.value = null;
+        }
+    }
+
     public String getDefaultVal() {
         return defaultVal;
     }
@@ -77,15 +98,54 @@ public enum PropertyNames {
     }
 
     public boolean getValueAsBoolean() {
-        return Boolean.getBoolean(propertyName);
+        return getValue().booleanValue;
     }
 
     public int getValueAsInt() {
-        String property = System.getProperty(propertyName, defaultVal);
-        return Integer.parseInt(property);
+        Value value = getValue();
+        if (!value.isInt) {
+            return Integer.parseInt(value.stringValue); // Throws the same error as on every call before caching.
+        }
+        return value.intValue;
     }
 
     public String getValueAsString() {
-        return System.getProperty(propertyName, defaultVal);
+        return getValue().stringValue;
+    }
+
+    private Value getValue() {
+        Value value = this.value;
+        if (null == value) {
+            // As Boolean.getBoolean(), the default value is not used for a boolean.
+            value = new Value(System.getProperty(propertyName, defaultVal), Boolean.getBoolean(propertyName));
+            this.value = value; // Concurrent first reads may all read the property, with the same result.
+        }
+        return value;
+    }
+
+    /**
+     * The value of a property in all its forms, parsed once.
+     */
+    private static final class Value {
+
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final boolean isInt;
+        private final int intValue;
+
+        private Value(String stringValue, boolean booleanValue) {
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            int parsed = 0;
+            boolean parsedInt = false;
+            try {
+                parsed = Integer.parseInt(stringValue);
+                parsedInt = true;
+            } catch (NumberFormatException e) {
+                // Not an int property, the error is thrown by getValueAsInt().
+            }
+            isInt = parsedInt;
+            intValue = parsed;
+        }
     }
 }
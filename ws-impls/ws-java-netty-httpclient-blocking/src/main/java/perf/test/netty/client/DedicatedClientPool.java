@@ -34,7 +34,7 @@ class DedicatedClientPool<T, R extends HttpRequest> {
 
     public static final String RESPONSE_HANDLER_ATTR_KEY_NAME = "response_handler";
     public static final String PROCESSING_COMPLETE_PROMISE_KEY_NAME = "processing_complete_promise";
-    public static final AttributeKey<AtomicInteger> RETRY_COUNT_KEY = new AttributeKey<AtomicInteger>("retry_count");
+    public static final AttributeKey<AtomicInteger> RETRY_COUNT_KEY = AttributeKey.<AtomicInteger>valueOf("retry_count");
 
     private final String keyPrefix;
     private final AttributeKey<Promise<T>> processingCompletePromiseKey;
@@ -53,8 +53,8 @@ class DedicatedClientPool<T, R extends HttpRequest> {
 
     DedicatedClientPool(InetSocketAddress serverAddress, Bootstrap bootstrap, int maxConnections, int coreConnections) {
         keyPrefix = serverAddress.getHostName() + ':' + serverAddress.getPort();
-        responseHandlerKey = new AttributeKey<GenericFutureListener<Future<T>>>(keyPrefix + RESPONSE_HANDLER_ATTR_KEY_NAME);
-        processingCompletePromiseKey = new AttributeKey<Promise<T>>(keyPrefix + PROCESSING_COMPLETE_PROMISE_KEY_NAME);
+        responseHandlerKey = AttributeKey.<GenericFutureListener<Future<T>>>valueOf(keyPrefix + RESPONSE_HANDLER_ATTR_KEY_NAME);
+        processingCompletePromiseKey = AttributeKey.<Promise<T>>valueOf(keyPrefix + PROCESSING_COMPLETE_PROMISE_KEY_NAME);
 
         this.coreConnections = coreConnections;
         Preconditions.checkArgument(coreConnections <= maxConnections,
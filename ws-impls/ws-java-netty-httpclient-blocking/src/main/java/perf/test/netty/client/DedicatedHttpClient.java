@@ -34,6 +34,7 @@ class DedicatedHttpClient<T, R extends HttpRequest> {
     }
 
     Future<T> retry(final ChannelHandlerContext failedContext, int retryCount) {
+        @SuppressWarnings("unchecked") // Only ResponseHandlerWrapper instances are set as the response handler.
         ResponseHandlerWrapper<T> handler = (ResponseHandlerWrapper<T>) failedContext.channel().attr(owningPool.getResponseHandlerKey()).get();
         return executeRequest(handler.request, handler, retryCount);
     }
@@ -31,6 +31,8 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
@@ -57,10 +59,10 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
     private final String contextPath;
 
     private static final AttributeKey<Promise<FullHttpResponse>> promiseKey =
-            new AttributeKey<Promise<FullHttpResponse>>("req_processing_complete_promise");
+            AttributeKey.<Promise<FullHttpResponse>>valueOf("req_processing_complete_promise");
 
-    private static final AttributeKey<Boolean> testCaseRequest = new AttributeKey<Boolean>("is_test_case_request");
-    private static final AttributeKey<String> testCaseName = new AttributeKey<String>("test_case_name");
+    private static final AttributeKey<Boolean> testCaseRequest = AttributeKey.<Boolean>valueOf("is_test_case_request");
+    private static final AttributeKey<String> testCaseName = AttributeKey.<String>valueOf("test_case_name");
 
     private static final ConcurrentLinkedQueue<RequestProcessingPromise> allPromises = new ConcurrentLinkedQueue<RequestProcessingPromise>();
 
@@ -131,6 +133,13 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 response.content().writeBytes(Unpooled.copiedBuffer(traceBuilder.toString().getBytes()));
                 requestProcessingPromise.setSuccess(response);
                 handled = true;
+            } else if (path.startsWith(PropertyNames.PropertiesContextPath.getValueAsString())) {
+                ctx.channel().attr(testCaseRequest).set(false);
+                String result = updateProperties(qpDecoder.parameters());
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+                response.content().writeBytes(Unpooled.copiedBuffer(result.getBytes()));
+                requestProcessingPromise.setSuccess(response);
+                handled = true;
             }
         }
 
@@ -140,6 +149,42 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         }
     }
 
+    /**
+     * Sets the passed properties, ignoring unknown property names, and reloads all the properties, so that the values
+     * read on every request change. The values read once, eg: on startup, do not change.
+     *
+     * @return The properties that were set.
+     */
+    private String updateProperties(Map<String, List<String>> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+            if (isPropertyName(parameter.getKey()) && !parameter.getValue().isEmpty()) {
+                String value = parameter.getValue().get(parameter.getValue().size() - 1);
+                System.setProperty(parameter.getKey(), value);
+                result.append(parameter.getKey()).append('=').append(value).append('\n');
+            }
+        }
+        PropertyNames.reload();
+        perf.test.utils.PropertyNames.reload();
+        result.append("Properties reloaded.\n");
+        logger.info(result.toString());
+        return result.toString();
+    }
+
+    private static boolean isPropertyName(String name) {
+        for (PropertyNames property : PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        for (perf.test.utils.PropertyNames property : perf.test.utils.PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
 
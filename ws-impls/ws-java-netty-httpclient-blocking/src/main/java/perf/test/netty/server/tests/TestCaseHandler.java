@@ -22,6 +22,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.codehaus.jackson.JsonFactory;
@@ -33,17 +34,24 @@ import perf.test.netty.server.RequestProcessingFailedException;
 import perf.test.netty.server.RequestProcessingPromise;
 import perf.test.netty.server.ServerHandler;
 import perf.test.netty.server.StatusRetriever;
+import perf.test.utils.AdaptiveConcurrencyLimiter;
 import perf.test.utils.BackendResponse;
+import perf.test.utils.ConcurrencyLimitExceededException;
+import perf.test.utils.DependencyGuard;
 import perf.test.utils.EventLogger;
 import perf.test.utils.PerformanceLogger;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
@@ -60,16 +68,14 @@ public abstract class TestCaseHandler {
     protected final static JsonFactory jsonFactory = new JsonFactory();
 
     private final HttpClient client;
+    private final AdaptiveConcurrencyLimiter.Registry backendLimiters; // null if the limiter is disabled.
 
     private final AtomicLong testWithErrors = new AtomicLong();
     private final AtomicLong inflightTests = new AtomicLong();
     private final AtomicLong requestRecvCount = new AtomicLong();
 
     final int maxBackendThreadPoolSize = PropertyNames.BackendRequestThreadPoolSize.getValueAsInt();
-    private final ScheduledExecutorService requestExecutor =
-        new ScheduledThreadPoolExecutor(maxBackendThreadPoolSize) {{
-        this.setMaximumPoolSize(maxBackendThreadPoolSize);
-    }};
+    private final ExecutorService requestExecutor = newRequestExecutor(maxBackendThreadPoolSize);
 
 
     private final HostSelector hostSelector;
@@ -123,7 +129,7 @@ public abstract class TestCaseHandler {
 
         @Override
         public String next() {
-            final int idx = (int) Math.floor(Math.random() * this.hostCount);
+            final int idx = ThreadLocalRandom.current().nextInt(this.hostCount); // Math.random() is shared by all threads.
             return this.hosts[idx];
         }
     }
@@ -152,6 +158,41 @@ public abstract class TestCaseHandler {
             .setDefaultRequestConfig(reqConfig)
             .setConnectionManager(connMgr)
             .build();
+
+        if (PropertyNames.BackendLimiterEnable.getValueAsBoolean()) {
+            backendLimiters = new AdaptiveConcurrencyLimiter.Registry(
+                    PropertyNames.BackendLimiterInitialLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMinLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMaxLimit.getValueAsInt());
+        } else {
+            backendLimiters = null;
+        }
+    }
+
+    /**
+     * Creates the executor running the blocking backend calls: a pool of the passed number of platform threads or, if
+     * {@link PropertyNames#BackendRequestVirtualThreads} is enabled, a new virtual thread per call without any cap
+     * other than the connections of the http client. <br/>
+     * The virtual thread executor is created by reflection, so that this module still builds and runs on the older
+     * java versions, which fall back to the pool.
+     */
+    private static ExecutorService newRequestExecutor(final int poolSize) {
+        if (PropertyNames.BackendRequestVirtualThreads.getValueAsBoolean()) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executor = (ExecutorService) factory.invoke(null);
+                logger.info("Backend requests are executed on virtual threads.");
+                return executor;
+            } catch (Exception e) {
+                // NoSuchMethodException before java 19, UnsupportedOperationException wrapped on 19 & 20 without
+                // --enable-preview.
+                logger.warn("Virtual threads are not available on java " + System.getProperty("java.version")
+                            + ", backend requests are executed on a pool of " + poolSize + " threads.", e);
+            }
+        }
+        return new ScheduledThreadPoolExecutor(poolSize) {{
+            this.setMaximumPoolSize(poolSize);
+        }};
     }
 
     protected static String constructUri(String type, int numItems, int itemSize, int delay) {
@@ -243,6 +284,20 @@ public abstract class TestCaseHandler {
         PropertyNames.MockBackendPort.getValueAsString() + path;
 //            logger.debug("backend request URI: " + uri);
 
+        final AdaptiveConcurrencyLimiter backendLimiter =
+                null == backendLimiters ? null : backendLimiters.get(DependencyGuard.dependencyName(path, path));
+        if (null != backendLimiter && !backendLimiter.tryAcquire()) {
+            EventLogger.log(reqId, "backend-request-rejected " + uri);
+            final DefaultPromise<FullHttpResponse> rejected = new DefaultPromise<FullHttpResponse>(eventExecutor);
+            rejected.addListener(responseHandler);
+            rejected.setFailure(new ConcurrencyLimitExceededException("backend-request " + uri,
+                                                                      backendLimiter.getLimit()));
+            return rejected;
+        }
+        final long startNanos = System.nanoTime();
+        int statusCode = -1;
+        Exception failure = null;
+
         EventLogger.log(reqId, "backend-request-start " + uri);
         final String perfKey = "backend-request " + uri;
         perfLogger.start(reqId, perfKey);
@@ -251,7 +306,8 @@ public abstract class TestCaseHandler {
         InputStream originResStream = null;
         try {
             final HttpUriRequest originReq = new HttpGet(uri);
-            final HttpResponse originRes = (HttpResponse) this.client.execute(originReq);
+            final HttpResponse originRes = this.client.execute(originReq);
+            statusCode = originRes.getStatusLine().getStatusCode();
             final DefaultPromise<FullHttpResponse> promise = new DefaultPromise<FullHttpResponse>(eventExecutor);
             promise.addListener(responseHandler);
 
@@ -272,8 +328,19 @@ public abstract class TestCaseHandler {
 
             return promise;
         } catch (Exception e) {
+            failure = e;
             throw new RuntimeException(e);
         } finally {
+            if (null != backendLimiter) {
+                if (statusCode > 0 && null == failure) {
+                    backendLimiter.onResponse(startNanos, statusCode);
+                } else if (failure instanceof SocketTimeoutException
+                           || failure instanceof ConnectionPoolTimeoutException) {
+                    backendLimiter.onDropped();
+                } else {
+                    backendLimiter.onIgnore();
+                }
+            }
             if(originResStream != null) {
                 try {
                     originResStream.close();
@@ -365,7 +432,7 @@ public abstract class TestCaseHandler {
             } else {
                 HttpResponseStatus status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
                 Throwable cause = future.cause();
-                if (cause instanceof PoolExhaustedException) {
+                if (cause instanceof PoolExhaustedException || cause instanceof ConcurrencyLimitExceededException) {
                     status = HttpResponseStatus.SERVICE_UNAVAILABLE;
                 }
                 topLevelRequestCompletionPromise.tryFailure(new RequestProcessingFailedException(status, cause));
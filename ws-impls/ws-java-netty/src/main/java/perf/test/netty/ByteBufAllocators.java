@@ -0,0 +1,66 @@
+package perf.test.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import perf.test.netty.server.StatusRetriever;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Holder of the {@link ByteBufAllocator} used by the server and the backend client. The allocator is selected by
+ * {@link PropertyNames#ByteBufAllocatorType} and {@link PropertyNames#ByteBufPreferDirect}.
+ */
+public final class ByteBufAllocators {
+
+    private static final Logger logger = LoggerFactory.getLogger(ByteBufAllocators.class);
+
+    public static final String POOLED = "pooled";
+    public static final String UNPOOLED = "unpooled";
+
+    private static final ByteBufAllocator allocator = newAllocator();
+
+    private ByteBufAllocators() {
+    }
+
+    public static ByteBufAllocator get() {
+        return allocator;
+    }
+
+    public static void populateStatus(StatusRetriever.Status status) {
+        status.setAllocatorName(allocator.getClass().getSimpleName() + (allocator.isDirectBufferPooled() ? " (direct)" : ""));
+        if (allocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+            status.setAllocatorUsedHeapMemory(metric.usedHeapMemory());
+            status.setAllocatorUsedDirectMemory(metric.usedDirectMemory());
+        }
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gcBean.getCollectionCount()); // -1 if undefined for this collector.
+            gcTime += Math.max(0, gcBean.getCollectionTime());
+        }
+        status.setGcCount(gcCount);
+        status.setGcTimeMillis(gcTime);
+        status.setUptimeMillis(ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    private static ByteBufAllocator newAllocator() {
+        // PropertyNames.getValueAsBoolean() ignores the default value, direct buffers are preferred by default.
+        boolean preferDirect = Boolean.parseBoolean(PropertyNames.ByteBufPreferDirect.getValueAsString());
+        String type = PropertyNames.ByteBufAllocatorType.getValueAsString();
+        if (UNPOOLED.equalsIgnoreCase(type)) {
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+        if (!POOLED.equalsIgnoreCase(type)) {
+            logger.warn("Unknown allocator type " + type + " for property " + PropertyNames.ByteBufAllocatorType
+                    .getPropertyName() + ", using the pooled allocator.");
+        }
+        return new PooledByteBufAllocator(preferDirect);
+    }
+}
@@ -0,0 +1,141 @@
+package perf.test.netty;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import perf.test.netty.server.StatusRetriever;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the health of the event loops of the server and the client, enabled by
+ * {@link PropertyNames#EventLoopProbeEnable}. <br/>
+ * Every event loop runs a task that reschedules itself every {@link PropertyNames#EventLoopProbeIntervalMs}. The delay
+ * between the time the task was scheduled for and the time it runs is the lag of the event loop, ie: how long a task
+ * or an I/O event waits for the loop. The task also samples the number of pending tasks of the loop and the CPU time of
+ * the loop thread, which gives the fraction of the time the loop is busy. The number of pending tasks is only sampled
+ * by the loop itself, as the NIO and epoll loops answer it for other threads by running a task on the loop. A loop with a high lag and a high busy time
+ * is saturated, while a high latency with a low lag comes from waiting on the backend. <br/>
+ * The maximum lag and the busy time are computed over windows of {@link #WINDOW_NANOS}. A loop that is blocked does not
+ * run the task at all, so the lag read is at least the time for which the next run of the task is overdue.
+ */
+public class EventLoopProbe {
+
+    public static final String SERVER_GROUP = "server";
+    public static final String CLIENT_GROUP = "client";
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final long intervalNanos;
+    private final ConcurrentLinkedQueue<LoopProbe> probes = new ConcurrentLinkedQueue<LoopProbe>();
+
+    public EventLoopProbe() {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, PropertyNames.EventLoopProbeIntervalMs.getValueAsInt()));
+    }
+
+    /**
+     * Starts probing all the event loops of the passed group.
+     *
+     * @param groupName Name of the group, eg: server, in the status.
+     */
+    public void addEventLoopGroup(String groupName, EventLoopGroup group) {
+        int index = 0;
+        for (EventExecutor executor : group) {
+            LoopProbe probe = new LoopProbe(groupName, groupName + '-' + index++, executor);
+            probes.add(probe);
+            probe.schedule();
+        }
+    }
+
+    /**
+     * Returns the highest current lag of all the event loops of the passed group.
+     */
+    public long getMaxLagNanos(String groupName) {
+        long now = System.nanoTime();
+        long maxLag = 0;
+        for (LoopProbe probe : probes) {
+            if (probe.groupName.equals(groupName)) {
+                maxLag = Math.max(maxLag, probe.getLagNanos(now));
+            }
+        }
+        return maxLag;
+    }
+
+    public void populateStatus(StatusRetriever.Status status) {
+        long now = System.nanoTime();
+        for (LoopProbe probe : probes) {
+            StatusRetriever.EventLoopStatus loopStatus = new StatusRetriever.EventLoopStatus();
+            loopStatus.setLastLagMicros(TimeUnit.NANOSECONDS.toMicros(probe.getLagNanos(now)));
+            loopStatus.setMaxLagMicros(TimeUnit.NANOSECONDS.toMicros(probe.windowMaxLagNanos));
+            loopStatus.setGroup(probe.groupName);
+            loopStatus.setPendingTasks(probe.pendingTasks);
+            loopStatus.setBusyPercent(probe.busyPercent);
+            status.addEventLoopStatus(probe.loopName, loopStatus);
+        }
+    }
+
+    private class LoopProbe implements Runnable {
+
+        private final String groupName;
+        private final String loopName;
+        private final EventExecutor executor;
+
+        private volatile long expectedRunTime;
+        private boolean windowStarted; // false till the first run.
+        private long windowStart;
+        private long windowStartCpuTime;
+        private long currentWindowMaxLagNanos;
+
+        // Published to the status readers.
+        private volatile long lastLagNanos;
+        private volatile long windowMaxLagNanos; // Of the last complete window.
+        private volatile int pendingTasks;
+        private volatile int busyPercent = -1; // -1 if thread CPU time is not available.
+
+        private LoopProbe(String groupName, String loopName, EventExecutor executor) {
+            this.groupName = groupName;
+            this.loopName = loopName;
+            this.executor = executor;
+        }
+
+        private long getLagNanos(long now) {
+            return Math.max(lastLagNanos, now - expectedRunTime);
+        }
+
+        private void schedule() {
+            expectedRunTime = System.nanoTime() + intervalNanos;
+            executor.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long lag = Math.max(0, now - expectedRunTime);
+            lastLagNanos = lag;
+            currentWindowMaxLagNanos = Math.max(currentWindowMaxLagNanos, lag);
+            if (executor instanceof SingleThreadEventExecutor) {
+                pendingTasks = ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+            if (!windowStarted || now - windowStart >= WINDOW_NANOS) {
+                long cpuTime = threadMXBean.isCurrentThreadCpuTimeSupported()
+                               ? threadMXBean.getCurrentThreadCpuTime() : -1;
+                if (windowStarted && windowStartCpuTime >= 0 && cpuTime >= 0) {
+                    busyPercent = (int) Math.min(100, (cpuTime - windowStartCpuTime) * 100 / (now - windowStart));
+                }
+                windowMaxLagNanos = currentWindowMaxLagNanos;
+                currentWindowMaxLagNanos = 0;
+                windowStarted = true;
+                windowStart = now;
+                windowStartCpuTime = cpuTime;
+            }
+            if (!executor.isShuttingDown()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package perf.test.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for the linux native epoll transport of netty. The transport is enabled for the server by
+ * {@link PropertyNames#ServerIONativeEpoll} and for the backend client by {@link PropertyNames#ClientIONativeEpoll}.
+ * If the native library can not be loaded on this platform, NIO is used instead.
+ *
+ * @see <a href="http://netty.io/wiki/native-transports.html">Netty native transports</a>
+ */
+public final class NativeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeTransport.class);
+
+    private NativeTransport() {
+    }
+
+    /**
+     * Returns {@code true} if the passed property enables epoll and the native transport is available.
+     */
+    public static boolean isEpollEnabled(PropertyNames epollProperty) {
+        if (!epollProperty.getValueAsBoolean()) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            logger.warn("Native epoll transport requested by " + epollProperty.getPropertyName()
+                        + " but is not available, using NIO instead.", Epoll.unavailabilityCause());
+            return false;
+        }
+        return true;
+    }
+
+    public static EventLoopGroup newEpollEventLoopGroup(int threadCount) {
+        return new EpollEventLoopGroup(threadCount);
+    }
+
+    /**
+     * Applies the socket options for the accepted connections and, for epoll, the epoll specific options.
+     */
+    public static void configureServer(ServerBootstrap bootstrap, boolean epoll) {
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, isEnabled(PropertyNames.SocketTcpNoDelay));
+        if (epoll) {
+            EpollMode mode = getEpollMode();
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, mode)
+                     .childOption(EpollChannelOption.EPOLL_MODE, mode)
+                     .childOption(EpollChannelOption.TCP_QUICKACK,
+                                  PropertyNames.SocketTcpQuickAck.getValueAsBoolean());
+            if (PropertyNames.ServerReusePort.getValueAsBoolean()) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        }
+    }
+
+    /**
+     * Sets SO_REUSEPORT on the server socket, so that multiple server sockets can bind the same port. Epoll only.
+     */
+    public static void enableReusePort(ServerBootstrap bootstrap) {
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+    }
+
+    /**
+     * Applies the socket options for the backend connections and, for epoll, the epoll specific options.
+     */
+    public static void configureClient(Bootstrap bootstrap, boolean epoll) {
+        bootstrap.option(ChannelOption.TCP_NODELAY, isEnabled(PropertyNames.SocketTcpNoDelay));
+        if (epoll) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, getEpollMode())
+                     .option(EpollChannelOption.TCP_QUICKACK, PropertyNames.SocketTcpQuickAck.getValueAsBoolean());
+        }
+    }
+
+    private static EpollMode getEpollMode() {
+        return isEnabled(PropertyNames.EpollEdgeTriggered) ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+    }
+
+    // PropertyNames.getValueAsBoolean() ignores the default value, these options default to true.
+    private static boolean isEnabled(PropertyNames property) {
+        return Boolean.parseBoolean(property.getValueAsString());
+    }
+}
@@ -11,7 +11,7 @@ import perf.test.utils.netty.SourceRequestState;
  */
 public class ProcessingTimesStartInterceptor extends ChannelInboundHandlerAdapter {
 
-    public static final AttributeKey<Long> START_TIME_ATTR_KEY = new AttributeKey<Long>("requestStartTime");
+    public static final AttributeKey<Long> START_TIME_ATTR_KEY = AttributeKey.valueOf("requestStartTime");
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
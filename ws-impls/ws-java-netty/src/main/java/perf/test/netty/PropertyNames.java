@@ -3,35 +3,92 @@ package perf.test.netty;
 /**
  * All the properties used by netty module. The property values are obtained as {@link System#getProperty(String, String)} for
  * the property name specified by {@link perf.test.netty.PropertyNames#getPropertyName()} with a default value as specified
- * by {@link perf.test.netty.PropertyNames#getDefaultVal()}
+ * by {@link perf.test.netty.PropertyNames#getDefaultVal()}. <br/>
+ * The values are read on their first use and cached, as they are read on every request; {@link #reload()} reads them
+ * again.
  *
  * @author Nitesh Kant (nkant@netflix.com)
  */
 public enum PropertyNames {
 
     ServerIOBlocking("http.server.io.blocking", "false"),
+    ServerIONativeEpoll("http.server.io.epoll", "false"), // Linux only, NIO is used if epoll is not available.
+    ServerReusePort("http.server.reuseport", "false"), // Only with epoll.
+    ServerAcceptorCount("http.server.acceptor.count", "1"), // Server sockets on the port, 0 for one per event loop. Only with epoll.
+    ServerHttp2Enable("http.server.h2c.enable", "false"), // Cleartext HTTP/2 by prior knowledge or upgrade, besides HTTP/1.1.
+    ServerHttp2MaxConcurrentStreams("http.server.h2c.max.concurrent.streams", "1000"), // Per connection.
     ServerEventLoopCount("http.server.eventloop.count", "0"), // 0 means default, should be set if io is blocking
     ServerContextPath("http.server.context.path", "/ws-java-netty/"),
     ServerPort("http.server.port", "8798"),
     ServerLoggingEnable("server.log.enable", "true"),
     ServerChunkSize("server.chunk.size", "1048576"),
     ServerTraceRequests("server.trace.requests", "false"),
+    ServerTraceSampleInterval("server.trace.sample.interval", "100"), // Trace one in these many requests.
+    ServerTraceBufferSize("server.trace.buffer.size", "4096"), // Checkpoints retained per thread.
+    ServerPassThroughAggregation("server.passthrough.aggregation", "false"), // Test A items are not decoded, needs aggregated backend responses.
+    ServerAdmissionEnable("server.admission.enable", "false"),
+    ServerAdmissionAction("server.admission.action", "reject"), // reject or pause, when the server is saturated.
+    ServerAdmissionMaxInflight("server.admission.max.inflight", "1000"), // Inflight requests per test case.
+    ServerAdmissionMaxLagMs("server.admission.max.lag.ms", "0"), // Event loop lag, 0 means lag is not considered.
+    ServerAdmissionCheckIntervalMs("server.admission.check.interval.ms", "10"), // Paused connections resume interval.
+    ServerDrainTimeoutMs("server.drain.timeout.ms", "0"), // Wait for inflight requests on shutdown, 0 disables draining.
     ServerCloseConnectionOnError("server.close.conn.on.error", "false"), // Since we always serve HTTP - 1.1., we assume its keep alive.
 
     ClientIOBlocking("client.io.blocking", "false"),
+    ClientIONativeEpoll("client.io.epoll", "false"), // Linux only, NIO is used if epoll is not available.
+    ClientPipeliningDepth("client.pipelining.depth", "1"), // Maximum inflight requests per connection, 1 disables pipelining.
+    ClientEventLoopAffinity("client.eventloop.affinity", "false"), // Backend calls use the event loop of the request.
     ClientEventLoopCount("http.client.eventloop.count", "0"), // 0 means default, should be set if io is blocking
     ClientLoggingEnable("client.log.enable", "true"),
     ClientChunkSize("client.chunk.size", "1048576"),
+    ClientStreamingDecode("client.streaming.decode", "false"), // Parse backend responses as chunks arrive, instead of aggregating.
     ClientReadTimeOutSeconds("client.read.timeout.seconds", "30"),
+    ClientHttp2Enable("client.h2c.enable", "false"), // Backend calls as streams over cleartext HTTP/2 (prior knowledge).
+    ClientHttp2ConnectionsPerHost("client.h2c.connections.per.host", "2"), // Connections shared by all the streams to a backend.
+
+    EventLoopProbeEnable("netty.eventloop.probe.enable", "false"), // Always enabled with admission control.
+    EventLoopProbeIntervalMs("netty.eventloop.probe.interval.ms", "10"),
+    EpollEdgeTriggered("netty.epoll.edge.triggered", "true"), // Level triggered if false.
+    SocketTcpNoDelay("netty.socket.tcp.nodelay", "true"),
+    SocketTcpQuickAck("netty.socket.tcp.quickack", "false"), // Only with epoll.
+    ByteBufAllocatorType("netty.allocator", ByteBufAllocators.POOLED), // pooled or unpooled
+    ByteBufPreferDirect("netty.allocator.direct", "true"), // Heap buffers if false.
 
     MockBackendHost("perf.test.backend.host", "localhost"),
     MockBackendPort("perf.test.backend.port", "8989"),
     MockBackendContextPath("perf.test.backend.context.path", "/ws-backend-mock"),
+    MockBackendLoadBalancer("perf.test.backend.lb", "roundrobin"), // roundrobin or leastloaded, for multiple hosts.
     MockBackendConnectionsAtStartupPerTest("perf.test.backend.host.startupconn.per.test", "10"),
     MockBackendMaxConnectionsPerTest("perf.test.backend.host.maxconn.per.test", "10"),
+    MockBackendMaxPendingAcquiresPerTest("perf.test.backend.host.maxpending.per.test", "100"), // 0 fails immediately when exhausted.
+    MockBackendAcquireTimeoutMs("perf.test.backend.host.acquire.timeout.ms", "1000"),
+
+    RequestDeadlineMs("perf.test.request.deadline.ms", "0"), // 0 means no deadline for the top level requests.
+    RequestDeadlinePropagate("perf.test.request.deadline.propagate", "false"), // Send remaining budget to the backend.
+
+    BackendLimiterEnable("perf.test.backend.limiter.enable", "false"),
+    BackendLimiterInitialLimit("perf.test.backend.limiter.initial", "20"),
+    BackendLimiterMinLimit("perf.test.backend.limiter.min", "1"),
+    BackendLimiterMaxLimit("perf.test.backend.limiter.max", "1000"),
+
+    BackendIsolationEnable("perf.test.backend.isolation.enable", "false"), // Bulkhead & circuit breaker per call type.
+    BackendBulkheadMaxConcurrent("perf.test.backend.bulkhead.max.concurrent", "200"),
+    BackendBreakerErrorPercent("perf.test.backend.breaker.error.percent", "50"),
+    BackendBreakerMinRequests("perf.test.backend.breaker.min.requests", "20"),
+    BackendBreakerWindowMs("perf.test.backend.breaker.window.ms", "10000"),
+    BackendBreakerSleepWindowMs("perf.test.backend.breaker.sleep.window.ms", "5000"),
+
+    HedgeEnable("perf.test.backend.hedge.enable", "false"),
+    HedgeLatencyPercentile("perf.test.backend.hedge.percentile", "95"),
+    HedgeMinDelayMs("perf.test.backend.hedge.min.delay.ms", "5"),
+    HedgeMinSamples("perf.test.backend.hedge.min.samples", "100"),
+    HedgeRefreshIntervalMs("perf.test.backend.hedge.refresh.interval.ms", "1000"),
+    HedgeBudgetPercent("perf.test.backend.hedge.budget.percent", "5"), // Max hedged requests as % of primary requests.
 
     StatusRetrieverContextPath("http.server.status.endpoint", "status/"),
     RequestTracerContentPath("http.server.tracer.endpoint", "trace/"),
+    MetricsContextPath("http.server.metrics.endpoint", "metrics/"),
+    PropertiesContextPath("http.server.properties.endpoint", "properties/"), // Sets properties and reloads them.
 
     TestCaseACallANumItems("perf.test.testA.callA.numItems", "2"),
     TestCaseACallAItemSize("perf.test.testA.callA.itemSize", "50"),
@@ -53,14 +110,26 @@ public enum PropertyNames {
     TestCaseACallEItemSize("perf.test.testA.callE.itemSize", "30"),
     TestCaseACallEItemDelay("perf.test.testA.callE.delay", "40");
     
-    private String propertyName;
-    private String defaultVal;
+    private final String propertyName;
+    private final String defaultVal;
+    private volatile Value value; // Read on the first use, null after a reload.
 
     PropertyNames(String propertyName, String defaultVal) {
         this.propertyName = propertyName;
         this.defaultVal = defaultVal;
     }
 
+    /**
+     * Reads all the properties again on their next use, eg: after they were changed with
+     * {@link System#setProperty(String, String)}. Components that read a property once, eg: on startup, keep their
+     * value.
+     */
+    public static void reload() {
+        for (PropertyNames property : values()) {
+            property.value = null;
+        }
+    }
+
     public String getDefaultVal() {
         return defaultVal;
     }
@@ -70,15 +139,54 @@ public enum PropertyNames {
     }
 
     public boolean getValueAsBoolean() {
-        return Boolean.getBoolean(propertyName);
+        return getValue().booleanValue;
     }
 
     public int getValueAsInt() {
-        String property = System.getProperty(propertyName, defaultVal);
-        return Integer.parseInt(property);
+        Value value = getValue();
+        if (!value.isInt) {
+            return Integer.parseInt(value.stringValue); // Throws the same error as on every call before caching.
+        }
+        return value.intValue;
     }
 
     public String getValueAsString() {
-        return System.getProperty(propertyName, defaultVal);
+        return getValue().stringValue;
+    }
+
+    private Value getValue() {
+        Value value = this.value;
+        if (null == value) {
+            // As Boolean.getBoolean(), the default value is not used for a boolean.
+            value = new Value(System.getProperty(propertyName, defaultVal), Boolean.getBoolean(propertyName));
+            this.value = value; // Concurrent first reads may all read the property, with the same result.
+        }
+        return value;
+    }
+
+    /**
+     * The value of a property in all its forms, parsed once.
+     */
+    private static final class Value {
+
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final boolean isInt;
+        private final int intValue;
+
+        private Value(String stringValue, boolean booleanValue) {
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            int parsed = 0;
+            boolean parsedInt = false;
+            try {
+                parsed = Integer.parseInt(stringValue);
+                parsedInt = true;
+            } catch (NumberFormatException e) {
+                // Not an int property, the error is thrown by getValueAsInt().
+            }
+            isInt = parsedInt;
+            intValue = parsed;
+        }
     }
 }
@@ -0,0 +1,193 @@
+package perf.test.netty;
+
+import perf.test.utils.TraceRingBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sampled tracing of the test case requests and their backend calls. Tracing is enabled by
+ * {@link PropertyNames#ServerTraceRequests} and one in {@link PropertyNames#ServerTraceSampleInterval} requests is
+ * traced. <br/>
+ * Every thread records the checkpoints of the traced requests in its own {@link TraceRingBuffer}, so tracing does not
+ * allocate or contend on the request path and can stay enabled under full load. The trace endpoint merges the buffers of
+ * all threads and prints the checkpoints grouped by trace. Only the most recent checkpoints of every thread are
+ * retained, so older traces may be incomplete.
+ */
+public final class RequestTracer {
+
+    public static final long NOT_TRACED = 0;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<TraceRingBuffer> allBuffers = new ConcurrentLinkedQueue<TraceRingBuffer>();
+    private static final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState(threadCount.incrementAndGet());
+        }
+    };
+
+    private RequestTracer() {
+    }
+
+    public enum Checkpoint {
+
+        RequestReceived("Request received"),
+        ResponseCompleted("Response completed", "status"),
+        ResponseFlushed("Response flushed"),
+        BackendCallSent("Backend call sent", "call"),
+        BackendCallSucceeded("Backend call succeeded", "call"),
+        BackendCallFailed("Backend call failed", "call"),
+        ConnectionAcquired("Connection acquired"),
+        ConnectionAcquireFailed("Connection acquire failed"),
+        CancelledBeforeEnqueue("Cancelled before enqueue"),
+        RequestEnqueued("Request enqueued"),
+        RequestWritten("Request written", "retry"),
+        WriteSucceeded("Write succeeded"),
+        WriteFailed("Write failed"),
+        PipelinedWriteSucceeded("Pipelined write succeeded"),
+        ResponseReceived("Response received", "client"),
+        ResponsePromiseCompleted("Response promise completed", "client"),
+        ClientException("Exception on client handler", "client"),
+        RetriesExhausted("Retries exhausted", "client"),
+        ClientChannelInactive("Channel inactive", "client");
+
+        private static final Checkpoint[] byCode = values();
+
+        private final String description;
+        private final String argName; // null if the argument is not printed.
+
+        Checkpoint(String description) {
+            this(description, null);
+        }
+
+        Checkpoint(String description, String argName) {
+            this.description = description;
+            this.argName = argName;
+        }
+    }
+
+    /**
+     * Decides whether a new request is traced.
+     *
+     * @return Id of the new trace, {@link #NOT_TRACED} if the request is not traced.
+     */
+    public static long startTrace() {
+        if (!PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
+            return NOT_TRACED;
+        }
+        ThreadState state = threadState.get();
+        int interval = PropertyNames.ServerTraceSampleInterval.getValueAsInt();
+        if (interval > 1 && state.requestCount++ % interval != 0) {
+            return NOT_TRACED;
+        }
+        return ((long) state.threadIndex << 40) | ++state.traceSequence;
+    }
+
+    /**
+     * Records a checkpoint for the passed trace in the buffer of the calling thread. Does nothing if the trace id is
+     * {@link #NOT_TRACED}.
+     */
+    public static void record(long traceId, Checkpoint checkpoint, long arg) {
+        if (NOT_TRACED != traceId) {
+            threadState.get().getBuffer().record(traceId, checkpoint.ordinal(), arg);
+        }
+    }
+
+    public static void record(long traceId, Checkpoint checkpoint) {
+        record(traceId, checkpoint, 0);
+    }
+
+    /**
+     * Sets the trace to which the backend calls made by the calling thread, till {@link #clearCurrentTrace()}, belong.
+     */
+    public static void setCurrentTrace(long traceId) {
+        if (NOT_TRACED != traceId) {
+            threadState.get().currentTraceId = traceId;
+        }
+    }
+
+    public static void clearCurrentTrace() {
+        threadState.get().currentTraceId = NOT_TRACED;
+    }
+
+    public static long getCurrentTrace() {
+        return threadState.get().currentTraceId;
+    }
+
+    public static void populateTrace(StringBuilder traceBuilder) {
+        List<TraceRingBuffer.Checkpoint> checkpoints = new ArrayList<TraceRingBuffer.Checkpoint>();
+        for (TraceRingBuffer buffer : allBuffers) {
+            buffer.snapshot(checkpoints);
+        }
+        Collections.sort(checkpoints, new Comparator<TraceRingBuffer.Checkpoint>() {
+            @Override
+            public int compare(TraceRingBuffer.Checkpoint first, TraceRingBuffer.Checkpoint second) {
+                long diff = first.getNanoTime() - second.getNanoTime(); // nanoTime values must be compared by diff.
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        Map<Long, List<TraceRingBuffer.Checkpoint>> traces = new LinkedHashMap<Long, List<TraceRingBuffer.Checkpoint>>();
+        for (TraceRingBuffer.Checkpoint checkpoint : checkpoints) {
+            List<TraceRingBuffer.Checkpoint> trace = traces.get(checkpoint.getTraceId());
+            if (null == trace) {
+                trace = new ArrayList<TraceRingBuffer.Checkpoint>();
+                traces.put(checkpoint.getTraceId(), trace);
+            }
+            trace.add(checkpoint);
+        }
+
+        traceBuilder.append("Traces: ").append(traces.size()).append(", sampling one in ")
+                    .append(Math.max(1, PropertyNames.ServerTraceSampleInterval.getValueAsInt()))
+                    .append(" requests.").append('\n');
+        for (Map.Entry<Long, List<TraceRingBuffer.Checkpoint>> trace : traces.entrySet()) {
+            traceBuilder.append("****************************************").append('\n');
+            traceBuilder.append("Trace Id: ").append(Long.toHexString(trace.getKey())).append('\n');
+            long start = trace.getValue().get(0).getNanoTime();
+            for (TraceRingBuffer.Checkpoint checkpoint : trace.getValue()) {
+                traceBuilder.append("-> +")
+                            .append(TimeUnit.NANOSECONDS.toMicros(checkpoint.getNanoTime() - start))
+                            .append("us [").append(checkpoint.getOwner()).append("] ");
+                if (checkpoint.getCode() < 0 || checkpoint.getCode() >= Checkpoint.byCode.length) {
+                    traceBuilder.append("Unknown checkpoint ").append(checkpoint.getCode()).append('\n');
+                    continue;
+                }
+                Checkpoint type = Checkpoint.byCode[checkpoint.getCode()];
+                traceBuilder.append(type.description);
+                if (null != type.argName) {
+                    traceBuilder.append(" (").append(type.argName).append(": ").append(checkpoint.getArg()).append(')');
+                }
+                traceBuilder.append('\n');
+            }
+        }
+    }
+
+    private static class ThreadState {
+
+        private final int threadIndex;
+        private TraceRingBuffer buffer; // Created on the first checkpoint of this thread.
+        private long requestCount;
+        private long traceSequence;
+        private long currentTraceId = NOT_TRACED;
+
+        private ThreadState(int threadIndex) {
+            this.threadIndex = threadIndex;
+        }
+
+        private TraceRingBuffer getBuffer() {
+            if (null == buffer) {
+                buffer = new TraceRingBuffer(Thread.currentThread().getName(),
+                                             PropertyNames.ServerTraceBufferSize.getValueAsInt());
+                allBuffers.add(buffer);
+            }
+            return buffer;
+        }
+    }
+}
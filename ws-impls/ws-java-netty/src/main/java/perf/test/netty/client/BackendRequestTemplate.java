@@ -0,0 +1,126 @@
+package perf.test.netty.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import perf.test.utils.DependencyGuard;
+
+import javax.annotation.Nullable;
+
+/**
+ * A backend GET request that only differs by the id at the end of its uri, eg: one of the calls of a test case. <br/>
+ * The start of the request line is encoded once, so that a request created from this template is encoded by the
+ * {@link TemplateRequestEncoder} by copying the encoded request line and headers and only writing the id. The uri of a
+ * request is only built as a string if it is read, eg: by the HTTP/2 client or when the request has other headers and
+ * is encoded as any other request.
+ */
+public class BackendRequestTemplate {
+
+    private final String uriPrefix;
+    private final String dependencyName;
+    private final ByteBuf encodedPrefix; // "GET <uriPrefix>"
+
+    /**
+     * @param uriPrefix The complete uri of the request, including the context path, without the id.
+     */
+    public BackendRequestTemplate(String uriPrefix) {
+        this.uriPrefix = uriPrefix;
+        dependencyName = DependencyGuard.dependencyName(uriPrefix, uriPrefix);
+        byte[] prefix = (HttpMethod.GET.name() + ' ' + uriPrefix).getBytes(CharsetUtil.UTF_8);
+        encodedPrefix = Unpooled.unreleasableBuffer(Unpooled.directBuffer(prefix.length).writeBytes(prefix));
+    }
+
+    public FullHttpRequest newRequest(String id) {
+        return new TemplateHttpRequest(this, id, 0);
+    }
+
+    public FullHttpRequest newRequest(long id) {
+        return new TemplateHttpRequest(this, null, id);
+    }
+
+    public String getUriPrefix() {
+        return uriPrefix;
+    }
+
+    /**
+     * Returns the name of the backend dependency of the passed request, as per
+     * {@link DependencyGuard#dependencyName(String, String)}, without building the uri of a request created from a
+     * template.
+     */
+    public static String getDependencyName(HttpRequest request) {
+        if (request instanceof TemplateHttpRequest) {
+            return ((TemplateHttpRequest) request).template.dependencyName;
+        }
+        String uri = request.uri();
+        return DependencyGuard.dependencyName(uri, uri);
+    }
+
+    /**
+     * A request created from a template, without content. Its content is shared and not reference counted, so the
+     * request can be written again, eg: on a retry.
+     */
+    static final class TemplateHttpRequest extends DefaultFullHttpRequest {
+
+        private final BackendRequestTemplate template;
+        @Nullable private final String stringId; // null if the id is a number.
+        private final long longId;
+        @Nullable private String uri; // Built on the first read.
+
+        private TemplateHttpRequest(BackendRequestTemplate template, @Nullable String stringId, long longId) {
+            super(HttpVersion.HTTP_1_1, HttpMethod.GET, template.uriPrefix, Unpooled.EMPTY_BUFFER);
+            this.template = template;
+            this.stringId = stringId;
+            this.longId = longId;
+        }
+
+        @Override
+        public String uri() {
+            if (null == uri) {
+                uri = template.uriPrefix + (null != stringId ? stringId : String.valueOf(longId));
+            }
+            return uri;
+        }
+
+        /**
+         * Writes the request line upto the end of the uri.
+         */
+        void encodeRequestLineStart(ByteBuf out) {
+            out.writeBytes(template.encodedPrefix, template.encodedPrefix.readerIndex(),
+                           template.encodedPrefix.readableBytes());
+            if (null != stringId) {
+                ByteBufUtil.writeUtf8(out, stringId);
+            } else {
+                writeDecimal(out, longId);
+            }
+        }
+
+        int getMaxRequestLineStartLength() {
+            return template.encodedPrefix.readableBytes()
+                   + (null != stringId ? ByteBufUtil.utf8MaxBytes(stringId) : 20); // 20: Digits and sign of a long.
+        }
+
+        private static void writeDecimal(ByteBuf out, long value) {
+            if (value == Long.MIN_VALUE) {
+                ByteBufUtil.writeAscii(out, String.valueOf(value)); // Can not be negated.
+                return;
+            }
+            if (value < 0) {
+                out.writeByte('-');
+                value = -value;
+            }
+            long divisor = 1;
+            while (value / divisor >= 10) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                out.writeByte((int) ('0' + value / divisor % 10));
+            }
+        }
+    }
+}
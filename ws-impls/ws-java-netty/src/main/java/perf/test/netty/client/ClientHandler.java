@@ -9,8 +9,9 @@ import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import perf.test.netty.PropertyNames;
+import perf.test.netty.RequestTracer;
 
+import java.nio.channels.ClosedChannelException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -31,38 +32,44 @@ public class ClientHandler extends SimpleChannelInboundHandler<FullHttpResponse>
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+        if (pool.isPipelining()) {
+            onPipelinedResponse(ctx, response);
+            return;
+        }
         AtomicInteger retries = ctx.channel().attr(DedicatedClientPool.RETRY_COUNT_KEY).get();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Response completed after {} retries", null == retries ? 0 : retries);
         }
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            checkpoint(ctx, "Response completed after retries: " + retries);
-        }
+        checkpoint(ctx, RequestTracer.Checkpoint.ResponseReceived);
 
         retries.set(0); // Response received so reset retry.
 
         Promise<FullHttpResponse> completionPromise = ctx.channel().attr(pool.getProcessingCompletePromiseKey()).get();
         response.content().retain();
         if (!completionPromise.trySuccess(response)) {
-            logger.warn("Promise finished before response arrived. Response code: " + response.getStatus().code()
+            logger.warn("Promise finished before response arrived. Response code: " + response.status().code()
                         + ". Promise result: " + completionPromise.getNow());
+            response.content().release();
         }
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            checkpoint(ctx, "Promise completed.");
-        }
+        checkpoint(ctx, RequestTracer.Checkpoint.ResponsePromiseCompleted);
     }
 
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (pool.isPipelining()) {
+            logger.error("Client id: " + id + ". Client handler got an error, failing all pipelined requests.", cause);
+            pool.onRetryExhausted(cause, 0);
+            failPipelinedRequests(ctx, cause);
+            ctx.close();
+            return;
+        }
         // Handlers are thread-safe i.e. they do not get invoked concurrently by netty, so you can safely assume that
         // error & success do not happen concurrently.
         final int retryCount = ctx.channel().attr(DedicatedClientPool.RETRY_COUNT_KEY).get().incrementAndGet();
         logger.error("Client id: " + id + ". Client handler got an error. Retry count: " + retryCount, cause);
 
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            checkpoint(ctx, "Exception on client handler" + cause);
-        }
+        checkpoint(ctx, RequestTracer.Checkpoint.ClientException);
 
         final RequestExecutionPromise<FullHttpResponse> completionPromise = ctx.channel().attr(pool.getProcessingCompletePromiseKey()).get();
         if (null == completionPromise) {
@@ -72,9 +79,7 @@ public class ClientHandler extends SimpleChannelInboundHandler<FullHttpResponse>
         }
 
         if (retryCount > MAX_RETRIES) {
-            if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                checkpoint(ctx, "Retries exhausted.");
-            }
+            checkpoint(ctx, RequestTracer.Checkpoint.RetriesExhausted);
             pool.onRetryExhausted(cause, retryCount);
             completionPromise.setFailure(cause);
             return;
@@ -97,21 +102,42 @@ public class ClientHandler extends SimpleChannelInboundHandler<FullHttpResponse>
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            checkpoint(ctx, "Channel Inactive.");
+        if (pool.isPipelining()) {
+            failPipelinedRequests(ctx, new ClosedChannelException());
         }
+        checkpoint(ctx, RequestTracer.Checkpoint.ClientChannelInactive);
     }
 
 
-    private void checkpoint(ChannelHandlerContext ctx, String checkpoint) {
-        checkpoint = "ClientId: " + id + ' ' + checkpoint;
+    private void onPipelinedResponse(ChannelHandlerContext ctx, FullHttpResponse response) {
+        DedicatedHttpClient<FullHttpResponse, FullHttpRequest> httpClient = ctx.channel().attr(pool.getHttpClientKey()).get();
+        Promise<FullHttpResponse> completionPromise = null != httpClient ? httpClient.pollPipelinedRequest() : null;
+        if (null == completionPromise) {
+            logger.error("Client id: " + id + ". Received a response without an inflight pipelined request.");
+            pool.onUnhandledRequest();
+            return;
+        }
+        response.content().retain();
+        if (!completionPromise.trySuccess(response)) {
+            response.content().release(); // Cancelled, the response is read to keep the pipeline in order.
+        }
+    }
+
+    private void failPipelinedRequests(ChannelHandlerContext ctx, Throwable cause) {
+        DedicatedHttpClient<FullHttpResponse, FullHttpRequest> httpClient = ctx.channel().attr(pool.getHttpClientKey()).get();
+        if (null != httpClient) {
+            httpClient.failPipelinedRequests(cause);
+        }
+    }
+
+    private void checkpoint(ChannelHandlerContext ctx, RequestTracer.Checkpoint checkpoint) {
         final GenericFutureListener<Future<FullHttpResponse>> responseHandler = ctx.channel().attr(
                 pool.getResponseHandlerKey()).get();
         if (null != responseHandler && DedicatedHttpClient.ResponseHandlerWrapper.class.isAssignableFrom(responseHandler.getClass())) {
             @SuppressWarnings("rawtypes")
             DedicatedHttpClient.ResponseHandlerWrapper wrapper =
                     (DedicatedHttpClient.ResponseHandlerWrapper) responseHandler;
-            wrapper.getProcessingFinishPromise().checkpoint(checkpoint);
+            wrapper.getProcessingFinishPromise().checkpoint(checkpoint, id);
         }
     }
 }
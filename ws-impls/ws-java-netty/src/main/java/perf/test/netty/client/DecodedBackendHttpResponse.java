@@ -0,0 +1,43 @@
+package perf.test.netty.client;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import perf.test.utils.BackendResponse;
+
+import javax.annotation.Nullable;
+
+/**
+ * A backend response whose content has already been parsed by {@link StreamingBackendResponseDecoder}. The content of
+ * this response is always empty.
+ */
+public class DecodedBackendHttpResponse extends DefaultFullHttpResponse {
+
+    @Nullable private final BackendResponse backendResponse;
+    @Nullable private final Throwable decodeFailure;
+
+    DecodedBackendHttpResponse(HttpVersion version, HttpResponseStatus status,
+                               @Nullable BackendResponse backendResponse, @Nullable Throwable decodeFailure) {
+        super(version, status, Unpooled.EMPTY_BUFFER);
+        this.backendResponse = backendResponse;
+        this.decodeFailure = decodeFailure;
+    }
+
+    /**
+     * Returns the parsed content, {@code null} if the status was not {@link HttpResponseStatus#OK} or if the content
+     * could not be parsed.
+     */
+    @Nullable
+    public BackendResponse getBackendResponse() {
+        return backendResponse;
+    }
+
+    /**
+     * Returns the error in parsing the content, if any.
+     */
+    @Nullable
+    public Throwable getDecodeFailure() {
+        return decodeFailure;
+    }
+}
@@ -15,19 +15,38 @@ import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import perf.test.netty.server.MetricsRetriever;
 import perf.test.netty.server.StatusRetriever;
+import perf.test.utils.LatencyHistogram;
 
 import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *
+ * A pool of connections to a single backend server. <br/>
+ * By default, all idle connections are kept in a single queue shared by all event loops. If the pool is created with
+ * event loop affinity, the idle connections are partitioned by the event loop they are registered with and a
+ * connection is only handed out to a caller running on the same event loop. New connections for a caller are created
+ * on the caller's event loop, so a request and all its backend calls are processed by a single thread. <br/>
+ * When all connections are in use, a caller waits for a connection in a bounded queue of pending acquires, for at most
+ * the acquire timeout. A connection returned to the pool is handed to the oldest waiter, irrespective of its event loop.
+ * With event loop affinity, a caller whose partition is empty when no more connections can be created also waits, and
+ * the idle connections of the other partitions are then handed to the waiters, so that they are not stranded while
+ * other event loops time out.
+ * <br/>
+ * With a pipelining depth greater than one, a connection is handed out to multiple callers at the same time, till it
+ * carries that many inflight requests. A connection stays available as long as it can take another request, so new
+ * connections are only created when all connections are fully used.
  *
  * @author Nitesh Kant
  */
@@ -35,13 +54,18 @@ class DedicatedClientPool<T, R extends HttpRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DedicatedClientPool.class);
 
+    private static final int ACQUIRE_WAIT_HISTOGRAM_MAX_MILLIS = 10000;
+    private static final double LATENCY_EWMA_WEIGHT = 0.1; // Weight of a new sample in the latency average.
+
     public static final String RESPONSE_HANDLER_ATTR_KEY_NAME = "response_handler";
     public static final String PROCESSING_COMPLETE_PROMISE_KEY_NAME = "processing_complete_promise";
-    public static final AttributeKey<AtomicInteger> RETRY_COUNT_KEY = new AttributeKey<AtomicInteger>("retry_count");
+    public static final String HTTP_CLIENT_KEY_NAME = "http_client";
+    public static final AttributeKey<AtomicInteger> RETRY_COUNT_KEY = AttributeKey.valueOf("retry_count");
 
     private final String keyPrefix;
     private final AttributeKey<RequestExecutionPromise<T>> processingCompletePromiseKey;
     private final AttributeKey<GenericFutureListener<Future<T>>> responseHandlerKey;
+    private final AttributeKey<DedicatedHttpClient<T, R>> httpClientKey;
 
     protected final Bootstrap bootstrap;
     protected final InetSocketAddress serverAddress;
@@ -54,11 +78,32 @@ class DedicatedClientPool<T, R extends HttpRequest> {
     private final LinkedBlockingQueue<Object> clientLimitEnforcer;
     private final ConcurrentLinkedQueue<DedicatedHttpClient<T,R>> availableClients; // unbounded as the # of conn is bounded by allClients queue.
     private final int coreConnections;
+    @Nullable private final ConcurrentHashMap<EventLoop, EventLoopPartition> partitions; // null if not event loop affine.
+
+    private final int pipeliningDepth;
+    private final int maxPendingAcquires;
+    private final long acquireTimeoutMs;
+    private final ConcurrentLinkedQueue<PendingAcquire> pendingAcquires = new ConcurrentLinkedQueue<PendingAcquire>();
+    private final AtomicInteger pendingAcquireCount = new AtomicInteger(); // ConcurrentLinkedQueue.size() is O(n)
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+    private final LatencyHistogram acquireWaitTimes = new LatencyHistogram(ACQUIRE_WAIT_HISTOGRAM_MAX_MILLIS);
+    private final LatencyHistogram acquireTimes = new LatencyHistogram(ACQUIRE_WAIT_HISTOGRAM_MAX_MILLIS); // All acquires.
+
+    private final AtomicInteger inflightRequests = new AtomicInteger();
+    private volatile double latencyEwmaMicros; // 0 till the first request completes. Concurrent updates may be lost.
 
     DedicatedClientPool(InetSocketAddress serverAddress, Bootstrap bootstrap, int maxConnections, int coreConnections) {
+        this(serverAddress, bootstrap, maxConnections, coreConnections, 1, 0, 0, false);
+    }
+
+    DedicatedClientPool(InetSocketAddress serverAddress, Bootstrap bootstrap, int maxConnections, int coreConnections,
+                        int pipeliningDepth, int maxPendingAcquires, long acquireTimeoutMs, boolean eventLoopAffinity) {
         keyPrefix = serverAddress.getHostName() + ':' + serverAddress.getPort();
-        responseHandlerKey = new AttributeKey<GenericFutureListener<Future<T>>>(keyPrefix + RESPONSE_HANDLER_ATTR_KEY_NAME);
-        processingCompletePromiseKey = new AttributeKey<RequestExecutionPromise<T>>(keyPrefix + PROCESSING_COMPLETE_PROMISE_KEY_NAME);
+        responseHandlerKey = AttributeKey.valueOf(keyPrefix + RESPONSE_HANDLER_ATTR_KEY_NAME);
+        processingCompletePromiseKey = AttributeKey.valueOf(keyPrefix + PROCESSING_COMPLETE_PROMISE_KEY_NAME);
+        httpClientKey = AttributeKey.valueOf(keyPrefix + HTTP_CLIENT_KEY_NAME);
+        Preconditions.checkArgument(pipeliningDepth >= 1, "Pipelining depth must be at least 1.");
+        this.pipeliningDepth = pipeliningDepth;
 
         this.coreConnections = coreConnections;
         Preconditions.checkArgument(coreConnections <= maxConnections,
@@ -68,6 +113,9 @@ class DedicatedClientPool<T, R extends HttpRequest> {
         this.serverAddress = serverAddress;
         clientLimitEnforcer = new LinkedBlockingQueue<Object>(this.maxConnections);
         availableClients = new ConcurrentLinkedQueue<DedicatedHttpClient<T, R>>();
+        partitions = eventLoopAffinity ? new ConcurrentHashMap<EventLoop, EventLoopPartition>() : null;
+        this.maxPendingAcquires = maxPendingAcquires;
+        this.acquireTimeoutMs = acquireTimeoutMs;
     }
 
     void init() {
@@ -81,6 +129,21 @@ class DedicatedClientPool<T, R extends HttpRequest> {
     }
 
     private Promise<DedicatedHttpClient<T, R>> createNewClientOnDemand(@Nullable final ConnectCompletePromise<T, R> completionPromise) {
+        return createNewClientOnDemand(completionPromise, bootstrap);
+    }
+
+    private Promise<DedicatedHttpClient<T, R>> createNewClientOnDemand(@Nullable final ConnectCompletePromise<T, R> completionPromise,
+                                                                      Bootstrap bootstrap) {
+        return createNewClientOnDemand(completionPromise, bootstrap, null);
+    }
+
+    /**
+     * @param waiting The waiter of the passed promise if it already waited, it then keeps waiting until its original
+     *                acquire timeout if no connection can be created.
+     */
+    private Promise<DedicatedHttpClient<T, R>> createNewClientOnDemand(@Nullable final ConnectCompletePromise<T, R> completionPromise,
+                                                                      Bootstrap bootstrap,
+                                                                      @Nullable PendingAcquire waiting) {
         final Object clientLimitEnforcingToken = new Object();
         if (clientLimitEnforcer.offer(clientLimitEnforcingToken)) {
             ChannelFuture connectFuture = bootstrap.connect(serverAddress);
@@ -111,7 +174,7 @@ class DedicatedClientPool<T, R extends HttpRequest> {
                         "Eager connection attempt failed. Pool exhausted, can not create any more connection to host {} and port {}.",
                         serverAddress.getHostName(),
                         serverAddress.getPort());
-            } else {
+            } else if (!addPendingAcquire(completionPromise, waiting)) {
                 logger.error(
                         "On demand connection attempt failed. Pool exhausted, can not create any more connection to host {} and port {}.",
                         serverAddress.getHostName(),
@@ -122,11 +185,136 @@ class DedicatedClientPool<T, R extends HttpRequest> {
         return completionPromise;
     }
 
+    private boolean addPendingAcquire(ConnectCompletePromise<T, R> completionPromise, @Nullable PendingAcquire waiting) {
+        if (pendingAcquireCount.incrementAndGet() > maxPendingAcquires) {
+            pendingAcquireCount.decrementAndGet();
+            return false;
+        }
+        PendingAcquire pendingAcquire = null == waiting ? new PendingAcquire(completionPromise) : waiting;
+        pendingAcquires.add(pendingAcquire);
+        if (null == waiting) {
+            pendingAcquire.start();
+        } else if (waiting.timedOut) {
+            waiting.run(); // Timed out while it was not waiting, a waiter added again keeps its original timeout.
+        }
+
+        // A connection may have been returned or closed before this waiter was visible.
+        @Nullable DedicatedHttpClient<T, R> availableClient = availableClients.poll();
+        if (null != availableClient) {
+            returnClient(availableClient);
+        }
+        if (null != partitions) {
+            for (EventLoopPartition partition : partitions.values()) {
+                if (partition.availableCount > 0) {
+                    partition.offerToWaiters(); // A partition released afterwards offers to the waiters itself.
+                }
+            }
+        }
+        if (clientLimitEnforcer.remainingCapacity() > 0) {
+            connectForPendingAcquire();
+        }
+        return true;
+    }
+
+    @Nullable
+    private PendingAcquire pollPendingAcquire() {
+        PendingAcquire pendingAcquire = pendingAcquires.poll();
+        if (null != pendingAcquire) {
+            pendingAcquireCount.decrementAndGet();
+        }
+        return pendingAcquire;
+    }
+
+    private boolean removePendingAcquire(PendingAcquire pendingAcquire) {
+        if (pendingAcquires.remove(pendingAcquire)) {
+            pendingAcquireCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+
+    private void connectForPendingAcquire() {
+        @Nullable PendingAcquire pendingAcquire = pollPendingAcquire();
+        if (null != pendingAcquire && !pendingAcquire.promise.isDone()) {
+            // Connects on the event loop of the waiter, if affine. Waits again if another caller got the capacity first.
+            createNewClientOnDemand(pendingAcquire.promise, getBootstrap(pendingAcquire.promise.executor()),
+                                    pendingAcquire);
+        }
+    }
+
+    /**
+     * Hands the passed client to the oldest waiters, as long as it can take more requests, and makes it available for
+     * later callers if it still can take more requests. The passed client must not be in the available clients.
+     */
+    private void offerAvailableClient(DedicatedHttpClient<T, R> httpClient) {
+        offerToWaiters(httpClient);
+        if (httpClient.hasCapacity()) {
+            addAvailableClient(httpClient);
+            if (null == partitions && !pendingAcquires.isEmpty()) {
+                // A waiter added after offerToWaiters() may have polled the available clients before this one was added.
+                @Nullable DedicatedHttpClient<T, R> availableClient = availableClients.poll();
+                if (null != availableClient) {
+                    returnClient(availableClient);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the passed client to the oldest waiters, as long as it can take more requests.
+     */
+    private void offerToWaiters(DedicatedHttpClient<T, R> httpClient) {
+        while (httpClient.tryReserve()) {
+            @Nullable PendingAcquire pendingAcquire = pollPendingAcquire();
+            if (null == pendingAcquire) {
+                httpClient.cancelReservation();
+                break;
+            }
+            if (pendingAcquire.promise.trySuccess(httpClient)) {
+                acquireWaitTimes.record(System.currentTimeMillis() - pendingAcquire.startTime);
+            } else {
+                httpClient.cancelReservation();
+            }
+        }
+    }
+
+    /**
+     * Reserves a request on a client taken from the available clients and makes it available again if it can take more
+     * requests.
+     *
+     * @return {@code false} if the client can not take any more requests.
+     */
+    private boolean reserveAvailableClient(DedicatedHttpClient<T, R> httpClient) {
+        if (!httpClient.tryReserve()) {
+            return false; // Made available again when one of its requests completes.
+        }
+        if (httpClient.hasCapacity()) {
+            addAvailableClient(httpClient);
+        }
+        return true;
+    }
+
     private void addAvailableClient(DedicatedHttpClient<T, R> httpClient) {
-        availableClients.add(httpClient);
+        if (null != partitions) {
+            getPartition(httpClient.eventLoop()).release(httpClient);
+        } else {
+            availableClients.add(httpClient);
+        }
+    }
+
+    private void removeAvailableClient(DedicatedHttpClient<T, R> httpClient) {
+        if (null != partitions) {
+            getPartition(httpClient.eventLoop()).remove(httpClient);
+        } else {
+            availableClients.remove(httpClient);
+        }
     }
 
     Future<DedicatedHttpClient<T, R>> getClient(EventExecutor executor) {
+        if (isAffine(executor)) {
+            return getPartition((EventLoop) executor).acquire();
+        }
         int retryCount = 0;
         while (true) {
             @Nullable DedicatedHttpClient<T, R> availableClient = availableClients.poll();
@@ -134,7 +322,12 @@ class DedicatedClientPool<T, R extends HttpRequest> {
             if (null == availableClient) {
                 return createNewClientOnDemand(clientCreationPromise);
             } else if(availableClient.isActive()){
-                clientCreationPromise.setSuccess(availableClient);
+                if (!reserveAvailableClient(availableClient)) {
+                    continue;
+                }
+                if (!clientCreationPromise.trySuccess(availableClient)) {
+                    releaseClient(availableClient);
+                }
                 return clientCreationPromise;
             } else {
                 logger.info("Got an inactive client from available pool. Throwing it away. Retry count: " + retryCount);
@@ -152,9 +345,30 @@ class DedicatedClientPool<T, R extends HttpRequest> {
         return processingCompletePromiseKey;
     }
 
+    AttributeKey<DedicatedHttpClient<T, R>> getHttpClientKey() {
+        return httpClientKey;
+    }
+
+    int getPipeliningDepth() {
+        return pipeliningDepth;
+    }
+
+    boolean isPipelining() {
+        return pipeliningDepth > 1;
+    }
+
+    /**
+     * Releases a request reserved on the passed client, returning the client to the pool if it was fully used.
+     */
+    void releaseClient(DedicatedHttpClient<T, R> httpClient) {
+        if (httpClient.release()) {
+            returnClient(httpClient);
+        }
+    }
+
     void returnClient(DedicatedHttpClient<T, R> clientToReturn) {
         if (clientToReturn.isActive()) {
-            availableClients.add(clientToReturn);
+            offerAvailableClient(clientToReturn);
         } else {
             logger.info("Inactive client returned, not adding back to the pool.");
         }
@@ -163,10 +377,61 @@ class DedicatedClientPool<T, R extends HttpRequest> {
     public void populateStatus(StatusRetriever.TestCaseStatus testCaseStatus) {
         StatusRetriever.ConnPoolStatus connPoolStatus = new StatusRetriever.ConnPoolStatus();
         testCaseStatus.addConnPoolStats(serverAddress, connPoolStatus);
-        connPoolStatus.setAvailableConnectionsCount(availableClients.size());
+        int availableCount = availableClients.size();
+        if (null != partitions) {
+            for (EventLoopPartition partition : partitions.values()) {
+                availableCount += partition.availableCount;
+            }
+        }
+        connPoolStatus.setAvailableConnectionsCount(availableCount);
         connPoolStatus.setTotalConnectionsCount(clientLimitEnforcer.size());
         connPoolStatus.setUnhandledRequestsSinceStartUp(unhandledRequests.get());
         connPoolStatus.setFatalReadTimeOuts(readTimeOuts.get());
+        connPoolStatus.setPendingAcquires(pendingAcquireCount.get());
+        connPoolStatus.setAcquireTimeouts(acquireTimeouts.get());
+        connPoolStatus.setAcquireWaitCount(acquireWaitTimes.getCount());
+        connPoolStatus.setAcquireWaitMillisP99(Math.max(0, acquireWaitTimes.getPercentile(99)));
+        connPoolStatus.setInflightRequests(inflightRequests.get());
+        connPoolStatus.setLatencyEwmaMicros((long) latencyEwmaMicros);
+    }
+
+    public void populateMetrics(MetricsRetriever.TestCaseMetrics metrics) {
+        metrics.addPoolAcquireTimes(serverAddress, acquireTimes);
+    }
+
+    void onRequestStart() {
+        inflightRequests.incrementAndGet();
+    }
+
+    /**
+     * Records the completion of a request, successful or not, sent using this pool.
+     *
+     * @param latencyMicros Time taken by the request, including the connection acquire.
+     */
+    void onRequestComplete(long latencyMicros) {
+        inflightRequests.decrementAndGet();
+        double current = latencyEwmaMicros;
+        latencyEwmaMicros = current == 0 ? latencyMicros : current + LATENCY_EWMA_WEIGHT * (latencyMicros - current);
+    }
+
+    /**
+     * Requests sent using this pool for which the response has not yet arrived, including the ones waiting for a
+     * connection.
+     */
+    public int getInflightRequests() {
+        return inflightRequests.get();
+    }
+
+    /**
+     * Exponentially weighted moving average of the latency of the requests sent using this pool, {@code 0} if no
+     * request has completed yet.
+     */
+    public double getLatencyEwmaMicros() {
+        return latencyEwmaMicros;
+    }
+
+    void onAcquired(long acquireTimeMillis) {
+        acquireTimes.record(acquireTimeMillis);
     }
 
     void onUnhandledRequest() {
@@ -179,15 +444,192 @@ class DedicatedClientPool<T, R extends HttpRequest> {
         }
     }
 
+    /**
+     * Returns {@code true} if this pool is event loop affine and the passed executor is one of its event loops.
+     */
+    private boolean isAffine(@Nullable EventExecutor executor) {
+        return null != partitions && executor instanceof EventLoop && executor.parent() == bootstrap.config().group();
+    }
+
+    /**
+     * Returns the bootstrap that connects on the event loop of the passed executor if affine, else on any event loop.
+     */
+    private Bootstrap getBootstrap(@Nullable EventExecutor executor) {
+        return isAffine(executor) ? getPartition((EventLoop) executor).partitionBootstrap : bootstrap;
+    }
+
+    private EventLoopPartition getPartition(EventLoop eventLoop) {
+        EventLoopPartition partition = partitions.get(eventLoop);
+        if (null == partition) {
+            partition = new EventLoopPartition(eventLoop);
+            EventLoopPartition existing = partitions.putIfAbsent(eventLoop, partition);
+            if (null != existing) {
+                partition = existing;
+            }
+        }
+        return partition;
+    }
+
     protected DedicatedHttpClient<T, R> getHttpClient(Channel channel) {
-        return new DedicatedHttpClient<T, R>(channel, serverAddress.getHostName(), this);
+        DedicatedHttpClient<T, R> httpClient = new DedicatedHttpClient<T, R>(channel, serverAddress.getHostName(), this);
+        channel.attr(httpClientKey).set(httpClient);
+        return httpClient;
     }
 
     public void shutdown() {
     }
 
-    public void populateTrace(StringBuilder traceBuilder) {
-        // TODO: Populate trace.
+    /**
+     * Idle connections registered with a single event loop. The available connections are only accessed from the event
+     * loop, so they do not require any synchronization.
+     */
+    private class EventLoopPartition {
+
+        private final EventLoop eventLoop;
+        private final Bootstrap partitionBootstrap;
+        private final ArrayDeque<DedicatedHttpClient<T, R>> available = new ArrayDeque<DedicatedHttpClient<T, R>>();
+        private volatile int availableCount; // Only for status, written on the event loop.
+
+        private EventLoopPartition(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+            partitionBootstrap = bootstrap.clone(eventLoop); // Connects on this event loop.
+        }
+
+        Future<DedicatedHttpClient<T, R>> acquire() {
+            final ConnectCompletePromise<T, R> promise = new ConnectCompletePromise<T, R>(eventLoop);
+            if (eventLoop.inEventLoop()) {
+                acquire(promise);
+            } else {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        acquire(promise);
+                    }
+                });
+            }
+            return promise;
+        }
+
+        private void acquire(ConnectCompletePromise<T, R> promise) {
+            DedicatedHttpClient<T, R> availableClient;
+            while (null != (availableClient = available.pollFirst())) {
+                availableCount = available.size();
+                if (availableClient.isActive()) {
+                    if (!availableClient.tryReserve()) {
+                        continue; // Made available again when one of its requests completes.
+                    }
+                    if (availableClient.hasCapacity()) {
+                        release(availableClient);
+                    }
+                    if (!promise.trySuccess(availableClient)) {
+                        releaseClient(availableClient); // Requester cancelled.
+                    }
+                    return;
+                }
+                logger.info("Got an inactive client from the event loop partition. Throwing it away.");
+            }
+            createNewClientOnDemand(promise, partitionBootstrap);
+        }
+
+        void release(final DedicatedHttpClient<T, R> httpClient) {
+            if (eventLoop.inEventLoop()) {
+                available.addFirst(httpClient); // Most recently used first, it is the most likely to be active.
+                availableCount = available.size();
+                if (pendingAcquireCount.get() > 0) {
+                    // A waiter may have missed this connection, as it only checks the partitions it sees connections in.
+                    offerToWaiters();
+                }
+            } else {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        release(httpClient);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Hands the idle connections of this partition to the callers waiting for a connection, whatever their event
+         * loop.
+         */
+        void offerToWaiters() {
+            if (eventLoop.inEventLoop()) {
+                for (int i = available.size(); i > 0 && pendingAcquireCount.get() > 0; i--) {
+                    DedicatedHttpClient<T, R> httpClient = available.pollFirst();
+                    if (httpClient.isActive()) {
+                        DedicatedClientPool.this.offerToWaiters(httpClient);
+                        if (httpClient.hasCapacity()) {
+                            available.addLast(httpClient);
+                        }
+                    }
+                }
+                availableCount = available.size();
+            } else {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        offerToWaiters();
+                    }
+                });
+            }
+        }
+
+        void remove(final DedicatedHttpClient<T, R> httpClient) {
+            if (eventLoop.inEventLoop()) {
+                available.remove(httpClient);
+                availableCount = available.size();
+            } else {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        remove(httpClient);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A caller waiting for a connection. The wait ends when a connection is handed to it, the acquire timeout expires or
+     * the caller cancels the acquire.
+     */
+    private class PendingAcquire implements Runnable, GenericFutureListener<Future<DedicatedHttpClient<T, R>>> {
+
+        private final ConnectCompletePromise<T, R> promise;
+        private final long startTime = System.currentTimeMillis();
+        private volatile ScheduledFuture<?> timeoutFuture;
+        private volatile boolean timedOut;
+
+        private PendingAcquire(ConnectCompletePromise<T, R> promise) {
+            this.promise = promise;
+        }
+
+        void start() {
+            timeoutFuture = promise.executor().schedule(this, acquireTimeoutMs, TimeUnit.MILLISECONDS);
+            promise.addListener(this);
+        }
+
+        @Override
+        public void run() {
+            timedOut = true;
+            if (removePendingAcquire(this)) {
+                acquireTimeouts.incrementAndGet();
+                promise.tryFailure(new PoolExhaustedException(serverAddress, maxConnections,
+                                                              System.currentTimeMillis() - startTime));
+            }
+        }
+
+        @Override
+        public void operationComplete(Future<DedicatedHttpClient<T, R>> future) throws Exception {
+            ScheduledFuture<?> timeout = timeoutFuture;
+            if (null != timeout) {
+                timeout.cancel(false);
+            }
+            if (future.isCancelled()) {
+                removePendingAcquire(this);
+            }
+        }
     }
 
     private static class ConnectCompletePromise<T, R extends HttpRequest> extends DefaultPromise<DedicatedHttpClient<T, R>> {
@@ -236,14 +678,21 @@ class DedicatedClientPool<T, R extends HttpRequest> {
                                      serverAddress.getHostName(),
                                      serverAddress.getPort());
                         clientLimitEnforcer.remove(clientLimitEnforcingToken);
-                        availableClients.remove(httpClient);
+                        enclosingPool.removeAvailableClient(httpClient);
+                        enclosingPool.connectForPendingAcquire(); // Capacity freed, replace the connection for a waiter.
                     }
                 });
                 if (null == completionPromise) {
-                    enclosingPool.addAvailableClient(httpClient);
+                    enclosingPool.offerAvailableClient(httpClient);
                 } else {
                     completionPromise.setExecutor(future.channel().eventLoop());
-                    completionPromise.setSuccess(httpClient);
+                    httpClient.tryReserve();
+                    if (!completionPromise.trySuccess(httpClient)) {
+                        httpClient.cancelReservation(); // Requester cancelled, keep the connection.
+                    }
+                    if (httpClient.hasCapacity()) {
+                        enclosingPool.offerAvailableClient(httpClient);
+                    }
                 }
             } else {
                 clientLimitEnforcer.remove(clientLimitEnforcingToken);
@@ -251,7 +700,7 @@ class DedicatedClientPool<T, R extends HttpRequest> {
                                            serverAddress.getHostName(),
                                            serverAddress.getPort()), future.cause());
                 if (null != completionPromise) {
-                    completionPromise.setFailure(future.cause());
+                    completionPromise.tryFailure(future.cause());
                 }
             }
         }
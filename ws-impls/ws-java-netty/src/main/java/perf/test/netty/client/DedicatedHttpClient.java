@@ -5,20 +5,30 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
-import io.netty.util.concurrent.Promise;
-import perf.test.netty.PropertyNames;
+import io.netty.util.ReferenceCountUtil;
+import perf.test.netty.RequestTracer;
 
 import javax.annotation.Nullable;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * A client over a single connection. Without pipelining, a client carries one request at a time and the request state
+ * is held in channel attributes. With pipelining, upto {@link DedicatedClientPool#getPipeliningDepth()} requests are
+ * written on the connection without waiting for the responses. The responses arrive in the order of the requests, so
+ * the inflight requests are kept in a FIFO that is only accessed from the channel's event loop. Requests on a
+ * pipelined connection are not retried, a failure on the connection fails all of its inflight requests.
+ *
  * @author Nitesh Kant
  */
 class DedicatedHttpClient<T, R extends HttpRequest> {
@@ -26,21 +36,95 @@ class DedicatedHttpClient<T, R extends HttpRequest> {
     private final Channel channel;
     private final String host;
     private final DedicatedClientPool<T, R> owningPool;
+    private final int pipeliningDepth;
+    private final AtomicInteger reservedRequests = new AtomicInteger();
+    @Nullable private final ArrayDeque<RequestExecutionPromise<T>> pipeline; // null if not pipelining.
 
     DedicatedHttpClient(Channel channel, String host, DedicatedClientPool<T, R> owningPool) {
         this.channel = channel;
         this.host = host;
         this.owningPool = owningPool;
+        pipeliningDepth = owningPool.getPipeliningDepth();
+        pipeline = owningPool.isPipelining() ? new ArrayDeque<RequestExecutionPromise<T>>(pipeliningDepth) : null;
     }
 
     RequestExecutionPromise<T> execute(R request, HttpClientImpl.RequestProcessingPromise processingFinishPromise) {
+        if (null != pipeline) {
+            return executePipelined(request, processingFinishPromise);
+        }
         return executeRequest(request, new ResponseHandlerWrapper<T>(request, processingFinishPromise), 0,
                               null);
     }
 
+    private RequestExecutionPromise<T> executePipelined(final R request,
+                                                        final HttpClientImpl.RequestProcessingPromise processingFinishPromise) {
+        setHost(request);
+        final RequestProcessingPromise<T> processingCompletePromise = new RequestProcessingPromise<T>(channel, null);
+        if (channel.eventLoop().inEventLoop()) {
+            writePipelined(request, processingCompletePromise, processingFinishPromise);
+        } else {
+            // The request must be added to the pipeline in the same order as it is written.
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writePipelined(request, processingCompletePromise, processingFinishPromise);
+                }
+            });
+        }
+        return processingCompletePromise;
+    }
+
+    private void writePipelined(R request, RequestProcessingPromise<T> processingCompletePromise,
+                                final HttpClientImpl.RequestProcessingPromise processingFinishPromise) {
+        if (!channel.isActive() || processingCompletePromise.isDone()) {
+            ReferenceCountUtil.release(request);
+            processingCompletePromise.tryFailure(new ClosedChannelException());
+            owningPool.releaseClient(this);
+            return;
+        }
+        pipeline.add(processingCompletePromise);
+        channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    processingFinishPromise.checkpoint(RequestTracer.Checkpoint.PipelinedWriteSucceeded);
+                } else {
+                    processingFinishPromise.tryFailure(future.cause());
+                    channel.close(); // Fails the other inflight requests, their responses can not be matched anymore.
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the oldest inflight request of a pipelined connection, on receiving its response.
+     *
+     * @return The promise for the oldest inflight request, {@code null} if there is no inflight request.
+     */
+    @Nullable
+    RequestExecutionPromise<T> pollPipelinedRequest() {
+        RequestExecutionPromise<T> processingCompletePromise = pipeline.poll();
+        if (null != processingCompletePromise) {
+            owningPool.releaseClient(this);
+        }
+        return processingCompletePromise;
+    }
+
+    /**
+     * Fails all inflight requests of a pipelined connection.
+     */
+    void failPipelinedRequests(Throwable cause) {
+        RequestExecutionPromise<T> processingCompletePromise;
+        while (null != (processingCompletePromise = pipeline.poll())) {
+            owningPool.releaseClient(this);
+            processingCompletePromise.tryFailure(cause);
+        }
+    }
+
     RequestExecutionPromise<T> retry(final ChannelHandlerContext failedContext, int retryCount,
                                      RequestExecutionPromise<T> completionPromise) {
         Preconditions.checkNotNull(completionPromise, "Completion promise can not be null for retries.");
+        @SuppressWarnings("unchecked") // Only ResponseHandlerWrapper instances are set as the response handler.
         ResponseHandlerWrapper<T> handler =
                 (ResponseHandlerWrapper<T>) failedContext.channel().attr(owningPool.getResponseHandlerKey()).get();
         return executeRequest(handler.request, handler, retryCount, completionPromise);
@@ -50,42 +134,91 @@ class DedicatedHttpClient<T, R extends HttpRequest> {
                                                       int retryCount,
                                                       @Nullable RequestExecutionPromise<T> completionPromise) {
 
-        request.headers().set(HttpHeaders.Names.HOST, host);
+        setHost(request);
         channel.attr(DedicatedClientPool.RETRY_COUNT_KEY).setIfAbsent(new AtomicInteger(retryCount));
         channel.attr(owningPool.getResponseHandlerKey()).set(responseHandler);
-        ChannelFuture writeFuture = channel.writeAndFlush(request);
+        ChannelPromise writeFuture = channel.newPromise();
+        RequestExecutionPromise<T> processingCompletePromise;
+        if (null == completionPromise) {
+            processingCompletePromise = new RequestProcessingPromise<T>(channel, writeFuture);
+        } else {
+            processingCompletePromise = completionPromise;
+        }
+        // Set before writing, as the response is read on the event loop of the channel, which may not be this thread.
+        channel.attr(owningPool.getProcessingCompletePromiseKey()).set(processingCompletePromise);
+        channel.writeAndFlush(request, writeFuture);
         writeFuture.addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 if (future.isSuccess()) {
-                    if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                        responseHandler.processingFinishPromise.checkpoint("Write success.");
-                    }
+                    responseHandler.processingFinishPromise.checkpoint(RequestTracer.Checkpoint.WriteSucceeded);
                 } else {
                     responseHandler.processingFinishPromise.tryFailure(future.cause()); // TODO: See if we can retry.
-                    if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                        responseHandler.processingFinishPromise.checkpoint("Write failed." + future.cause());
-                    }
+                    responseHandler.processingFinishPromise.checkpoint(RequestTracer.Checkpoint.WriteFailed);
                 }
             }
         });
-        responseHandler.processingFinishPromise.checkpoint("Request Written. Retry count: " + retryCount);
-        RequestExecutionPromise<T> processingCompletePromise;
-        if (null == completionPromise) {
-            processingCompletePromise = new RequestProcessingPromise<T>(channel, writeFuture);
-        } else {
-            processingCompletePromise = completionPromise;
-        }
-        channel.attr(owningPool.getProcessingCompletePromiseKey()).set(processingCompletePromise);
+        responseHandler.processingFinishPromise.checkpoint(RequestTracer.Checkpoint.RequestWritten, retryCount);
 
         processingCompletePromise.addListener(responseHandler);
         return processingCompletePromise;
     }
 
+    /**
+     * Sets the host header, except on a request created from a template whose encoded headers already have the host.
+     */
+    private void setHost(R request) {
+        if (!(request instanceof BackendRequestTemplate.TemplateHttpRequest)) {
+            request.headers().set(HttpHeaderNames.HOST, host);
+        }
+    }
+
     public boolean isActive() {
         return channel.isActive();
     }
 
+    /**
+     * Reserves a request on this client.
+     *
+     * @return {@code false} if this client already carries as many requests as the pipelining depth.
+     */
+    boolean tryReserve() {
+        while (true) {
+            int current = reservedRequests.get();
+            if (current >= pipeliningDepth) {
+                return false;
+            }
+            if (reservedRequests.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void cancelReservation() {
+        reservedRequests.decrementAndGet();
+    }
+
+    /**
+     * Releases a reserved request.
+     *
+     * @return {@code true} if this client carried as many requests as the pipelining depth, i.e. it was not available.
+     */
+    boolean release() {
+        return reservedRequests.getAndDecrement() == pipeliningDepth;
+    }
+
+    boolean hasCapacity() {
+        return reservedRequests.get() < pipeliningDepth;
+    }
+
+    EventLoop eventLoop() {
+        return channel.eventLoop();
+    }
+
+    void returnToPool() {
+        owningPool.releaseClient(this);
+    }
+
     public class ResponseHandlerWrapper<T> implements GenericFutureListener<Future<T>> {
 
         private final R request;
@@ -98,7 +231,12 @@ class DedicatedHttpClient<T, R extends HttpRequest> {
 
         @Override
         public void operationComplete(Future<T> future) throws Exception {
-            owningPool.returnClient(DedicatedHttpClient.this);
+            if (future.isCancelled()) {
+                // The response for a cancelled request may still arrive on this channel, so it can not be reused.
+                channel.close();
+            } else {
+                owningPool.releaseClient(DedicatedHttpClient.this);
+            }
         }
 
         public HttpClientImpl.RequestProcessingPromise getProcessingFinishPromise() {
@@ -108,16 +246,16 @@ class DedicatedHttpClient<T, R extends HttpRequest> {
 
     class RequestProcessingPromise<T> extends DefaultPromise<T> implements RequestExecutionPromise<T> {
 
-        private final ChannelFuture sendRequestFuture;
+        @Nullable private final ChannelFuture sendRequestFuture; // null for pipelined requests, which can not be unsent.
 
-        public RequestProcessingPromise(Channel channel, ChannelFuture sendRequestFuture) {
+        public RequestProcessingPromise(Channel channel, @Nullable ChannelFuture sendRequestFuture) {
             super(channel.eventLoop()); // Retry will switch the eventloop as the promise returned will be of the first channel used (which failed)
             this.sendRequestFuture = sendRequestFuture;
         }
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            if (sendRequestFuture.isCancellable()) {
+            if (null != sendRequestFuture && sendRequestFuture.isCancellable()) {
                 sendRequestFuture.cancel(mayInterruptIfRunning);
             }
             return super.cancel(mayInterruptIfRunning);
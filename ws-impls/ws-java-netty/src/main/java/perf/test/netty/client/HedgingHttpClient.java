@@ -0,0 +1,268 @@
+package perf.test.netty.client;
+
+import com.google.common.base.Preconditions;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import perf.test.netty.PropertyNames;
+import perf.test.netty.server.StatusRetriever;
+import perf.test.utils.Deadline;
+import perf.test.utils.LatencyHistogram;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpClient} that hedges backend requests. If the response for a request does not arrive within the
+ * {@link PropertyNames#HedgeLatencyPercentile} latency of the recent requests for the same uri, a duplicate request is
+ * sent to a different host (the same host, if there is only one). The first response wins and the other request is
+ * cancelled. <br/>
+ * The number of hedged requests is capped at {@link PropertyNames#HedgeBudgetPercent} percent of the primary requests,
+ * so that the extra load on the backend is bounded.
+ *
+ * Hedged requests are fresh requests for the same uri, without any of the headers of the original request.
+ */
+public class HedgingHttpClient extends LBAwareHttpClientImpl {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgingHttpClient.class);
+
+    private static final int HISTOGRAM_MAX_MILLIS = 10000;
+
+    private final LoadBalancer<FullHttpRequest> loadBalancer;
+    private final HttpClientFactory clientFactory;
+
+    private final ConcurrentHashMap<String, HedgeDelayTracker> delayTrackers =
+            new ConcurrentHashMap<String, HedgeDelayTracker>();
+
+    private final int percentile;
+    private final int minDelayMs;
+    private final int minSamples;
+    private final int refreshIntervalMs;
+    private final int budgetPercent;
+
+    private final AtomicLong primaryRequests = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgesOverBudget = new AtomicLong();
+    private final AtomicLong cancelledRequests = new AtomicLong();
+
+    public HedgingHttpClient(LoadBalancer<FullHttpRequest> loadBalancer, HttpClientFactory clientFactory) {
+        super(loadBalancer, clientFactory);
+        this.loadBalancer = loadBalancer;
+        this.clientFactory = clientFactory;
+        percentile = PropertyNames.HedgeLatencyPercentile.getValueAsInt();
+        minDelayMs = PropertyNames.HedgeMinDelayMs.getValueAsInt();
+        minSamples = PropertyNames.HedgeMinSamples.getValueAsInt();
+        refreshIntervalMs = PropertyNames.HedgeRefreshIntervalMs.getValueAsInt();
+        budgetPercent = PropertyNames.HedgeBudgetPercent.getValueAsInt();
+    }
+
+    @Override
+    public Future<FullHttpResponse> execute(@Nullable EventExecutor executor, FullHttpRequest request) {
+        Preconditions.checkNotNull(executor, "Hedging requires an event executor to schedule the hedged request.");
+        primaryRequests.incrementAndGet();
+        HedgedExecution execution = new HedgedExecution(executor, request, getDelayTracker(request.uri()));
+        execution.start(request);
+        return execution.result;
+    }
+
+    @Override
+    public void populateStatus(StatusRetriever.TestCaseStatus testCaseStatus) {
+        super.populateStatus(testCaseStatus);
+        testCaseStatus.setHedgePrimaryRequests(primaryRequests.get());
+        testCaseStatus.setHedgedRequests(hedgedRequests.get());
+        testCaseStatus.setHedgeWins(hedgeWins.get());
+        testCaseStatus.setHedgesOverBudget(hedgesOverBudget.get());
+        testCaseStatus.setHedgeCancelledRequests(cancelledRequests.get());
+    }
+
+    private HedgeDelayTracker getDelayTracker(String uri) {
+        int idIndex = uri.lastIndexOf("id=");
+        String key = idIndex > 0 ? uri.substring(0, idIndex) : uri; // All calls of a type share the latency profile.
+        HedgeDelayTracker tracker = delayTrackers.get(key);
+        if (null == tracker) {
+            tracker = new HedgeDelayTracker();
+            HedgeDelayTracker existing = delayTrackers.putIfAbsent(key, tracker);
+            if (null != existing) {
+                tracker = existing;
+            }
+        }
+        return tracker;
+    }
+
+    private boolean acquireHedgeBudget() {
+        if (hedgedRequests.get() * 100 >= (long) budgetPercent * primaryRequests.get()) {
+            hedgesOverBudget.incrementAndGet();
+            return false;
+        }
+        hedgedRequests.incrementAndGet();
+        return true;
+    }
+
+    private InetSocketAddress nextServerOtherThan(InetSocketAddress primaryServer) {
+        InetSocketAddress[] allServers = loadBalancer.getAllServers();
+        if (allServers.length == 1) {
+            return allServers[0];
+        }
+        int primaryIndex = 0;
+        for (int i = 0; i < allServers.length; i++) {
+            if (allServers[i].equals(primaryServer)) {
+                primaryIndex = i;
+                break;
+            }
+        }
+        int offset = 1 + ThreadLocalRandom.current().nextInt(allServers.length - 1);
+        return allServers[(primaryIndex + offset) % allServers.length];
+    }
+
+    private class HedgedExecution implements GenericFutureListener<Future<FullHttpResponse>> {
+
+        private final Promise<FullHttpResponse> result;
+        private final EventExecutor executor;
+        private final HedgeDelayTracker delayTracker;
+        private final HttpVersion protocolVersion;
+        private final HttpMethod method;
+        private final String uri;
+        private final HttpHeaders headers;
+        @Nullable private final Deadline deadline;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicInteger pendingAttempts = new AtomicInteger(1);
+
+        private InetSocketAddress primaryServer;
+        private volatile Future<FullHttpResponse> primary;
+        private volatile Future<FullHttpResponse> hedge;
+        private volatile ScheduledFuture<?> hedgeTimer;
+
+        private HedgedExecution(EventExecutor executor, FullHttpRequest request, HedgeDelayTracker delayTracker) {
+            this.executor = executor;
+            this.delayTracker = delayTracker;
+            result = new DefaultPromise<FullHttpResponse>(executor);
+            // The original request is released once written, so capture what is required to create the hedge.
+            protocolVersion = request.protocolVersion();
+            method = request.method();
+            uri = request.uri();
+            headers = request.headers().copy();
+            String budget = headers.get(Deadline.HEADER_NAME);
+            deadline = null == budget ? null : Deadline.fromHeader(budget, Integer.MAX_VALUE);
+            result.addListener(new GenericFutureListener<Future<FullHttpResponse>>() {
+                @Override
+                public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+                    if (future.isCancelled()) {
+                        cancelLoser(primary); // Caller gave up, none of the attempts is required anymore.
+                        cancelLoser(hedge);
+                    }
+                }
+            });
+        }
+
+        private void start(FullHttpRequest request) {
+            long hedgeDelay = delayTracker.getHedgeDelay();
+            primaryServer = loadBalancer.nextServer(request);
+            primary = clientFactory.getHttpClient(primaryServer).execute(executor, request);
+            if (hedgeDelay >= 0 && !primary.isDone()) {
+                hedgeTimer = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHedge();
+                    }
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+            }
+            primary.addListener(this);
+        }
+
+        private void sendHedge() {
+            if (result.isDone() || !acquireHedgeBudget()) {
+                return;
+            }
+            pendingAttempts.incrementAndGet();
+            InetSocketAddress hedgeServer = nextServerOtherThan(primaryServer);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Hedging request {} to server {} after {} ms.", uri, hedgeServer,
+                             System.currentTimeMillis() - startTime);
+            }
+            FullHttpRequest hedgeRequest = new DefaultFullHttpRequest(protocolVersion, method, uri);
+            hedgeRequest.headers().set(headers);
+            if (null != deadline) {
+                hedgeRequest.headers().set(Deadline.HEADER_NAME, deadline.toHeaderValue()); // Less the hedge delay.
+            }
+            hedge = clientFactory.getHttpClient(hedgeServer).execute(executor, hedgeRequest);
+            hedge.addListener(this);
+            if (result.isDone()) {
+                cancelLoser(hedge); // The primary completed while the hedge was being sent.
+            }
+        }
+
+        @Override
+        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+            final boolean isHedge = future == hedge;
+            if (future.isSuccess()) {
+                FullHttpResponse response = future.getNow();
+                if (result.trySuccess(response)) {
+                    delayTracker.record(System.currentTimeMillis() - startTime);
+                    if (isHedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    cancelLoser(isHedge ? primary : hedge);
+                } else {
+                    response.content().release(); // Lost the race but completed before it could be cancelled.
+                }
+            } else if (pendingAttempts.decrementAndGet() <= 0 && !future.isCancelled()) {
+                cancelHedgeTimer();
+                result.tryFailure(future.cause());
+            }
+        }
+
+        private void cancelLoser(@Nullable Future<FullHttpResponse> loser) {
+            cancelHedgeTimer();
+            if (null != loser && !loser.isDone() && loser.cancel(false)) {
+                cancelledRequests.incrementAndGet();
+            }
+        }
+
+        private void cancelHedgeTimer() {
+            ScheduledFuture<?> timer = hedgeTimer;
+            if (null != timer) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    private class HedgeDelayTracker {
+
+        private final LatencyHistogram histogram = new LatencyHistogram(HISTOGRAM_MAX_MILLIS);
+        private volatile long hedgeDelay = -1; // No hedging till there are enough samples.
+        private volatile long lastRefreshTime = System.currentTimeMillis();
+
+        long getHedgeDelay() {
+            long now = System.currentTimeMillis();
+            if (now - lastRefreshTime >= refreshIntervalMs) {
+                lastRefreshTime = now;
+                if (histogram.getCount() >= minSamples) {
+                    hedgeDelay = Math.max(minDelayMs, histogram.getPercentile(percentile));
+                    histogram.reset(); // Every refresh interval starts a new window.
+                }
+            }
+            return hedgeDelay;
+        }
+
+        void record(long latency) {
+            histogram.record(latency);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package perf.test.netty.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.logging.LogLevel;
+import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import perf.test.netty.PropertyNames;
+import perf.test.netty.server.StatusRetriever;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpClient} that multiplexes the requests to a single backend server as HTTP/2 streams over a few cleartext
+ * connections, using HTTP/2 with prior knowledge. Enabled by {@link PropertyNames#ClientHttp2Enable}. <br/>
+ * Unlike with the {@link DedicatedClientPool}, a request never holds a connection: every request opens a stream on one
+ * of {@link PropertyNames#ClientHttp2ConnectionsPerHost} connections, picked round robin, so that all the backend calls
+ * of all the concurrent requests share these connections. A stream is a child channel of its connection, whose frames
+ * are converted to HTTP/1.1 objects, so the responses are the same as with HTTP/1.1. The streams above the concurrent
+ * streams limit of the server are buffered till other streams complete. <br/>
+ * A cancelled request resets its stream and keeps the connection. A closed connection is connected again by the next
+ * request that picks it.
+ */
+public class Http2HttpClient implements HttpClient<FullHttpResponse, FullHttpRequest> {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2HttpClient.class);
+
+    private static final double LATENCY_EWMA_WEIGHT = 0.1; // Weight of a new sample in the latency average.
+
+    private final InetSocketAddress serverAddress;
+    private final Bootstrap bootstrap;
+    @Nullable private final EventExecutor executor;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final ChannelInitializer<Http2StreamChannel> streamInitializer;
+
+    private final AtomicLong inflightRequests = new AtomicLong();
+    private final AtomicLong recvRequests = new AtomicLong();
+    private final AtomicLong readTimeOuts = new AtomicLong();
+    private volatile double latencyEwmaMicros; // 0 till the first request completes. Concurrent updates may be lost.
+
+    Http2HttpClient(InetSocketAddress serverAddress, Bootstrap bootstrap, @Nullable EventExecutor executor,
+                    int connectionsPerHost) {
+        this.serverAddress = serverAddress;
+        this.executor = executor;
+        this.bootstrap = bootstrap.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                if (PropertyNames.ClientLoggingEnable.getValueAsBoolean()) {
+                    pipeline.addLast("logger", new LoggingHandler(LogLevel.DEBUG));
+                }
+                pipeline.addLast("http2Codec", Http2FrameCodecBuilder.forClient()
+                                                                     .initialSettings(Http2Settings.defaultSettings()
+                                                                                                   .pushEnabled(false))
+                                                                     .encoderEnforceMaxConcurrentStreams(true)
+                                                                     .build());
+                // No streams are opened by the server, as push is disabled.
+                pipeline.addLast("http2Multiplexer", new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+            }
+        });
+        streamInitializer = new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(Http2StreamChannel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("streamCodec", new Http2StreamFrameToHttpObjectCodec(false));
+                if (PropertyNames.ClientStreamingDecode.getValueAsBoolean()) {
+                    pipeline.addLast("streamingDecoder", new StreamingBackendResponseDecoder());
+                } else {
+                    pipeline.addLast("aggregator", new HttpObjectAggregator(
+                            PropertyNames.ClientChunkSize.getValueAsInt()));
+                }
+                pipeline.addLast("readTimeoutHandler", new ReadTimeoutHandler(
+                        PropertyNames.ClientReadTimeOutSeconds.getValueAsInt(), TimeUnit.SECONDS));
+            }
+        };
+        connections = new Connection[Math.max(1, connectionsPerHost)];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection();
+        }
+    }
+
+    @Override
+    public Future<FullHttpResponse> execute(@Nullable EventExecutor executor, final FullHttpRequest request) {
+        final EventExecutor _executor = null != executor ? executor : this.executor;
+        if (null == _executor) {
+            logger.error("No event executor configured or passed in which the callbacks can be made.");
+            throw new IllegalArgumentException("No event executor configured or passed in which the callbacks can be made.");
+        }
+        inflightRequests.incrementAndGet();
+        recvRequests.incrementAndGet();
+        final long startNanos = System.nanoTime();
+        final StreamPromise promise = new StreamPromise(_executor);
+        promise.addListener(new GenericFutureListener<Future<FullHttpResponse>>() {
+            @Override
+            public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+                inflightRequests.decrementAndGet();
+                onRequestComplete(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            }
+        });
+
+        request.headers().set(HttpHeaderNames.HOST, serverAddress.getHostName());
+        Connection connection = connections[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+        connection.openStream().addListener(new GenericFutureListener<Future<Http2StreamChannel>>() {
+            @Override
+            public void operationComplete(Future<Http2StreamChannel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    ReferenceCountUtil.release(request);
+                    promise.tryFailure(future.cause());
+                    return;
+                }
+                final Http2StreamChannel stream = future.getNow();
+                promise.setStream(stream);
+                if (promise.isDone()) {
+                    ReferenceCountUtil.release(request);
+                    stream.close(); // Cancelled while the stream was opened.
+                    return;
+                }
+                stream.pipeline().addLast("handler", new StreamResponseHandler(promise));
+                stream.writeAndFlush(request).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                            stream.close();
+                        }
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public void populateStatus(StatusRetriever.TestCaseStatus testCaseStatus) {
+        StatusRetriever.ConnPoolStatus connPoolStatus = new StatusRetriever.ConnPoolStatus();
+        testCaseStatus.addConnPoolStats(serverAddress, connPoolStatus);
+        int activeConnections = 0;
+        for (Connection connection : connections) {
+            if (connection.isActive()) {
+                activeConnections++;
+            }
+        }
+        connPoolStatus.setAvailableConnectionsCount(activeConnections); // Every connection takes more streams.
+        connPoolStatus.setTotalConnectionsCount(activeConnections);
+        connPoolStatus.setFatalReadTimeOuts(readTimeOuts.get());
+        connPoolStatus.setInflightRequests(inflightRequests.get());
+        connPoolStatus.setLatencyEwmaMicros((long) latencyEwmaMicros);
+        testCaseStatus.setHttpClientInflightRequests(inflightRequests.get());
+        testCaseStatus.setHttpClientReqRecvCount(recvRequests.get());
+    }
+
+    /**
+     * Requests sent using this client for which the response has not yet arrived.
+     */
+    public long getInflightRequests() {
+        return inflightRequests.get();
+    }
+
+    /**
+     * Exponentially weighted moving average of the latency of the requests sent using this client, {@code 0} if no
+     * request has completed yet.
+     */
+    public double getLatencyEwmaMicros() {
+        return latencyEwmaMicros;
+    }
+
+    public void shutdown() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void onRequestComplete(long latencyMicros) {
+        double current = latencyEwmaMicros;
+        latencyEwmaMicros = current == 0 ? latencyMicros : current + LATENCY_EWMA_WEIGHT * (latencyMicros - current);
+    }
+
+    /**
+     * A connection to the server, connected on the first stream opened on it and whenever it is closed.
+     */
+    private class Connection {
+
+        @Nullable private volatile ChannelFuture connectFuture;
+
+        Future<Http2StreamChannel> openStream() {
+            ChannelFuture connectFuture = this.connectFuture;
+            if (null == connectFuture || isClosed(connectFuture)) {
+                connectFuture = connect(connectFuture);
+            }
+            final Channel channel = connectFuture.channel();
+            final Promise<Http2StreamChannel> streamPromise = channel.eventLoop().newPromise();
+            if (connectFuture.isSuccess()) {
+                newStreamBootstrap(channel).open(streamPromise);
+            } else {
+                connectFuture.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (future.isSuccess()) {
+                            // The connection is active, ie: the preface is sent, only after the connect listeners are
+                            // notified, so the stream is opened by a task after that.
+                            channel.eventLoop().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    newStreamBootstrap(channel).open(streamPromise);
+                                }
+                            });
+                        } else {
+                            streamPromise.tryFailure(future.cause());
+                        }
+                    }
+                });
+            }
+            return streamPromise;
+        }
+
+        boolean isActive() {
+            ChannelFuture connectFuture = this.connectFuture;
+            return null != connectFuture && connectFuture.channel().isActive();
+        }
+
+        void close() {
+            ChannelFuture connectFuture = this.connectFuture;
+            if (null != connectFuture) {
+                connectFuture.channel().close();
+            }
+        }
+
+        private synchronized ChannelFuture connect(@Nullable ChannelFuture staleConnectFuture) {
+            if (connectFuture != staleConnectFuture) {
+                return connectFuture; // Connected by another caller.
+            }
+            logger.debug("Connecting to host {} and port {} for HTTP/2 streams.", serverAddress.getHostName(),
+                         serverAddress.getPort());
+            connectFuture = bootstrap.connect(serverAddress);
+            return connectFuture;
+        }
+
+        private boolean isClosed(ChannelFuture connectFuture) {
+            return connectFuture.isDone() && !connectFuture.channel().isActive();
+        }
+
+        private Http2StreamChannelBootstrap newStreamBootstrap(Channel channel) {
+            return new Http2StreamChannelBootstrap(channel).handler(streamInitializer);
+        }
+    }
+
+    /**
+     * The response of a request. Till the stream is opened, the listeners are notified on the executor of the caller,
+     * then on the event loop of the connection, where the response arrives.
+     */
+    private static class StreamPromise extends DefaultPromise<FullHttpResponse> {
+
+        private volatile EventExecutor executor;
+        @Nullable private volatile Http2StreamChannel stream;
+
+        private StreamPromise(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        void setStream(Http2StreamChannel stream) {
+            this.stream = stream;
+            executor = stream.eventLoop();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Http2StreamChannel stream = this.stream;
+            if (cancelled && null != stream) {
+                stream.close(); // Resets the stream, the connection stays open.
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected EventExecutor executor() {
+            return executor;
+        }
+    }
+
+    private class StreamResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        private final Promise<FullHttpResponse> promise;
+
+        private StreamResponseHandler(Promise<FullHttpResponse> promise) {
+            this.promise = promise;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+            response.content().retain();
+            if (!promise.trySuccess(response)) {
+                response.content().release(); // Cancelled before the response arrived.
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            if (cause instanceof ReadTimeoutException) {
+                readTimeOuts.incrementAndGet();
+            }
+            logger.error("HTTP/2 stream to host " + serverAddress.getHostName() + " failed.", cause);
+            promise.tryFailure(cause);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            promise.tryFailure(new ClosedChannelException()); // Stream reset or connection closed.
+            super.channelInactive(ctx);
+        }
+    }
+}
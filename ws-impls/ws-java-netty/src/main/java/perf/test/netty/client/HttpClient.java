@@ -18,6 +18,4 @@ public interface HttpClient<T, R extends HttpRequest> {
 
     void populateStatus(StatusRetriever.TestCaseStatus testCaseStatus);
 
-    void populateTrace(StringBuilder traceBuilder);
-
 }
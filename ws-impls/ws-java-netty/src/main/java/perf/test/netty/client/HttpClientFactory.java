@@ -7,9 +7,10 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.channel.socket.oio.OioSocketChannel;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
@@ -22,11 +23,13 @@ import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import perf.test.netty.ByteBufAllocators;
+import perf.test.netty.NativeTransport;
 import perf.test.netty.PropertyNames;
+import perf.test.netty.server.MetricsRetriever;
 import perf.test.netty.server.StatusRetriever;
 
 import java.net.InetSocketAddress;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -46,20 +49,31 @@ public class HttpClientFactory {
     private final ConcurrentHashMap<InetSocketAddress, HttpClient<FullHttpResponse, FullHttpRequest>> httpClientsPerServer =
             new ConcurrentHashMap<InetSocketAddress, HttpClient<FullHttpResponse, FullHttpRequest>>();
 
+    // Created under the lock of this factory, read without it by getPool().
     private final Map<InetSocketAddress, DedicatedClientPool<FullHttpResponse, FullHttpRequest>> poolsPerServer =
-            new HashMap<InetSocketAddress, DedicatedClientPool<FullHttpResponse, FullHttpRequest>>();
+            new ConcurrentHashMap<InetSocketAddress, DedicatedClientPool<FullHttpResponse, FullHttpRequest>>();
 
     private final AtomicInteger clientHandlerId = new AtomicInteger();
     private final Class<? extends SocketChannel> channelClass;
+    private final boolean epoll;
+    private final boolean eventLoopAffinity;
+    private final boolean http2;
 
+    @SuppressWarnings("deprecation") // Blocking IO uses the OIO transport, deprecated in netty 4.1.
     public HttpClientFactory(@Nullable EventExecutor eventExecutor, EventLoopGroup group) {
         this.eventExecutor = eventExecutor;
         this.group = group;
+        epoll = group instanceof EpollEventLoopGroup; // Channel must match the event loop created by the server.
         if (PropertyNames.ClientIOBlocking.getValueAsBoolean()) {
-            channelClass = OioSocketChannel.class; // TODO: If server is non blocking we shd use a thread pool?
+            channelClass = io.netty.channel.socket.oio.OioSocketChannel.class; // TODO: If server is non blocking we shd use a thread pool?
+        } else if (epoll) {
+            channelClass = EpollSocketChannel.class;
         } else {
             channelClass = NioSocketChannel.class;
         }
+        eventLoopAffinity = PropertyNames.ClientEventLoopAffinity.getValueAsBoolean()
+                            && !PropertyNames.ClientIOBlocking.getValueAsBoolean();
+        http2 = PropertyNames.ClientHttp2Enable.getValueAsBoolean();
     }
 
     public HttpClient<FullHttpResponse, FullHttpRequest> getHttpClient(InetSocketAddress serverAddress) {
@@ -69,6 +83,14 @@ public class HttpClientFactory {
             return client;
         }
 
+        if (http2) {
+            // Connects lazily, so creating a client that loses the race is cheap.
+            Http2HttpClient newClient = new Http2HttpClient(serverAddress, newBootstrap(), eventExecutor,
+                                                            PropertyNames.ClientHttp2ConnectionsPerHost.getValueAsInt());
+            HttpClient<FullHttpResponse, FullHttpRequest> existingClient = httpClientsPerServer.putIfAbsent(serverAddress, newClient);
+            return null != existingClient ? existingClient : newClient;
+        }
+
         DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool;
 
         synchronized (this) { // Pool creation is strictly once, HttpClient does not hold any state, so it can be created atomically using the CHM
@@ -77,7 +99,11 @@ public class HttpClientFactory {
                 Bootstrap bootstrap = newBootstrap();
                 pool = new DedicatedClientPool<FullHttpResponse, FullHttpRequest>(serverAddress, bootstrap,
                                                                                   PropertyNames.MockBackendMaxConnectionsPerTest.getValueAsInt(),
-                                                                                  PropertyNames.MockBackendConnectionsAtStartupPerTest.getValueAsInt());
+                                                                                  PropertyNames.MockBackendConnectionsAtStartupPerTest.getValueAsInt(),
+                                                                                  PropertyNames.ClientPipeliningDepth.getValueAsInt(),
+                                                                                  PropertyNames.MockBackendMaxPendingAcquiresPerTest.getValueAsInt(),
+                                                                                  PropertyNames.MockBackendAcquireTimeoutMs.getValueAsInt(),
+                                                                                  eventLoopAffinity);
                 populateChannelInitializer(bootstrap, pool);
                 pool.init();
                 poolsPerServer.put(serverAddress, pool);
@@ -89,22 +115,48 @@ public class HttpClientFactory {
         return null != existingClient ? existingClient : newClient;
     }
 
+    /**
+     * Returns the connection pool for the passed server, {@code null} if no client has been created for that server or
+     * if the backend calls are HTTP/2 streams, which do not use a pool.
+     */
+    @Nullable
+    DedicatedClientPool<FullHttpResponse, FullHttpRequest> getPool(InetSocketAddress serverAddress) {
+        return poolsPerServer.get(serverAddress);
+    }
+
+    /**
+     * Returns the HTTP/2 client for the passed server, {@code null} if no such client has been created for that server.
+     */
+    @Nullable
+    Http2HttpClient getHttp2Client(InetSocketAddress serverAddress) {
+        HttpClient<FullHttpResponse, FullHttpRequest> client = httpClientsPerServer.get(serverAddress);
+        return client instanceof Http2HttpClient ? (Http2HttpClient) client : null;
+    }
+
     public synchronized void shutdown() {
         for (DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool : poolsPerServer.values()) {
             pool.shutdown();
         }
+        for (HttpClient<FullHttpResponse, FullHttpRequest> client : httpClientsPerServer.values()) {
+            if (client instanceof Http2HttpClient) {
+                ((Http2HttpClient) client).shutdown();
+            }
+        }
     }
 
     private Bootstrap newBootstrap() {
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(group)
                  .channel(channelClass)
-                 .option(ChannelOption.SO_KEEPALIVE, true);
+                 .option(ChannelOption.SO_KEEPALIVE, true)
+                 .option(ChannelOption.ALLOCATOR, ByteBufAllocators.get());
+        NativeTransport.configureClient(bootstrap, epoll);
         return bootstrap;
     }
 
     private void populateChannelInitializer(Bootstrap bootstrap,
                                             final DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool) {
+        final TemplateRequestEncoder templateEncoder = new TemplateRequestEncoder(pool.serverAddress.getHostName(), "codec");
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
@@ -113,9 +165,14 @@ public class HttpClientFactory {
                     pipeline.addLast("logger", new LoggingHandler(LogLevel.DEBUG));
                 }
                 pipeline.addLast("codec", new HttpClientCodec());
-                pipeline.addLast("aggregator", new HttpObjectAggregator(
-                        PropertyNames.ClientChunkSize.getValueAsInt()));
+                if (PropertyNames.ClientStreamingDecode.getValueAsBoolean()) {
+                    pipeline.addLast("streamingDecoder", new StreamingBackendResponseDecoder());
+                } else {
+                    pipeline.addLast("aggregator", new HttpObjectAggregator(
+                            PropertyNames.ClientChunkSize.getValueAsInt()));
+                }
                 pipeline.addLast("readTimeoutHandler", new ReadTimeoutHandler(PropertyNames.ClientReadTimeOutSeconds.getValueAsInt(), TimeUnit.SECONDS));
+                pipeline.addLast("templateEncoder", templateEncoder);
                 pipeline.addLast("handler", new ClientHandler(pool, clientHandlerId.incrementAndGet()));
             }
         });
@@ -129,10 +186,9 @@ public class HttpClientFactory {
         }
     }
 
-    public void populateTrace(InetSocketAddress serverAddr, StringBuilder traceBuilder) {
-        @Nullable DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool = poolsPerServer.get(serverAddr);
-        if (null != pool) {
-            pool.populateTrace(traceBuilder);
+    public synchronized void populateMetrics(MetricsRetriever.TestCaseMetrics metrics) {
+        for (DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool : poolsPerServer.values()) {
+            pool.populateMetrics(metrics);
         }
     }
 }
@@ -10,10 +10,10 @@ import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import perf.test.netty.PropertyNames;
+import perf.test.netty.RequestTracer;
 import perf.test.netty.server.StatusRetriever;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -29,7 +29,6 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
     private final AtomicLong inflighRequests = new AtomicLong();
     private final AtomicLong recvRequests = new AtomicLong();
 
-    private static final ConcurrentLinkedQueue<RequestProcessingPromise> allPromises = new ConcurrentLinkedQueue<RequestProcessingPromise>();
 
     HttpClientImpl(@Nullable EventExecutor executor, DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool) {
         this.executor = executor;
@@ -53,22 +52,20 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
         }
 
 
+        final long acquireStartTime = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        pool.onRequestStart();
         final Future<DedicatedHttpClient<FullHttpResponse,FullHttpRequest>> clientGetFuture = pool.getClient(_executor);
 
         final RequestProcessingPromise processingFinishPromise = new RequestProcessingPromise(_executor, clientGetFuture);
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            allPromises.add(processingFinishPromise);
-        }
         processingFinishPromise.addListener(new GenericFutureListener<Future<? super FullHttpResponse>>() {
             @Override
             public void operationComplete(Future<? super FullHttpResponse> future) throws Exception {
                 inflighRequests.decrementAndGet();
-                if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                    allPromises.remove(processingFinishPromise);
-                }
+                pool.onRequestComplete(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
             }
         });
-        clientGetFuture.addListener(new ConnectFutureListener(request, processingFinishPromise));
+        clientGetFuture.addListener(new ConnectFutureListener(pool, request, processingFinishPromise, acquireStartTime));
 
         return processingFinishPromise;
     }
@@ -80,22 +77,13 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
         testCaseStatus.setHttpClientReqRecvCount(recvRequests.get());
     }
 
-    @Override
-    public void populateTrace(StringBuilder traceBuilder) {
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            for (RequestProcessingPromise aPromise : allPromises) {
-                aPromise.populateTrace(traceBuilder);
-            }
-        }
-    }
-
     public static class RequestProcessingPromise extends DefaultPromise<FullHttpResponse> implements RequestExecutionPromise<FullHttpResponse> {
 
         @Nullable
         private EventExecutor _executor;
         private final Future<DedicatedHttpClient<FullHttpResponse, FullHttpRequest>> clientGetFuture;
         private Future<FullHttpResponse> clientProcessingFuture;
-        private final ConcurrentLinkedQueue<String> checkpoints = new ConcurrentLinkedQueue<String>();
+        private final long traceId = RequestTracer.getCurrentTrace(); // Trace of the request making this call.
 
         public RequestProcessingPromise(@Nullable EventExecutor _executor,
                                         Future<DedicatedHttpClient<FullHttpResponse,FullHttpRequest>> clientGetFuture) {
@@ -114,8 +102,12 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
             return super.cancel(mayInterruptIfRunning);
         }
 
-        public void checkpoint(String checkpoint) {
-            checkpoints.add(checkpoint);
+        public void checkpoint(RequestTracer.Checkpoint checkpoint, long arg) {
+            RequestTracer.record(traceId, checkpoint, arg);
+        }
+
+        public void checkpoint(RequestTracer.Checkpoint checkpoint) {
+            RequestTracer.record(traceId, checkpoint);
         }
 
         void setClientProcessingFuture(final RequestExecutionPromise<FullHttpResponse> clientProcessingFuture) {
@@ -125,26 +117,17 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
                 public void operationComplete(Future<FullHttpResponse> future) throws Exception {
                     _executor = clientProcessingFuture.getExecutingClientExecutor();
                     if (future.isSuccess()) {
-                        setSuccess(future.get());
+                        FullHttpResponse response = future.getNow();
+                        if (!trySuccess(response)) {
+                            response.content().release(); // Cancelled before the response arrived.
+                        }
                     } else {
-                        setFailure(future.cause());
+                        tryFailure(future.cause());
                     }
                 }
             });
         }
 
-        public void populateTrace(StringBuilder traceBuilder) {
-            traceBuilder.append('\n');
-            traceBuilder.append("****************************************");
-            traceBuilder.append('\n');
-            for (String checkpoint : checkpoints) {
-                traceBuilder.append("->");
-                traceBuilder.append(checkpoint);
-            }
-            traceBuilder.append('\n');
-            traceBuilder.append("****************************************");
-        }
-
         @Override
         protected EventExecutor executor() {
             return _executor;
@@ -161,12 +144,18 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
 
     private static class ConnectFutureListener
             implements GenericFutureListener<Future<DedicatedHttpClient<FullHttpResponse, FullHttpRequest>>> {
+        private final DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool;
         private final FullHttpRequest request;
         private final RequestProcessingPromise processingFinishPromise;
+        private final long acquireStartTime;
 
-        public ConnectFutureListener(FullHttpRequest request, RequestProcessingPromise processingFinishPromise) {
+        public ConnectFutureListener(DedicatedClientPool<FullHttpResponse, FullHttpRequest> pool,
+                                     FullHttpRequest request, RequestProcessingPromise processingFinishPromise,
+                                     long acquireStartTime) {
+            this.pool = pool;
             this.request = request;
             this.processingFinishPromise = processingFinishPromise;
+            this.acquireStartTime = acquireStartTime;
         }
 
         @Override
@@ -174,15 +163,20 @@ public class HttpClientImpl implements HttpClient<FullHttpResponse, FullHttpRequ
                 Future<DedicatedHttpClient<FullHttpResponse, FullHttpRequest>> future)
                 throws Exception {
             if (future.isSuccess()) {
-                processingFinishPromise.checkpoints.add("Connect success");
+                processingFinishPromise.checkpoint(RequestTracer.Checkpoint.ConnectionAcquired);
+                pool.onAcquired(System.currentTimeMillis() - acquireStartTime);
                 DedicatedHttpClient<FullHttpResponse, FullHttpRequest> dedicatedClient = future.get();
-                processingFinishPromise.checkpoints.add("Going to enqueue request.");
+                if (processingFinishPromise.isDone()) {
+                    processingFinishPromise.checkpoint(RequestTracer.Checkpoint.CancelledBeforeEnqueue);
+                    dedicatedClient.returnToPool();
+                    return;
+                }
                 RequestExecutionPromise<FullHttpResponse> clientProcessingPromise = dedicatedClient.execute(request, processingFinishPromise);
-                processingFinishPromise.checkpoints.add("Request enqueued");
+                processingFinishPromise.checkpoint(RequestTracer.Checkpoint.RequestEnqueued);
                 processingFinishPromise.setClientProcessingFuture(clientProcessingPromise);
             } else {
-                processingFinishPromise.checkpoints.add("Connect failed.");
-                processingFinishPromise.setFailure(future.cause());
+                processingFinishPromise.checkpoint(RequestTracer.Checkpoint.ConnectionAcquireFailed);
+                processingFinishPromise.tryFailure(future.cause());
             }
         }
     }
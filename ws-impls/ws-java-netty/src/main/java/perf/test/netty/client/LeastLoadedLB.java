@@ -0,0 +1,83 @@
+package perf.test.netty.client;
+
+import com.google.common.base.Preconditions;
+import io.netty.handler.codec.http.FullHttpRequest;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link LoadBalancer} that picks two distinct hosts at random and sends the request to the less loaded of the two
+ * ("power of two choices"). <br/>
+ * The load of a host is the product of its inflight requests (including this one) and the moving average latency of its
+ * requests, as tracked by the {@link DedicatedClientPool} of that host, or by its {@link Http2HttpClient} for HTTP/2. A
+ * slow host thus gets fewer requests, while sampling only two hosts avoids all callers herding on the single least
+ * loaded host. A host without any completed request is assumed to be as slow as the other sampled host, so that its
+ * inflight requests still count while it is being tried.
+ */
+public class LeastLoadedLB implements LoadBalancer<FullHttpRequest> {
+
+    private final InetSocketAddress[] hosts;
+    private final HttpClientFactory clientFactory;
+
+    public LeastLoadedLB(String[] hosts, int port, HttpClientFactory clientFactory) {
+        Preconditions.checkNotNull(hosts, "Hosts can not be null");
+        Preconditions.checkArgument(hosts.length > 0, "Hosts can not be empty.");
+        this.clientFactory = clientFactory;
+        this.hosts = new InetSocketAddress[hosts.length];
+        int hostIndex = 0;
+        for (String host : hosts) {
+            this.hosts[hostIndex++] = new InetSocketAddress(host, port);
+        }
+    }
+
+    @Override
+    public InetSocketAddress nextServer(FullHttpRequest request) {
+        if (hosts.length == 1) {
+            return hosts[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(hosts.length);
+        int second = random.nextInt(hosts.length - 1);
+        if (second >= first) {
+            second++; // Distinct from the first.
+        }
+        double firstLatency = getLatencyEwmaMicros(hosts[first]);
+        double secondLatency = getLatencyEwmaMicros(hosts[second]);
+        if (firstLatency == 0) {
+            firstLatency = secondLatency == 0 ? 1 : secondLatency;
+        }
+        if (secondLatency == 0) {
+            secondLatency = firstLatency;
+        }
+        double firstLoad = (getInflightRequests(hosts[first]) + 1) * firstLatency;
+        double secondLoad = (getInflightRequests(hosts[second]) + 1) * secondLatency;
+        return secondLoad < firstLoad ? hosts[second] : hosts[first];
+    }
+
+    @Override
+    public InetSocketAddress[] getAllServers() {
+        return hosts;
+    }
+
+    private long getInflightRequests(InetSocketAddress host) {
+        Http2HttpClient http2Client = clientFactory.getHttp2Client(host);
+        if (null != http2Client) {
+            return http2Client.getInflightRequests();
+        }
+        DedicatedClientPool<?, ?> pool = clientFactory.getPool(host);
+        return null == pool ? 0 : pool.getInflightRequests();
+    }
+
+    /**
+     * @return Moving average latency of the host, zero if no request to it has completed yet.
+     */
+    private double getLatencyEwmaMicros(InetSocketAddress host) {
+        Http2HttpClient http2Client = clientFactory.getHttp2Client(host);
+        if (null != http2Client) {
+            return http2Client.getLatencyEwmaMicros();
+        }
+        DedicatedClientPool<?, ?> pool = clientFactory.getPool(host);
+        return null == pool ? 0 : pool.getLatencyEwmaMicros();
+    }
+}
@@ -12,4 +12,9 @@ public class PoolExhaustedException extends Exception {
     public PoolExhaustedException(InetSocketAddress serverAddress, int maxConnections) {
         super(String.format("Client pool exhausted for server address %s. Max configured connections: %d", serverAddress, maxConnections));
     }
+
+    public PoolExhaustedException(InetSocketAddress serverAddress, int maxConnections, long waitedMillis) {
+        super(String.format("Client pool exhausted for server address %s. Max configured connections: %d. No connection available after waiting %d ms",
+                            serverAddress, maxConnections, waitedMillis));
+    }
 }
@@ -0,0 +1,100 @@
+package perf.test.netty.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import perf.test.utils.BackendResponse;
+import perf.test.utils.BackendResponseStreamParser;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A replacement for {@link io.netty.handler.codec.http.HttpObjectAggregator} in the client pipeline, that parses the
+ * content of backend responses as it arrives, using a {@link BackendResponseStreamParser}. Every chunk is parsed and
+ * released as soon as it is received, so the content is never aggregated in a single buffer. <br/>
+ * On receiving the last chunk, a {@link DecodedBackendHttpResponse} is emitted. Content of responses with a status
+ * other than {@link HttpResponseStatus#OK} is discarded.
+ */
+public class StreamingBackendResponseDecoder extends MessageToMessageDecoder<HttpObject> {
+
+    @Nullable private HttpResponse currentResponse;
+    @Nullable private BackendResponseStreamParser parser;
+    @Nullable private Throwable decodeFailure;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (msg.decoderResult().isFailure()) {
+            reset();
+            throw new DecoderException(msg.decoderResult().cause());
+        }
+
+        if (msg instanceof HttpResponse) {
+            currentResponse = (HttpResponse) msg;
+            decodeFailure = null;
+            parser = HttpResponseStatus.OK.equals(currentResponse.status()) ? new BackendResponseStreamParser()
+                                                                               : null;
+        }
+
+        if (msg instanceof HttpContent && null != currentResponse) {
+            if (null != parser && null == decodeFailure) {
+                feed(((HttpContent) msg).content());
+            }
+            if (msg instanceof LastHttpContent) {
+                out.add(newDecodedResponse());
+                reset();
+            }
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        reset();
+        super.channelInactive(ctx);
+    }
+
+    private void feed(ByteBuf content) {
+        try {
+            if (content.nioBufferCount() == 1) {
+                parser.feed(content.nioBuffer());
+            } else {
+                for (ByteBuffer buffer : content.nioBuffers()) {
+                    parser.feed(buffer);
+                }
+            }
+        } catch (IOException e) {
+            decodeFailure = e; // Rest of the content is discarded, the failure is reported with the response.
+        }
+    }
+
+    private DecodedBackendHttpResponse newDecodedResponse() {
+        BackendResponse backendResponse = null;
+        Throwable failure = decodeFailure;
+        if (null != parser && null == failure) {
+            try {
+                backendResponse = parser.getResponse();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        DecodedBackendHttpResponse decoded = new DecodedBackendHttpResponse(currentResponse.protocolVersion(),
+                                                                            currentResponse.status(),
+                                                                            backendResponse, failure);
+        decoded.headers().set(currentResponse.headers());
+        return decoded;
+    }
+
+    private void reset() {
+        currentResponse = null;
+        parser = null;
+        decodeFailure = null;
+    }
+}
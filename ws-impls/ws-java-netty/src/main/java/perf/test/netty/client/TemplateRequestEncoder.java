@@ -0,0 +1,50 @@
+package perf.test.netty.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Encodes the requests created from a {@link BackendRequestTemplate} for a single backend host, so that encoding such a
+ * request only copies the encoded request line and the encoded headers, with the id written in between. <br/>
+ * Placed after the HTTP codec in the pipeline, the encoded request is written from the context of the codec, as the
+ * HTTP encoder does not accept encoded requests. The request-response pairs tracked by the codec are only used for HEAD
+ * requests, while a template request is always a GET. A template request with other headers than the host, eg: a
+ * propagated deadline, is passed on to the codec.
+ */
+@ChannelHandler.Sharable
+class TemplateRequestEncoder extends ChannelOutboundHandlerAdapter {
+
+    private final String host;
+    private final String codecHandlerName;
+    private final ByteBuf encodedSuffix; // The end of the request line and the headers.
+
+    TemplateRequestEncoder(String host, String codecHandlerName) {
+        this.host = host;
+        this.codecHandlerName = codecHandlerName;
+        byte[] suffix = (" HTTP/1.1\r\n" + HttpHeaderNames.HOST + ": " + host + "\r\n\r\n").getBytes(CharsetUtil.UTF_8);
+        encodedSuffix = Unpooled.unreleasableBuffer(Unpooled.directBuffer(suffix.length).writeBytes(suffix));
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof BackendRequestTemplate.TemplateHttpRequest) {
+            BackendRequestTemplate.TemplateHttpRequest request = (BackendRequestTemplate.TemplateHttpRequest) msg;
+            if (request.headers().isEmpty()) {
+                ByteBuf encoded = ctx.alloc().buffer(request.getMaxRequestLineStartLength()
+                                                     + encodedSuffix.readableBytes());
+                request.encodeRequestLineStart(encoded);
+                encoded.writeBytes(encodedSuffix, encodedSuffix.readerIndex(), encodedSuffix.readableBytes());
+                ctx.pipeline().context(codecHandlerName).write(encoded, promise);
+                return;
+            }
+            request.headers().set(HttpHeaderNames.HOST, host);
+        }
+        ctx.write(msg, promise);
+    }
+}
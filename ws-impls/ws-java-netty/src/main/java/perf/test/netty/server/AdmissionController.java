@@ -0,0 +1,198 @@
+package perf.test.netty.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import perf.test.netty.EventLoopProbe;
+import perf.test.netty.PropertyNames;
+import perf.test.netty.server.tests.TestCaseHandler;
+import perf.test.netty.server.tests.TestRegistry;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the test case requests, enabled by {@link PropertyNames#ServerAdmissionEnable}. <br/>
+ * The server is saturated when the inflight requests of a test case reach {@link PropertyNames#ServerAdmissionMaxInflight}
+ * or when the lag of a server event loop exceeds {@link PropertyNames#ServerAdmissionMaxLagMs}. A saturated server sheds
+ * load as per {@link PropertyNames#ServerAdmissionAction}, so that the admitted requests still complete in time instead
+ * of all requests slowing down together:
+ * <ul>
+ * <li>{@link #ACTION_REJECT}: New test case requests are answered immediately with a 503 response, pre-encoded unless
+ * the connection may be upgraded to HTTP/2.</li>
+ * <li>{@link #ACTION_PAUSE}: Reading is stopped on new connections and on connections once their response is sent, so
+ * that the clients wait in the socket buffers. These connections resume reading once the server is no longer saturated,
+ * a few connections at a time.</li>
+ * </ul>
+ * The lag of the server event loops is measured by the {@link EventLoopProbe}. The paused connections are resumed by a
+ * task running every {@link PropertyNames#ServerAdmissionCheckIntervalMs}.
+ */
+@ChannelHandler.Sharable
+public class AdmissionController extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    public static final String ACTION_REJECT = "reject";
+    public static final String ACTION_PAUSE = "pause";
+
+    private static final ByteBuf SHED_RESPONSE = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes(("HTTP/1.1 503 Service Unavailable\r\n"
+                                                + "Content-Length: 0\r\n"
+                                                + "Connection: keep-alive\r\n"
+                                                + "Retry-After: 1\r\n\r\n").getBytes(CharsetUtil.US_ASCII)));
+
+    private final boolean pause;
+    private final long maxInflight;
+    private final long maxLagNanos;
+    private final long checkIntervalNanos;
+    private final EventLoopProbe eventLoopProbe;
+    private final ConcurrentLinkedQueue<Channel> pausedChannels = new ConcurrentLinkedQueue<Channel>();
+    private final AtomicLong shedRequests = new AtomicLong();
+    private final AtomicLong pausedConnections = new AtomicLong();
+
+    public AdmissionController(EventLoopProbe eventLoopProbe) {
+        this.eventLoopProbe = eventLoopProbe;
+        String action = PropertyNames.ServerAdmissionAction.getValueAsString();
+        if (!ACTION_PAUSE.equalsIgnoreCase(action) && !ACTION_REJECT.equalsIgnoreCase(action)) {
+            logger.warn("Unknown admission action " + action + " for property "
+                        + PropertyNames.ServerAdmissionAction.getPropertyName() + ", rejecting requests.");
+        }
+        pause = ACTION_PAUSE.equalsIgnoreCase(action);
+        maxInflight = PropertyNames.ServerAdmissionMaxInflight.getValueAsInt();
+        maxLagNanos = TimeUnit.MILLISECONDS.toNanos(PropertyNames.ServerAdmissionMaxLagMs.getValueAsInt());
+        checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(1, PropertyNames.ServerAdmissionCheckIntervalMs.getValueAsInt()));
+    }
+
+    /**
+     * Starts resuming the paused connections, if connections are paused on saturation.
+     */
+    public void start(EventLoopGroup serverEventLoopGroup) {
+        if (pause) {
+            // A single task, so that the headroom is not used up once per event loop.
+            serverEventLoopGroup.next().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    resumePausedChannels();
+                }
+            }, checkIntervalNanos, checkIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Decides whether a test case request is processed.
+     *
+     * @return {@code false} if the request must be answered with {@link #writeShedResponse(ChannelHandlerContext)}.
+     */
+    public boolean admit(TestCaseHandler handler) {
+        if (pause) {
+            return true; // The request is already read, reading more is stopped after the response.
+        }
+        if (handler.getInflightTests() >= maxInflight || isLagging()) {
+            shedRequests.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Answers a shed request with a 503 response. On an HTTP/1.1 connection with separate HTTP decoder and encoder, the
+     * pre-encoded response is written from the head of the pipeline, as the HTTP encoder does not accept encoded
+     * responses. An {@link HttpServerCodec}, used with h2c, pairs each response with the method of its request, so the
+     * response must go through it.
+     */
+    public void writeShedResponse(ChannelHandlerContext ctx) {
+        if (ctx.channel() instanceof Http2StreamChannel || null != ctx.pipeline().get(HttpServerCodec.class)) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                                                    HttpResponseStatus.SERVICE_UNAVAILABLE);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+            ctx.writeAndFlush(response, ctx.voidPromise());
+        } else {
+            ctx.pipeline().firstContext().writeAndFlush(SHED_RESPONSE.duplicate(), ctx.voidPromise());
+        }
+    }
+
+    /**
+     * Called when the response of a test case request is sent on the passed channel, which is then idle. For an HTTP/2
+     * stream, its connection is paused.
+     */
+    public void onResponseSent(Channel channel) {
+        if (pause && isSaturated()) {
+            pauseChannel(H2cServerSupport.getConnection(channel));
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (pause && isSaturated()) {
+            pauseChannel(ctx.channel());
+        }
+        super.channelActive(ctx);
+    }
+
+    public void populateStatus(StatusRetriever.Status status) {
+        status.setAdmissionAction(pause ? ACTION_PAUSE : ACTION_REJECT);
+        status.setAdmissionShedRequests(shedRequests.get());
+        status.setAdmissionPausedConnections(pausedConnections.get());
+        status.setAdmissionPausedNow(pausedChannels.size());
+    }
+
+    private void pauseChannel(Channel channel) {
+        if (!channel.config().isAutoRead()) {
+            return; // Already paused, eg: by another stream of the connection.
+        }
+        channel.config().setAutoRead(false);
+        pausedChannels.add(channel);
+        pausedConnections.incrementAndGet();
+    }
+
+    private boolean isSaturated() {
+        return getMaxInflightTests() >= maxInflight || isLagging();
+    }
+
+    private long getMaxInflightTests() {
+        long inflight = 0;
+        for (TestCaseHandler handler : TestRegistry.getAllHandlers()) {
+            inflight = Math.max(inflight, handler.getInflightTests());
+        }
+        return inflight;
+    }
+
+    private boolean isLagging() {
+        return maxLagNanos > 0 && eventLoopProbe.getMaxLagNanos(EventLoopProbe.SERVER_GROUP) > maxLagNanos;
+    }
+
+    /**
+     * Resumes reading on as many paused channels as there are requests admissible till the inflight limit, assuming a
+     * request per channel.
+     */
+    private void resumePausedChannels() {
+        if (pausedChannels.isEmpty() || isLagging()) {
+            return;
+        }
+        long headroom = maxInflight - getMaxInflightTests();
+        Channel channel;
+        while (headroom > 0 && null != (channel = pausedChannels.poll())) {
+            if (channel.isActive()) {
+                channel.config().setAutoRead(true);
+                headroom--;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package perf.test.netty.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+import perf.test.netty.PropertyNames;
+
+/**
+ * Cleartext HTTP/2 (h2c) support of the server, enabled by {@link PropertyNames#ServerHttp2Enable}. <br/>
+ * A connection that starts with the HTTP/2 connection preface (prior knowledge) or that upgrades with an
+ * "Upgrade: h2c" request talks HTTP/2, any other connection talks HTTP/1.1 as it does without h2c. <br/>
+ * Every HTTP/2 stream is a child channel of its connection, registered with the event loop of the connection. The
+ * frames of a stream are converted to HTTP/1.1 objects, so that a stream gets the same request handlers as an HTTP/1.1
+ * connection, ie: its own {@link ServerHandler}. Many concurrent requests thus share a single connection, while the
+ * connection level handlers, eg: the {@link AdmissionController}, still see a single channel.
+ */
+class H2cServerSupport {
+
+    private static final String HTTP1_FALLBACK_HANDLER_NAME = "http1Fallback";
+
+    private final ChannelHandler requestHandlersInitializer;
+    private final ChannelHandler streamInitializer;
+    private final int maxConcurrentStreams;
+    private final int maxContentLength;
+
+    /**
+     * @param requestHandlersInitializer A sharable initializer that adds the handlers of HTTP/1.1 requests, from the
+     *                                   aggregator to the {@link ServerHandler}, to an HTTP/1.1 connection or a stream.
+     */
+    H2cServerSupport(final ChannelHandler requestHandlersInitializer) {
+        this.requestHandlersInitializer = requestHandlersInitializer;
+        streamInitializer = new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(Http2StreamChannel ch) throws Exception {
+                ch.pipeline().addLast("streamCodec", new Http2StreamFrameToHttpObjectCodec(true));
+                ch.pipeline().addLast(requestHandlersInitializer);
+            }
+        };
+        maxConcurrentStreams = PropertyNames.ServerHttp2MaxConcurrentStreams.getValueAsInt();
+        maxContentLength = PropertyNames.ServerChunkSize.getValueAsInt();
+    }
+
+    /**
+     * Adds the handlers of an h2c connection at the end of the passed pipeline.
+     */
+    void configure(ChannelPipeline pipeline) {
+        final HttpServerCodec http1Codec = new HttpServerCodec();
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(http1Codec,
+            new HttpServerUpgradeHandler.UpgradeCodecFactory() {
+                @Override
+                public HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+                    if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                        return new Http2ServerUpgradeCodec(newFrameCodec(), newMultiplexHandler());
+                    }
+                    return null;
+                }
+            }, maxContentLength);
+        ChannelInitializer<Channel> priorKnowledgeInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                // Replaces the h2c handler, so the HTTP/2 handlers must be before the HTTP/1.1 fallback.
+                ch.pipeline().addBefore(HTTP1_FALLBACK_HANDLER_NAME, "http2Codec", newFrameCodec());
+                ch.pipeline().addBefore(HTTP1_FALLBACK_HANDLER_NAME, "http2Multiplexer", newMultiplexHandler());
+            }
+        };
+        pipeline.addLast("h2c", new CleartextHttp2ServerUpgradeHandler(http1Codec, upgradeHandler,
+                                                                       priorKnowledgeInitializer));
+        pipeline.addLast(HTTP1_FALLBACK_HANDLER_NAME, new Http1Fallback());
+    }
+
+    /**
+     * Returns the connection of the passed channel, which is the parent channel for an HTTP/2 stream.
+     */
+    static Channel getConnection(Channel channel) {
+        return channel instanceof Http2StreamChannel ? channel.parent() : channel;
+    }
+
+    private Http2FrameCodec newFrameCodec() {
+        return Http2FrameCodecBuilder.forServer()
+                                     .initialSettings(Http2Settings.defaultSettings()
+                                                                   .maxConcurrentStreams(maxConcurrentStreams))
+                                     .build();
+    }
+
+    private Http2MultiplexHandler newMultiplexHandler() {
+        // The upgrade request is answered on stream 1, which needs the same handlers as the other streams.
+        return new Http2MultiplexHandler(streamInitializer, streamInitializer);
+    }
+
+    /**
+     * Adds the request handlers for a connection that turns out to be HTTP/1.1, ie: on its first request that is not an
+     * upgrade. Removed without adding anything once the connection is HTTP/2, as the requests are then handled per
+     * stream.
+     */
+    private class Http1Fallback extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpMessage) {
+                ctx.pipeline().addAfter(ctx.name(), null, requestHandlersInitializer);
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof CleartextHttp2ServerUpgradeHandler.PriorKnowledgeUpgradeEvent
+                || evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package perf.test.netty.server;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import perf.test.netty.ByteBufAllocators;
+import perf.test.netty.ConnectedClientsCounter;
+import perf.test.netty.EventLoopProbe;
+import perf.test.netty.server.tests.TestCaseHandler;
+import perf.test.netty.server.tests.TestRegistry;
+import perf.test.utils.LatencyHistogram;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Machine readable counterpart of {@link StatusRetriever}. The metrics are written either as JSON or in the prometheus
+ * text exposition format and contain the request latency histograms per test case and per backend call, the connection
+ * pool acquire times, the allocation rates and, if the event loops are probed, the lag, pending tasks and busy time of
+ * every event loop. <br/>
+ * Latencies are in milliseconds, the histogram buckets are cumulative as required by prometheus.
+ */
+public class MetricsRetriever {
+
+    public static final String FORMAT_PARAM = "format";
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+    public static final String JSON_CONTENT_TYPE = "application/json";
+
+    private static final String PREFIX = "wsperf_";
+    private static final long[] LATENCY_BUCKETS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final ConnectedClientsCounter connectedClientsCounter;
+    @Nullable private final EventLoopProbe eventLoopProbe;
+
+    // Guarded by this. Bytes allocated by every thread when last read, so that the bytes of the threads that died since
+    // are still counted.
+    private final Map<Long, Long> threadIdVsAllocatedBytes = new HashMap<Long, Long>();
+    private long deadThreadsAllocatedBytes;
+
+    public MetricsRetriever(ConnectedClientsCounter connectedClientsCounter, @Nullable EventLoopProbe eventLoopProbe) {
+        this.connectedClientsCounter = connectedClientsCounter;
+        this.eventLoopProbe = eventLoopProbe;
+    }
+
+    public String getMetrics(boolean prometheus) throws IOException {
+        MetricsWriter writer = prometheus ? new PrometheusWriter() : new JsonWriter();
+        write(writer);
+        return writer.finish();
+    }
+
+    private void write(MetricsWriter writer) throws IOException {
+        Collection<TestCaseHandler> allHandlers = TestRegistry.getAllHandlers();
+        StatusRetriever.Status status = new StatusRetriever.Status();
+        Map<String, TestCaseMetrics> testNameVsMetrics = new TreeMap<String, TestCaseMetrics>();
+        for (TestCaseHandler handler : allHandlers) {
+            handler.populateStatus(status);
+            TestCaseMetrics metrics = new TestCaseMetrics();
+            handler.populateMetrics(metrics);
+            testNameVsMetrics.put(handler.getTestCaseName(), metrics);
+        }
+        connectedClientsCounter.populateStatus(status);
+        ByteBufAllocators.populateStatus(status);
+        Map<String, StatusRetriever.TestCaseStatus> testNameVsStatus =
+                new TreeMap<String, StatusRetriever.TestCaseStatus>(status.getTestNameVSStatus());
+
+        writer.gauge("connected_clients", "Clients connected on the server port.", status.getConnectedClients());
+
+        // Metrics of the same name are written together, the prometheus format requires them to be grouped.
+        writeEventLoops(writer, status);
+
+        writer.counter("allocated_bytes_total", "Bytes allocated on the heap by all threads since startup.",
+                       getThreadAllocatedBytes());
+        writer.gauge("allocator_used_heap_bytes", "Heap memory used by the ByteBuf allocator.",
+                     status.getAllocatorUsedHeapMemory());
+        writer.gauge("allocator_used_direct_bytes", "Direct memory used by the ByteBuf allocator.",
+                     status.getAllocatorUsedDirectMemory());
+        writer.counter("gc_count_total", "Garbage collections since startup.", status.getGcCount());
+        writer.counter("gc_time_ms_total", "Time spent in garbage collection since startup.",
+                       status.getGcTimeMillis());
+
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            writer.gauge("test_inflight_requests", "Test case requests being processed.",
+                         entry.getValue().getInflightTests(), "test", entry.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            writer.counter("test_requests_total", "Test case requests received.",
+                           entry.getValue().getRequestRecvCount(), "test", entry.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            writer.counter("test_errors_total", "Test case requests that failed with an error.",
+                           entry.getValue().getTestWithErrors(), "test", entry.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            for (Map.Entry<String, Long> statusClass : entry.getValue().getResponsesByStatusClass().entrySet()) {
+                writer.counter("responses_total", "Test case responses sent by status class.",
+                               statusClass.getValue(), "test", entry.getKey(), "class", statusClass.getKey());
+            }
+        }
+        for (Map.Entry<String, TestCaseMetrics> entry : testNameVsMetrics.entrySet()) {
+            if (null != entry.getValue().requestLatencies) {
+                writer.histogram("test_request_latency_ms", "Latency of the test case requests.",
+                                 entry.getValue().requestLatencies, "test", entry.getKey());
+            }
+        }
+        for (Map.Entry<String, TestCaseMetrics> entry : testNameVsMetrics.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> call : entry.getValue().backendCallLatencies.entrySet()) {
+                writer.histogram("backend_call_latency_ms", "Latency of the backend calls by call index.",
+                                 call.getValue(), "test", entry.getKey(), "call", call.getKey());
+            }
+        }
+        for (Map.Entry<String, TestCaseMetrics> entry : testNameVsMetrics.entrySet()) {
+            for (Map.Entry<InetSocketAddress, LatencyHistogram> pool : entry.getValue().poolAcquireTimes.entrySet()) {
+                writer.histogram("pool_acquire_time_ms", "Time taken to acquire a backend connection.",
+                                 pool.getValue(), "test", entry.getKey(), "backend", toLabel(pool.getKey()));
+            }
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            for (Map.Entry<InetSocketAddress, StatusRetriever.ConnPoolStatus> pool
+                    : entry.getValue().getServerVsConnPoolStatus().entrySet()) {
+                writer.gauge("pool_connections", "Backend connections in the pool.",
+                             pool.getValue().getTotalConnectionsCount(), "test", entry.getKey(),
+                             "backend", toLabel(pool.getKey()));
+            }
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            for (Map.Entry<InetSocketAddress, StatusRetriever.ConnPoolStatus> pool
+                    : entry.getValue().getServerVsConnPoolStatus().entrySet()) {
+                writer.gauge("pool_available_connections", "Idle backend connections in the pool.",
+                             pool.getValue().getAvailableConnectionsCount(), "test", entry.getKey(),
+                             "backend", toLabel(pool.getKey()));
+            }
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            for (Map.Entry<InetSocketAddress, StatusRetriever.ConnPoolStatus> pool
+                    : entry.getValue().getServerVsConnPoolStatus().entrySet()) {
+                writer.gauge("pool_pending_acquires", "Requests waiting for a backend connection.",
+                             pool.getValue().getPendingAcquires(), "test", entry.getKey(),
+                             "backend", toLabel(pool.getKey()));
+            }
+        }
+        for (Map.Entry<String, StatusRetriever.TestCaseStatus> entry : testNameVsStatus.entrySet()) {
+            for (Map.Entry<InetSocketAddress, StatusRetriever.ConnPoolStatus> pool
+                    : entry.getValue().getServerVsConnPoolStatus().entrySet()) {
+                writer.counter("pool_acquire_timeouts_total", "Requests that timed out waiting for a connection.",
+                               pool.getValue().getAcquireTimeouts(), "test", entry.getKey(),
+                               "backend", toLabel(pool.getKey()));
+            }
+        }
+    }
+
+    private void writeEventLoops(MetricsWriter writer, StatusRetriever.Status status) throws IOException {
+        if (null == eventLoopProbe) {
+            return;
+        }
+        eventLoopProbe.populateStatus(status);
+        Map<String, StatusRetriever.EventLoopStatus> loops = status.getEventLoopStatus();
+        for (Map.Entry<String, StatusRetriever.EventLoopStatus> loop : loops.entrySet()) {
+            writer.gauge("eventloop_lag_us", "Delay of the last probe task run on the event loop.",
+                         loop.getValue().getLastLagMicros(), "group", loop.getValue().getGroup(), "loop", loop.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.EventLoopStatus> loop : loops.entrySet()) {
+            writer.gauge("eventloop_max_lag_us", "Maximum delay of the probe task in the last second.",
+                         loop.getValue().getMaxLagMicros(), "group", loop.getValue().getGroup(), "loop", loop.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.EventLoopStatus> loop : loops.entrySet()) {
+            writer.gauge("eventloop_pending_tasks", "Tasks waiting in the event loop task queue.",
+                         loop.getValue().getPendingTasks(), "group", loop.getValue().getGroup(), "loop", loop.getKey());
+        }
+        for (Map.Entry<String, StatusRetriever.EventLoopStatus> loop : loops.entrySet()) {
+            writer.gauge("eventloop_busy_percent", "CPU time of the event loop thread in the last second, -1 if unknown.",
+                         loop.getValue().getBusyPercent(), "group", loop.getValue().getGroup(), "loop", loop.getKey());
+        }
+    }
+
+    private static String toLabel(InetSocketAddress address) {
+        return address.getHostName() + ':' + address.getPort();
+    }
+
+    /**
+     * Returns the bytes allocated by the live threads plus those allocated by the dead threads till the previous call,
+     * so that the total never drops when a thread exits. The bytes allocated by a thread after the previous call and
+     * before it exited are not counted.
+     */
+    private synchronized long getThreadAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!sunThreadMXBean.isThreadAllocatedMemorySupported() || !sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return 0;
+        }
+        long[] threadIds = sunThreadMXBean.getAllThreadIds();
+        long[] allocatedBytes = sunThreadMXBean.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> previous = new HashMap<Long, Long>(threadIdVsAllocatedBytes);
+        threadIdVsAllocatedBytes.clear();
+        long total = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocatedBytes[i] >= 0) { // -1 for threads that died since the ids were read.
+                threadIdVsAllocatedBytes.put(threadIds[i], allocatedBytes[i]);
+                previous.remove(threadIds[i]);
+                total += allocatedBytes[i];
+            }
+        }
+        for (long deadThreadAllocatedBytes : previous.values()) {
+            deadThreadsAllocatedBytes += deadThreadAllocatedBytes;
+        }
+        return total + deadThreadsAllocatedBytes;
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private interface MetricsWriter {
+
+        /**
+         * @param labels Alternating label names and values.
+         */
+        void gauge(String name, String help, long value, String... labels) throws IOException;
+
+        void counter(String name, String help, long value, String... labels) throws IOException;
+
+        void histogram(String name, String help, LatencyHistogram histogram, String... labels) throws IOException;
+
+        String finish() throws IOException;
+    }
+
+    private static class PrometheusWriter implements MetricsWriter {
+
+        private final StringBuilder out = new StringBuilder();
+        private String lastName;
+
+        @Override
+        public void gauge(String name, String help, long value, String... labels) {
+            writeHeader(name, help, "gauge");
+            writeSample(PREFIX + name, labels, null, value);
+        }
+
+        @Override
+        public void counter(String name, String help, long value, String... labels) {
+            writeHeader(name, help, "counter");
+            writeSample(PREFIX + name, labels, null, value);
+        }
+
+        @Override
+        public void histogram(String name, String help, LatencyHistogram histogram, String... labels) {
+            writeHeader(name, help, "histogram");
+            long count = histogram.getCount();
+            for (long bucket : LATENCY_BUCKETS_MILLIS) {
+                writeSample(PREFIX + name + "_bucket", labels, String.valueOf(bucket),
+                            Math.min(count, histogram.getCountAtOrBelow(bucket)));
+            }
+            writeSample(PREFIX + name + "_bucket", labels, "+Inf", count);
+            writeSample(PREFIX + name + "_sum", labels, null, histogram.getSum());
+            writeSample(PREFIX + name + "_count", labels, null, count);
+        }
+
+        @Override
+        public String finish() {
+            return out.toString();
+        }
+
+        private void writeHeader(String name, String help, String type) {
+            if (name.equals(lastName)) {
+                return;
+            }
+            lastName = name;
+            out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        }
+
+        private void writeSample(String name, String[] labels, String le, long value) {
+            out.append(name);
+            if (labels.length > 0 || null != le) {
+                out.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(labels[i]).append("=\"").append(escapeLabelValue(labels[i + 1])).append('"');
+                }
+                if (null != le) {
+                    if (labels.length > 0) {
+                        out.append(',');
+                    }
+                    out.append("le=\"").append(le).append('"');
+                }
+                out.append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    private static class JsonWriter implements MetricsWriter {
+
+        private final StringWriter out = new StringWriter();
+        private final JsonGenerator generator;
+
+        private JsonWriter() throws IOException {
+            generator = jsonFactory.createJsonGenerator(out);
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", System.currentTimeMillis());
+            generator.writeArrayFieldStart("metrics");
+        }
+
+        @Override
+        public void gauge(String name, String help, long value, String... labels) throws IOException {
+            writeStart(name, "gauge", labels);
+            generator.writeNumberField("value", value);
+            generator.writeEndObject();
+        }
+
+        @Override
+        public void counter(String name, String help, long value, String... labels) throws IOException {
+            writeStart(name, "counter", labels);
+            generator.writeNumberField("value", value);
+            generator.writeEndObject();
+        }
+
+        @Override
+        public void histogram(String name, String help, LatencyHistogram histogram, String... labels)
+                throws IOException {
+            writeStart(name, "histogram", labels);
+            long count = histogram.getCount();
+            generator.writeNumberField("count", count);
+            generator.writeNumberField("sum", histogram.getSum());
+            generator.writeNumberField("p50", Math.max(0, histogram.getPercentile(50)));
+            generator.writeNumberField("p90", Math.max(0, histogram.getPercentile(90)));
+            generator.writeNumberField("p99", Math.max(0, histogram.getPercentile(99)));
+            generator.writeNumberField("max", Math.max(0, histogram.getPercentile(100)));
+            generator.writeObjectFieldStart("buckets");
+            for (long bucket : LATENCY_BUCKETS_MILLIS) {
+                generator.writeNumberField(String.valueOf(bucket), Math.min(count, histogram.getCountAtOrBelow(bucket)));
+            }
+            generator.writeNumberField("+Inf", count);
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+
+        @Override
+        public String finish() throws IOException {
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.close();
+            return out.toString();
+        }
+
+        private void writeStart(String name, String type, String[] labels) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("name", PREFIX + name);
+            generator.writeStringField("type", type);
+            if (labels.length > 0) {
+                generator.writeObjectFieldStart("labels");
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    generator.writeStringField(labels[i], labels[i + 1]);
+                }
+                generator.writeEndObject();
+            }
+        }
+    }
+
+    /**
+     * Histograms of a test case, populated by {@link TestCaseHandler#populateMetrics(TestCaseMetrics)}.
+     */
+    public static class TestCaseMetrics {
+
+        private LatencyHistogram requestLatencies;
+        private final Map<String, LatencyHistogram> backendCallLatencies = new TreeMap<String, LatencyHistogram>();
+        private final Map<InetSocketAddress, LatencyHistogram> poolAcquireTimes =
+                new HashMap<InetSocketAddress, LatencyHistogram>();
+
+        public void setRequestLatencies(LatencyHistogram requestLatencies) {
+            this.requestLatencies = requestLatencies;
+        }
+
+        public void addBackendCallLatencies(String callName, LatencyHistogram latencies) {
+            backendCallLatencies.put(callName, latencies);
+        }
+
+        public void addPoolAcquireTimes(InetSocketAddress server, LatencyHistogram acquireTimes) {
+            poolAcquireTimes.put(server, acquireTimes);
+        }
+    }
+}
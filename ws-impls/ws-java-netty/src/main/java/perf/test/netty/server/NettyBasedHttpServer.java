@@ -1,30 +1,37 @@
 package perf.test.netty.server;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.oio.OioEventLoopGroup;
 import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.oio.OioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import perf.test.netty.ByteBufAllocators;
 import perf.test.netty.ConnectedClientsCounter;
+import perf.test.netty.EventLoopProbe;
+import perf.test.netty.NativeTransport;
 import perf.test.netty.ProcessingTimesStartInterceptor;
 import perf.test.netty.PropertyNames;
 import perf.test.netty.client.PoolExhaustedException;
 import perf.test.netty.server.tests.TestRegistry;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A simple server based on netty. The server starts on port as specified by {@link PropertyNames#ServerPort}.
@@ -36,8 +43,10 @@ public class NettyBasedHttpServer {
     private final Logger logger = LoggerFactory.getLogger(NettyBasedHttpServer.class);
 
     private final int port;
-    private ServerBootstrap bootstrap;
+    private EventLoopGroup serverEventLoopGrp;
     private ConnectedClientsCounter connectedClientsCounter;
+    private final ServerDrainer drainer = new ServerDrainer();
+    private final List<Channel> serverChannels = new ArrayList<Channel>();
 
     public NettyBasedHttpServer() {
         port = PropertyNames.ServerPort.getValueAsInt();
@@ -48,55 +57,168 @@ public class NettyBasedHttpServer {
      *
      * @throws InterruptedException If the {@link TestRegistry} was interrupted during startup.
      */
+    @SuppressWarnings("deprecation") // Blocking IO uses the OIO transport, deprecated in netty 4.1.
     public void start() throws InterruptedException, PoolExhaustedException {
-        bootstrap = new ServerBootstrap();
         connectedClientsCounter = new ConnectedClientsCounter();
-        final StatusRetriever statusRetriever = new StatusRetriever(connectedClientsCounter);
-        final EventLoopGroup serverEventLoopGrp;
+        final EventLoopProbe eventLoopProbe = PropertyNames.EventLoopProbeEnable.getValueAsBoolean()
+                                              || PropertyNames.ServerAdmissionEnable.getValueAsBoolean()
+                                              ? new EventLoopProbe() : null;
+        final AdmissionController admissionController = PropertyNames.ServerAdmissionEnable.getValueAsBoolean()
+                                                        ? new AdmissionController(eventLoopProbe) : null;
+        final StatusRetriever statusRetriever = new StatusRetriever(connectedClientsCounter, admissionController,
+                                                                    eventLoopProbe);
+        final MetricsRetriever metricsRetriever = new MetricsRetriever(connectedClientsCounter, eventLoopProbe);
         final Class<? extends ServerSocketChannel> channelClass;
+        final boolean serverEpoll = !PropertyNames.ServerIOBlocking.getValueAsBoolean()
+                                    && NativeTransport.isEpollEnabled(PropertyNames.ServerIONativeEpoll);
         if (PropertyNames.ServerIOBlocking.getValueAsBoolean()) {
-            channelClass = OioServerSocketChannel.class;
-            serverEventLoopGrp = new OioEventLoopGroup(PropertyNames.ServerEventLoopCount.getValueAsInt());
+            channelClass = io.netty.channel.socket.oio.OioServerSocketChannel.class;
+            serverEventLoopGrp = new io.netty.channel.oio.OioEventLoopGroup(PropertyNames.ServerEventLoopCount.getValueAsInt());
+        } else if (serverEpoll) {
+            channelClass = EpollServerSocketChannel.class;
+            serverEventLoopGrp = NativeTransport.newEpollEventLoopGroup(PropertyNames.ServerEventLoopCount.getValueAsInt());
         } else {
             channelClass = NioServerSocketChannel.class;
             serverEventLoopGrp = new NioEventLoopGroup(PropertyNames.ServerEventLoopCount.getValueAsInt());
         }
-        bootstrap.group(serverEventLoopGrp)
-                 .channel(channelClass).childOption(ChannelOption.SO_KEEPALIVE, true)
-                 .childHandler(new ChannelInitializer<SocketChannel>() {
-                     @Override
-                     protected void initChannel(SocketChannel ch) throws Exception {
-                         ChannelPipeline pipeline = ch.pipeline();
-                         pipeline.addFirst("clientCounter", connectedClientsCounter);
-                         if (PropertyNames.ServerLoggingEnable.getValueAsBoolean()) {
-                             pipeline.addLast("logger", new LoggingHandler(LogLevel.DEBUG));
-                         }
-                         pipeline.addLast("decoder", new HttpRequestDecoder());
-                         pipeline.addLast("aggregator",
-                                          new HttpObjectAggregator(PropertyNames.ServerChunkSize.getValueAsInt()));
-                         pipeline.addFirst("timingStart", new ProcessingTimesStartInterceptor());
-                         pipeline.addLast("encoder", new HttpResponseEncoder());
-                         pipeline.addLast("timingEnd", new ProcessingTimeEndInterceptor());
-                         pipeline.addLast("handler",
-                                          new ServerHandler(statusRetriever,
-                                                            PropertyNames.ServerContextPath.getValueAsString()));
-                     }
-                 });
-        bootstrap.bind(new InetSocketAddress(port));
+        final ChannelInitializer<Channel> requestHandlersInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                // For an h2c connection, the HTTP/1.1 codec or the HTTP/2 stream codec is already in the pipeline.
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("aggregator",
+                                 new HttpObjectAggregator(PropertyNames.ServerChunkSize.getValueAsInt()));
+                pipeline.addLast("timingStart", new ProcessingTimesStartInterceptor());
+                pipeline.addLast("timingEnd", new ProcessingTimeEndInterceptor());
+                pipeline.addLast("handler",
+                                 new ServerHandler(statusRetriever, metricsRetriever, admissionController,
+                                                   drainer, PropertyNames.ServerContextPath.getValueAsString()));
+            }
+        };
+        final H2cServerSupport h2cServerSupport = PropertyNames.ServerHttp2Enable.getValueAsBoolean()
+                                                  ? new H2cServerSupport(requestHandlersInitializer) : null;
+        final ChannelInitializer<SocketChannel> channelInitializer = new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addFirst("clientCounter", connectedClientsCounter);
+                if (null != admissionController) {
+                    pipeline.addLast("admission", admissionController);
+                }
+                if (PropertyNames.ServerLoggingEnable.getValueAsBoolean()) {
+                    pipeline.addLast("logger", new LoggingHandler(LogLevel.DEBUG));
+                }
+                if (null != h2cServerSupport) {
+                    h2cServerSupport.configure(pipeline);
+                    return;
+                }
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("aggregator",
+                                 new HttpObjectAggregator(PropertyNames.ServerChunkSize.getValueAsInt()));
+                pipeline.addFirst("timingStart", new ProcessingTimesStartInterceptor());
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("timingEnd", new ProcessingTimeEndInterceptor());
+                pipeline.addLast("handler",
+                                 new ServerHandler(statusRetriever, metricsRetriever, admissionController,
+                                                   drainer, PropertyNames.ServerContextPath.getValueAsString()));
+            }
+        };
+        if (null != eventLoopProbe) {
+            eventLoopProbe.addEventLoopGroup(EventLoopProbe.SERVER_GROUP, serverEventLoopGrp);
+        }
+        if (null != admissionController) {
+            admissionController.start(serverEventLoopGrp);
+        }
+        List<EventLoop> serverEventLoops = getEventLoops(serverEventLoopGrp);
+        final int acceptorCount = getAcceptorCount(serverEventLoops, serverEpoll);
+        if (acceptorCount > 1) {
+            // Every acceptor binds its own socket on its own event loop and the kernel balances the new connections
+            // across these sockets. With an acceptor per event loop, a connection stays on the loop that accepted it.
+            for (int i = 0; i < acceptorCount; i++) {
+                EventLoop acceptorLoop = serverEventLoops.get(i);
+                EventLoopGroup childGroup = acceptorCount == serverEventLoops.size() ? acceptorLoop : serverEventLoopGrp;
+                ServerBootstrap bootstrap = newServerBootstrap(acceptorLoop, childGroup, channelClass,
+                                                               channelInitializer, serverEpoll);
+                NativeTransport.enableReusePort(bootstrap);
+                serverChannels.add(bootstrap.bind(new InetSocketAddress(port)).channel());
+            }
+        } else {
+            ServerBootstrap bootstrap = newServerBootstrap(serverEventLoopGrp, serverEventLoopGrp, channelClass,
+                                                           channelInitializer, serverEpoll);
+            serverChannels.add(bootstrap.bind(new InetSocketAddress(port)).channel());
+        }
         final EventLoopGroup clientEventLoopGrp;
-        if (PropertyNames.ClientIOBlocking.getValueAsBoolean()) {
-            clientEventLoopGrp = new OioEventLoopGroup(PropertyNames.ClientEventLoopCount.getValueAsInt());
+        if (PropertyNames.ClientEventLoopAffinity.getValueAsBoolean() && !PropertyNames.ServerIOBlocking.getValueAsBoolean()
+            && !PropertyNames.ClientIOBlocking.getValueAsBoolean()) {
+            // Backend connections are registered with the server event loops, so that the backend calls for a request
+            // are made on the event loop of the request.
+            clientEventLoopGrp = serverEventLoopGrp;
+        } else if (PropertyNames.ClientIOBlocking.getValueAsBoolean()) {
+            clientEventLoopGrp = new io.netty.channel.oio.OioEventLoopGroup(PropertyNames.ClientEventLoopCount.getValueAsInt());
+        } else if (NativeTransport.isEpollEnabled(PropertyNames.ClientIONativeEpoll)) {
+            clientEventLoopGrp = NativeTransport.newEpollEventLoopGroup(PropertyNames.ClientEventLoopCount.getValueAsInt());
         } else {
             clientEventLoopGrp = new NioEventLoopGroup(PropertyNames.ClientEventLoopCount.getValueAsInt());
         }
+        if (null != eventLoopProbe && clientEventLoopGrp != serverEventLoopGrp) {
+            eventLoopProbe.addEventLoopGroup(EventLoopProbe.CLIENT_GROUP, clientEventLoopGrp);
+        }
         TestRegistry.init(clientEventLoopGrp);
 
-        logger.info("Netty server started at port: " + port);
+        logger.info("Netty server started at port: " + port + (null != h2cServerSupport ? " with h2c" : "")
+                    + (serverEpoll ? " with native epoll transport" : "")
+                    + (acceptorCount > 1 ? " and " + acceptorCount + " acceptors." : "."));
     }
 
+    private static ServerBootstrap newServerBootstrap(EventLoopGroup parentGroup, EventLoopGroup childGroup,
+                                                      Class<? extends ServerSocketChannel> channelClass,
+                                                      ChannelInitializer<SocketChannel> channelInitializer,
+                                                      boolean serverEpoll) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(parentGroup, childGroup)
+                 .channel(channelClass).childOption(ChannelOption.SO_KEEPALIVE, true)
+                 .option(ChannelOption.ALLOCATOR, ByteBufAllocators.get())
+                 .childOption(ChannelOption.ALLOCATOR, ByteBufAllocators.get())
+                 .childHandler(channelInitializer);
+        NativeTransport.configureServer(bootstrap, serverEpoll);
+        return bootstrap;
+    }
+
+    /**
+     * Returns the number of server sockets to bind as per {@link PropertyNames#ServerAcceptorCount}, at most one per
+     * event loop. Multiple sockets can only bind the same port with SO_REUSEPORT, ie: with the epoll transport.
+     */
+    private int getAcceptorCount(List<EventLoop> serverEventLoops, boolean serverEpoll) {
+        int acceptorCount = PropertyNames.ServerAcceptorCount.getValueAsInt();
+        if (acceptorCount == 1) {
+            return 1;
+        }
+        if (!serverEpoll) {
+            logger.warn("Multiple acceptors requested by " + PropertyNames.ServerAcceptorCount.getPropertyName()
+                        + " need the epoll transport, using a single acceptor.");
+            return 1;
+        }
+        return acceptorCount <= 0 ? serverEventLoops.size() : Math.min(acceptorCount, serverEventLoops.size());
+    }
+
+    private static List<EventLoop> getEventLoops(EventLoopGroup group) {
+        List<EventLoop> eventLoops = new ArrayList<EventLoop>();
+        for (EventExecutor executor : group) {
+            eventLoops.add((EventLoop) executor);
+        }
+        return eventLoops;
+    }
+
+    /**
+     * Stops the server. If {@link PropertyNames#ServerDrainTimeoutMs} is set, the server is drained first, so that the
+     * inflight requests complete before their backend connections are closed.
+     */
     public void stop() {
+        int drainTimeoutMs = PropertyNames.ServerDrainTimeoutMs.getValueAsInt();
+        if (drainTimeoutMs > 0) {
+            drainer.drain(serverChannels, drainTimeoutMs);
+        }
         TestRegistry.shutdown();
-        bootstrap.childGroup().shutdownGracefully();
-        bootstrap.group().shutdownGracefully();
+        serverEventLoopGrp.shutdownGracefully();
     }
 }
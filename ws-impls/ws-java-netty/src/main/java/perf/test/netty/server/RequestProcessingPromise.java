@@ -3,40 +3,50 @@ package perf.test.netty.server;
 import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.util.concurrent.DefaultPromise;
-import perf.test.netty.PropertyNames;
+import perf.test.netty.RequestTracer;
+import perf.test.utils.Deadline;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.annotation.Nullable;
 
 /**
  * @author Nitesh Kant
  */
 public class RequestProcessingPromise extends DefaultPromise<FullHttpResponse> {
 
-    private final ConcurrentLinkedQueue<String> checkpoints = new ConcurrentLinkedQueue<String>();
     private String testCaseId;
+    private volatile long traceId = RequestTracer.NOT_TRACED;
+    @Nullable private volatile Deadline deadline;
 
     public RequestProcessingPromise(EventLoop eventExecutor) {
         super(eventExecutor);
     }
 
-    public void checkpoint(String checkpoint) {
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            checkpoints.add(checkpoint);
-        }
+    public void checkpoint(RequestTracer.Checkpoint checkpoint, long arg) {
+        RequestTracer.record(traceId, checkpoint, arg);
     }
 
-    public void populateTrace(StringBuilder traceBuilder) {
-        traceBuilder.append('\n');
-        traceBuilder.append("****************************************");
-        traceBuilder.append("Trace Id: ").append(testCaseId).append('\n');
-        for (String checkpoint : checkpoints) {
-            traceBuilder.append("->");
-            traceBuilder.append(checkpoint);
-        }
-        traceBuilder.append("****************************************");
+    public void checkpoint(RequestTracer.Checkpoint checkpoint) {
+        RequestTracer.record(traceId, checkpoint);
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(long traceId) {
+        this.traceId = traceId;
     }
 
     public void setTestCaseId(String testCaseId) {
         this.testCaseId = testCaseId;
     }
+
+    @Nullable
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(@Nullable Deadline deadline) {
+        this.deadline = deadline;
+    }
 }
@@ -12,7 +12,7 @@ import perf.test.netty.client.PoolExhaustedException;
 public class ServerBootstrap {
 
     public static void main(String[] args) throws InterruptedException, PoolExhaustedException {
-        InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
+        InternalLoggerFactory.setDefaultFactory(Slf4JLoggerFactory.INSTANCE);
 
         final NettyBasedHttpServer nettyBasedHttpServer = new NettyBasedHttpServer();
 
@@ -0,0 +1,65 @@
+package perf.test.netty.server;
+
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import perf.test.netty.PropertyNames;
+import perf.test.netty.server.tests.TestCaseHandler;
+import perf.test.netty.server.tests.TestRegistry;
+
+import java.util.Collection;
+
+/**
+ * Drains the server on shutdown, enabled by a non-zero {@link PropertyNames#ServerDrainTimeoutMs}. <br/>
+ * Draining closes the server channels, so that no new connections are accepted, and then waits till all the inflight
+ * test case requests complete or the drain timeout expires, after which the remaining requests are killed by the
+ * shutdown. While draining, every response closes its connection, so that the clients move to another server instead of
+ * sending more requests on the existing connections.
+ */
+public class ServerDrainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerDrainer.class);
+
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private volatile boolean draining;
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Drains the server, blocking the caller till all the inflight requests complete or the timeout expires.
+     *
+     * @return The number of requests still inflight when the timeout expired.
+     */
+    public long drain(Collection<Channel> serverChannels, long timeoutMillis) {
+        final long startTime = System.currentTimeMillis();
+        draining = true;
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.close().awaitUninterruptibly();
+        }
+        long inflight = getInflightTests();
+        logger.info("Draining the server, stopped accepting connections. Inflight requests: " + inflight);
+        while (inflight > 0 && System.currentTimeMillis() - startTime < timeoutMillis) {
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            inflight = getInflightTests();
+        }
+        logger.info(String.format("Server drained in %d ms, inflight requests killed: %d",
+                                  System.currentTimeMillis() - startTime, inflight));
+        return inflight;
+    }
+
+    private static long getInflightTests() {
+        long inflight = 0;
+        for (TestCaseHandler handler : TestRegistry.getAllHandlers()) {
+            inflight += handler.getInflightTests();
+        }
+        return inflight;
+    }
+}
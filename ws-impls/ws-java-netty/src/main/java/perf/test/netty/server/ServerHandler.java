@@ -1,6 +1,8 @@
 package perf.test.netty.server;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -9,7 +11,8 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.QueryStringDecoder;
@@ -22,6 +25,7 @@ import org.codehaus.jackson.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import perf.test.netty.PropertyNames;
+import perf.test.netty.RequestTracer;
 import perf.test.netty.server.tests.TestCaseHandler;
 import perf.test.netty.server.tests.TestRegistry;
 import perf.test.utils.EventLogger;
@@ -29,12 +33,9 @@ import perf.test.utils.PerformanceLogger;
 import perf.test.utils.netty.SourceRequestState;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Server handler to server testcase execution requests. This server expects all the requests to start with a valid test
@@ -53,29 +54,49 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
 
     private final Logger logger = LoggerFactory.getLogger(ServerHandler.class);
 
-    private static final ConcurrentHashMap<Integer, AtomicLong> respCodeVsCount = new ConcurrentHashMap<Integer, AtomicLong>(); //TODO: Should be test specific.
-    private static final AtomicLong sendFailedCount = new AtomicLong(); //TODO: Should be test specific.
-
     private final StatusRetriever statusRetriever;
+    private final MetricsRetriever metricsRetriever;
+    @Nullable private final AdmissionController admissionController;
+    private final ServerDrainer drainer;
     private final JsonFactory jsonFactory = new JsonFactory();
     private final String contextPath;
 
     private static final AttributeKey<Promise<FullHttpResponse>> promiseKey =
-            new AttributeKey<Promise<FullHttpResponse>>("req_processing_complete_promise");
-
-    private static final AttributeKey<Boolean> testCaseRequest = new AttributeKey<Boolean>("is_test_case_request");
-    private static final AttributeKey<String> testCaseName = new AttributeKey<String>("test_case_name");
+            AttributeKey.valueOf("req_processing_complete_promise");
 
-    private static final ConcurrentLinkedQueue<RequestProcessingPromise> allPromises = new ConcurrentLinkedQueue<RequestProcessingPromise>();
+    private static final AttributeKey<Boolean> testCaseRequest = AttributeKey.valueOf("is_test_case_request");
+    private static final AttributeKey<TestCaseHandler> testCaseHandler = AttributeKey.valueOf("test_case_handler");
 
-    public ServerHandler(StatusRetriever statusRetriever, String contextPath) {
+    public ServerHandler(StatusRetriever statusRetriever, MetricsRetriever metricsRetriever,
+                         @Nullable AdmissionController admissionController, ServerDrainer drainer,
+                         String contextPath) {
         this.statusRetriever = statusRetriever;
+        this.metricsRetriever = metricsRetriever;
+        this.admissionController = admissionController;
+        this.drainer = drainer;
         this.contextPath = contextPath;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
 
+        QueryStringDecoder qpDecoder = new QueryStringDecoder(request.uri());
+        String path = qpDecoder.path();
+        boolean inContextPath = !path.isEmpty() && path.startsWith(contextPath);
+        TestCaseHandler handler = null;
+        if (inContextPath) {
+            path = path.substring(contextPath.length());
+            handler = TestRegistry.getHandler(path);
+            logger.debug(String.format("Test case handler for path %s is %s", path, handler));
+        }
+
+        if (null != handler && null != admissionController && !admissionController.admit(handler)) {
+            // Shed before creating any state for the request, the response is already encoded.
+            admissionController.writeShedResponse(ctx);
+            handler.onResponseSent(HttpResponseStatus.SERVICE_UNAVAILABLE.code());
+            return;
+        }
+
         final RequestProcessingPromise requestProcessingPromise = new RequestProcessingPromise(ctx.channel().eventLoop());
 
         requestProcessingPromise.addListener(new RequestProcessingCompleteListener(ctx));
@@ -89,51 +110,54 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         perfLogger.start(reqId, "top");
 
 
-        QueryStringDecoder qpDecoder = new QueryStringDecoder(request.getUri());
-        String path = qpDecoder.path();
         boolean handled = false;
 
-        if (!path.isEmpty() && path.startsWith(contextPath)) {
-            path = path.substring(contextPath.length());
-            TestCaseHandler handler = TestRegistry.getHandler(path);
-            logger.debug(String.format("Test case handler for path %s is %s", path, handler));
+        if (inContextPath) {
             if (null != handler) {
-                ctx.channel().attr(testCaseName).set(path);
+                ctx.channel().attr(testCaseHandler).set(handler);
                 ctx.channel().attr(testCaseRequest).set(true);
-                if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                    allPromises.add(requestProcessingPromise);
-                }
+                requestProcessingPromise.setTraceId(RequestTracer.startTrace());
+                requestProcessingPromise.checkpoint(RequestTracer.Checkpoint.RequestReceived);
                 handler.processRequest(ctx.channel(), request, qpDecoder, requestProcessingPromise);
                 handled = true;
             } else if (path.startsWith(PropertyNames.StatusRetrieverContextPath.getValueAsString())) {
                 ctx.channel().attr(testCaseRequest).set(false);
                 String status = statusRetriever.getStatus(new StatusRetriever.Status());
-                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-                response.content().writeBytes(Unpooled.copiedBuffer(status.getBytes()));
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                                                        ByteBufUtil.writeUtf8(ctx.alloc(), status));
+                requestProcessingPromise.setSuccess(response);
+                handled = true;
+            } else if (path.startsWith(PropertyNames.MetricsContextPath.getValueAsString())) {
+                ctx.channel().attr(testCaseRequest).set(false);
+                List<String> format = qpDecoder.parameters().get(MetricsRetriever.FORMAT_PARAM);
+                boolean prometheus = null != format && format.contains(MetricsRetriever.FORMAT_PROMETHEUS);
+                String metrics = metricsRetriever.getMetrics(prometheus);
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                                                        ByteBufUtil.writeUtf8(ctx.alloc(), metrics));
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, prometheus
+                                                                       ? MetricsRetriever.PROMETHEUS_CONTENT_TYPE
+                                                                       : MetricsRetriever.JSON_CONTENT_TYPE);
+                requestProcessingPromise.setSuccess(response);
+                handled = true;
+            } else if (path.startsWith(PropertyNames.PropertiesContextPath.getValueAsString())) {
+                ctx.channel().attr(testCaseRequest).set(false);
+                String result = updateProperties(qpDecoder.parameters());
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                                                        ByteBufUtil.writeUtf8(ctx.alloc(), result));
                 requestProcessingPromise.setSuccess(response);
                 handled = true;
             } else if (path.startsWith(PropertyNames.RequestTracerContentPath.getValueAsString())) {
                 ctx.channel().attr(testCaseRequest).set(false);
                 StringBuilder traceBuilder = new StringBuilder();
                 if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                    traceBuilder.append("############## Inbound ###################");
-                    for (RequestProcessingPromise aPromise : allPromises) {
-                        aPromise.populateTrace(traceBuilder);
-                    }
-                    traceBuilder.append('\n');
-                    traceBuilder.append("############## Outbound ###################");
-                    Collection<TestCaseHandler> allHandlers = TestRegistry.getAllHandlers();
-                    for (TestCaseHandler aHandler : allHandlers) {
-                        aHandler.populateTrace(traceBuilder);
-                    }
-                    traceBuilder.append('\n');
+                    RequestTracer.populateTrace(traceBuilder);
                 } else {
                     traceBuilder.append("Tracing is not enabled, enable it by setting the property: ")
                                 .append(PropertyNames.ServerTraceRequests.getPropertyName())
                                 .append(" to true");
                 }
-                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-                response.content().writeBytes(Unpooled.copiedBuffer(traceBuilder.toString().getBytes()));
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                                                        ByteBufUtil.writeUtf8(ctx.alloc(), traceBuilder));
                 requestProcessingPromise.setSuccess(response);
                 handled = true;
             }
@@ -145,6 +169,42 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         }
     }
 
+    /**
+     * Sets the passed properties, ignoring unknown property names, and reloads all the properties, so that the values
+     * read on every request change. The values read once, eg: on startup, do not change.
+     *
+     * @return The properties that were set.
+     */
+    private String updateProperties(Map<String, List<String>> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+            if (isPropertyName(parameter.getKey()) && !parameter.getValue().isEmpty()) {
+                String value = parameter.getValue().get(parameter.getValue().size() - 1);
+                System.setProperty(parameter.getKey(), value);
+                result.append(parameter.getKey()).append('=').append(value).append('\n');
+            }
+        }
+        PropertyNames.reload();
+        perf.test.utils.PropertyNames.reload();
+        result.append("Properties reloaded.\n");
+        logger.info(result.toString());
+        return result.toString();
+    }
+
+    private static boolean isPropertyName(String name) {
+        for (PropertyNames property : PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        for (perf.test.utils.PropertyNames property : perf.test.utils.PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
 
@@ -164,11 +224,6 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         }
     }
 
-    public static void populateStatus(StatusRetriever.TestCaseStatus testCaseStatus) {
-        testCaseStatus.setRespCodeVsCount(respCodeVsCount);
-        testCaseStatus.setSendFailedCount(sendFailedCount.get());
-    }
-
     private class RequestProcessingCompleteListener implements GenericFutureListener<RequestProcessingPromise> {
 
         private final ChannelHandlerContext channelHandlerContext;
@@ -179,12 +234,9 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
 
         @Override
         public void operationComplete(RequestProcessingPromise promise) throws Exception {
-            if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                allPromises.remove(promise);
-            }
-
             final FullHttpResponse response;
             final boolean isTestCaseRequest = channelHandlerContext.channel().attr(testCaseRequest).get();
+            final TestCaseHandler handler = channelHandlerContext.channel().attr(testCaseHandler).get();
 
             if (promise.isSuccess()) {
                 response = promise.get();
@@ -196,8 +248,9 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                     responseStatus = ((RequestProcessingFailedException) failure).getStatus();
                 }
 
-                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, responseStatus);
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteBuf errorContent = channelHandlerContext.alloc().buffer();
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, responseStatus, errorContent);
+                ByteBufOutputStream out = new ByteBufOutputStream(errorContent);
                 JsonGenerator jsonGenerator;
                 try {
                     jsonGenerator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
@@ -209,12 +262,15 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                     e.printStackTrace();
                 }
                 response.setStatus(responseStatus);
-                response.content().writeBytes(Unpooled.copiedBuffer(out.toByteArray()));
-                response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
             }
 
-            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
-            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            final long traceId = promise.getTraceId();
+            RequestTracer.record(traceId, RequestTracer.Checkpoint.ResponseCompleted, response.status().code());
+            final boolean draining = drainer.isDraining(); // Clients must reconnect to another server.
+            response.headers().set(HttpHeaderNames.CONNECTION, draining ? HttpHeaderValues.CLOSE
+                                                                        : HttpHeaderValues.KEEP_ALIVE);
 
             final String reqId = SourceRequestState.instance().getRequestId(channelHandlerContext.channel());
             EventLogger.log(reqId, "response-generated");
@@ -224,19 +280,17 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                         @Override
                         public void operationComplete(ChannelFuture future) throws Exception {
                             EventLogger.log(reqId, "response-flush-end");
+                            RequestTracer.record(traceId, RequestTracer.Checkpoint.ResponseFlushed);
 
                             if (isTestCaseRequest) {
                                 if (future.isSuccess()) {
-                                    AtomicLong respCodeCount = new AtomicLong();
-                                    AtomicLong existing = respCodeVsCount.putIfAbsent(response.getStatus().code(),
-                                                                                      respCodeCount);
-                                    if (null != existing) {
-                                        respCodeCount = existing;
+                                    handler.onResponseSent(response.status().code());
+                                    if (null != admissionController) {
+                                        admissionController.onResponseSent(future.channel());
                                     }
-                                    respCodeCount.incrementAndGet();
                                 } else {
                                     logger.error("Failed to send response back to the client.", future.cause());
-                                    sendFailedCount.incrementAndGet();
+                                    handler.onResponseSendFailed();
                                 }
                             }
 
@@ -247,8 +301,15 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
 
             EventLogger.log(reqId, "response-flush-start");
 
-            if (!promise.isSuccess() && PropertyNames.ServerCloseConnectionOnError.getValueAsBoolean()) {
-                writeFuture.addListener(ChannelFutureListener.CLOSE);
+            if (draining || (!promise.isSuccess() && PropertyNames.ServerCloseConnectionOnError.getValueAsBoolean())) {
+                // Closing an HTTP/2 connection sends a GOAWAY and waits for its other streams to complete.
+                final Channel connection = H2cServerSupport.getConnection(channelHandlerContext.channel());
+                writeFuture.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        connection.close();
+                    }
+                });
             }
         }
     }
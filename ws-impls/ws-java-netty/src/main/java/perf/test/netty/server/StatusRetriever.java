@@ -1,15 +1,19 @@
 package perf.test.netty.server;
 
+import perf.test.netty.ByteBufAllocators;
 import perf.test.netty.ConnectedClientsCounter;
+import perf.test.netty.EventLoopProbe;
 import perf.test.netty.PropertyNames;
 import perf.test.netty.server.tests.TestCaseHandler;
 import perf.test.netty.server.tests.TestRegistry;
 
+import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.TreeMap;
 
 /**
  * @author Nitesh Kant
@@ -17,9 +21,14 @@ import java.util.concurrent.atomic.AtomicLong;
 public class StatusRetriever {
 
     private final ConnectedClientsCounter connectedClientsCounter;
+    @Nullable private final AdmissionController admissionController;
+    @Nullable private final EventLoopProbe eventLoopProbe;
 
-    public StatusRetriever(ConnectedClientsCounter connectedClientsCounter) {
+    public StatusRetriever(ConnectedClientsCounter connectedClientsCounter,
+                           @Nullable AdmissionController admissionController, @Nullable EventLoopProbe eventLoopProbe) {
         this.connectedClientsCounter = connectedClientsCounter;
+        this.admissionController = admissionController;
+        this.eventLoopProbe = eventLoopProbe;
     }
 
     public String getStatus(Status status) {
@@ -29,10 +38,56 @@ public class StatusRetriever {
         }
         StringBuilder statusBuilder = new StringBuilder();
         connectedClientsCounter.populateStatus(status);
+        ByteBufAllocators.populateStatus(status);
 
         statusBuilder.append("Clients connected on this server port: ");
         statusBuilder.append(status.connectedClients);
         statusBuilder.append('\n');
+        statusBuilder.append("ByteBuf allocator: ");
+        statusBuilder.append(status.allocatorName);
+        statusBuilder.append('\n');
+        statusBuilder.append("Allocator used heap memory (bytes): ");
+        statusBuilder.append(status.allocatorUsedHeapMemory);
+        statusBuilder.append('\n');
+        statusBuilder.append("Allocator used direct memory (bytes): ");
+        statusBuilder.append(status.allocatorUsedDirectMemory);
+        statusBuilder.append('\n');
+        statusBuilder.append("GC count: ");
+        statusBuilder.append(status.gcCount);
+        statusBuilder.append(", GC time (ms): ");
+        statusBuilder.append(status.gcTimeMillis);
+        statusBuilder.append(", GC count per minute: ");
+        statusBuilder.append(status.uptimeMillis > 0 ? status.gcCount * 60000 / status.uptimeMillis : 0);
+        statusBuilder.append('\n');
+        if (null != admissionController) {
+            admissionController.populateStatus(status);
+            statusBuilder.append("Admission control action: ");
+            statusBuilder.append(status.admissionAction);
+            statusBuilder.append(", requests shed: ");
+            statusBuilder.append(status.admissionShedRequests);
+            statusBuilder.append(", connections paused: ");
+            statusBuilder.append(status.admissionPausedConnections);
+            statusBuilder.append(" (paused now: ");
+            statusBuilder.append(status.admissionPausedNow);
+            statusBuilder.append(')');
+            statusBuilder.append('\n');
+        }
+        if (null != eventLoopProbe) {
+            eventLoopProbe.populateStatus(status);
+            for (Map.Entry<String, EventLoopStatus> loopStatus : status.eventLoopStatus.entrySet()) {
+                statusBuilder.append("Event loop ");
+                statusBuilder.append(loopStatus.getKey());
+                statusBuilder.append(": lag (us): ");
+                statusBuilder.append(loopStatus.getValue().getLastLagMicros());
+                statusBuilder.append(", max lag in last second (us): ");
+                statusBuilder.append(loopStatus.getValue().getMaxLagMicros());
+                statusBuilder.append(", pending tasks: ");
+                statusBuilder.append(loopStatus.getValue().getPendingTasks());
+                statusBuilder.append(", busy (%): ");
+                statusBuilder.append(loopStatus.getValue().getBusyPercent());
+                statusBuilder.append('\n');
+            }
+        }
         for (Map.Entry<String, TestCaseStatus> statuses : status.getTestNameVSStatus().entrySet()) {
             statusBuilder.append("------------------------------------------------------------------");
             statusBuilder.append('\n');
@@ -60,6 +115,22 @@ public class StatusRetriever {
                 statusBuilder.append("Unhandled requests since startup: ");
                 statusBuilder.append(connPoolStatusEntry.getValue().getUnhandledRequestsSinceStartUp());
                 statusBuilder.append('\n');
+                statusBuilder.append("Pending connection acquires: ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getPendingAcquires());
+                statusBuilder.append('\n');
+                statusBuilder.append("Connection acquires timed out: ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getAcquireTimeouts());
+                statusBuilder.append('\n');
+                statusBuilder.append("Connection acquires that waited: ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getAcquireWaitCount());
+                statusBuilder.append(", 99th percentile wait (ms): ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getAcquireWaitMillisP99());
+                statusBuilder.append('\n');
+                statusBuilder.append("Inflight requests: ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getInflightRequests());
+                statusBuilder.append(", latency moving average (us): ");
+                statusBuilder.append(connPoolStatusEntry.getValue().getLatencyEwmaMicros());
+                statusBuilder.append('\n');
                 statusBuilder.append("HTTP Client request recieved: ");
                 statusBuilder.append(testCaseStatus.getHttpClientReqRecvCount());
                 statusBuilder.append('\n');
@@ -75,8 +146,8 @@ public class StatusRetriever {
             statusBuilder.append("Total request recieved: ");
             statusBuilder.append(testCaseStatus.getRequestRecvCount());
             statusBuilder.append('\n');
-            statusBuilder.append("Response Code counts: ");
-            statusBuilder.append(testCaseStatus.getRespCodeVsCount());
+            statusBuilder.append("Response counts by status class: ");
+            statusBuilder.append(testCaseStatus.getResponsesByStatusClass());
             statusBuilder.append('\n');
             statusBuilder.append("Send failed count: ");
             statusBuilder.append(testCaseStatus.getSendFailedCount());
@@ -84,6 +155,37 @@ public class StatusRetriever {
             statusBuilder.append("Duplicate send attempt count: ");
             statusBuilder.append(testCaseStatus.getDuplicateResponseSendCount());
             statusBuilder.append('\n');
+            for (Map.Entry<String, String> limiterStatus : testCaseStatus.getBackendLimiterStatus().entrySet()) {
+                statusBuilder.append("Backend concurrency limiter ");
+                statusBuilder.append(limiterStatus.getKey());
+                statusBuilder.append(": ");
+                statusBuilder.append(limiterStatus.getValue());
+                statusBuilder.append('\n');
+            }
+            for (Map.Entry<String, String> dependencyStatus : testCaseStatus.getDependencyStatus().entrySet()) {
+                statusBuilder.append("Dependency ");
+                statusBuilder.append(dependencyStatus.getKey());
+                statusBuilder.append(": ");
+                statusBuilder.append(dependencyStatus.getValue());
+                statusBuilder.append('\n');
+            }
+            if (PropertyNames.HedgeEnable.getValueAsBoolean()) {
+                statusBuilder.append("Hedge primary requests: ");
+                statusBuilder.append(testCaseStatus.getHedgePrimaryRequests());
+                statusBuilder.append('\n');
+                statusBuilder.append("Hedged requests: ");
+                statusBuilder.append(testCaseStatus.getHedgedRequests());
+                statusBuilder.append('\n');
+                statusBuilder.append("Hedge wins: ");
+                statusBuilder.append(testCaseStatus.getHedgeWins());
+                statusBuilder.append('\n');
+                statusBuilder.append("Hedges skipped over budget: ");
+                statusBuilder.append(testCaseStatus.getHedgesOverBudget());
+                statusBuilder.append('\n');
+                statusBuilder.append("Hedge losers cancelled: ");
+                statusBuilder.append(testCaseStatus.getHedgeCancelledRequests());
+                statusBuilder.append('\n');
+            }
             statusBuilder.append("------------------------------------------------------------------");
             statusBuilder.append('\n');
         }
@@ -93,17 +195,41 @@ public class StatusRetriever {
     public static class TestCaseStatus {
 
         private long inflightTests;
-        private Map<Integer, AtomicLong> respCodeVsCount;
+        private final Map<String, Long> responsesByStatusClass = new TreeMap<String, Long>();
         private long requestRecvCount;
         private long httpClientReqRecvCount;
         private long httpClientInflightRequests;
         private long sendFailedCount;
         private long duplicateResponseSendCount;
         private long testWithErrors;
+        private long hedgePrimaryRequests;
+        private long hedgedRequests;
+        private long hedgeWins;
+        private long hedgesOverBudget;
+        private long hedgeCancelledRequests;
 
         private final Map<InetSocketAddress, ConnPoolStatus> serverVsConnPoolStatus =
                 new HashMap<InetSocketAddress, ConnPoolStatus>();
 
+        private final Map<String, String> dependencyStatus = new TreeMap<String, String>();
+        private final Map<String, String> backendLimiterStatus = new TreeMap<String, String>();
+
+        public void addDependencyStatus(String dependency, String status) {
+            dependencyStatus.put(dependency, status);
+        }
+
+        public Map<String, String> getDependencyStatus() {
+            return dependencyStatus;
+        }
+
+        public void addBackendLimiterStatus(String dependency, String status) {
+            backendLimiterStatus.put(dependency, status);
+        }
+
+        public Map<String, String> getBackendLimiterStatus() {
+            return backendLimiterStatus;
+        }
+
         public void addConnPoolStats(InetSocketAddress server, ConnPoolStatus status) {
             serverVsConnPoolStatus.put(server, status);
         }
@@ -116,12 +242,12 @@ public class StatusRetriever {
             this.inflightTests = inflightTests;
         }
 
-        public Map<Integer, AtomicLong> getRespCodeVsCount() {
-            return respCodeVsCount;
+        public Map<String, Long> getResponsesByStatusClass() {
+            return responsesByStatusClass;
         }
 
-        public void setRespCodeVsCount(Map<Integer, AtomicLong> respCodeVsCount) {
-            this.respCodeVsCount = respCodeVsCount;
+        public void addResponseCount(String statusClass, long count) {
+            responsesByStatusClass.put(statusClass, count);
         }
 
         public Map<InetSocketAddress, ConnPoolStatus> getServerVsConnPoolStatus() {
@@ -175,6 +301,46 @@ public class StatusRetriever {
         public void setHttpClientInflightRequests(long httpClientInflightRequests) {
             this.httpClientInflightRequests = httpClientInflightRequests;
         }
+
+        public long getHedgePrimaryRequests() {
+            return hedgePrimaryRequests;
+        }
+
+        public void setHedgePrimaryRequests(long hedgePrimaryRequests) {
+            this.hedgePrimaryRequests = hedgePrimaryRequests;
+        }
+
+        public long getHedgedRequests() {
+            return hedgedRequests;
+        }
+
+        public void setHedgedRequests(long hedgedRequests) {
+            this.hedgedRequests = hedgedRequests;
+        }
+
+        public long getHedgeWins() {
+            return hedgeWins;
+        }
+
+        public void setHedgeWins(long hedgeWins) {
+            this.hedgeWins = hedgeWins;
+        }
+
+        public long getHedgesOverBudget() {
+            return hedgesOverBudget;
+        }
+
+        public void setHedgesOverBudget(long hedgesOverBudget) {
+            this.hedgesOverBudget = hedgesOverBudget;
+        }
+
+        public long getHedgeCancelledRequests() {
+            return hedgeCancelledRequests;
+        }
+
+        public void setHedgeCancelledRequests(long hedgeCancelledRequests) {
+            this.hedgeCancelledRequests = hedgeCancelledRequests;
+        }
     }
 
     public static class ConnPoolStatus {
@@ -183,6 +349,12 @@ public class StatusRetriever {
         private long availableConnectionsCount;
         private long unhandledRequestsSinceStartUp;
         private long readTimeOuts;
+        private long pendingAcquires;
+        private long acquireTimeouts;
+        private long acquireWaitCount;
+        private long acquireWaitMillisP99;
+        private long inflightRequests;
+        private long latencyEwmaMicros;
 
         public long getTotalConnectionsCount() {
             return totalConnectionsCount;
@@ -215,13 +387,124 @@ public class StatusRetriever {
         public long getFatalReadTimeOuts() {
             return readTimeOuts;
         }
+
+        public long getPendingAcquires() {
+            return pendingAcquires;
+        }
+
+        public void setPendingAcquires(long pendingAcquires) {
+            this.pendingAcquires = pendingAcquires;
+        }
+
+        public long getAcquireTimeouts() {
+            return acquireTimeouts;
+        }
+
+        public void setAcquireTimeouts(long acquireTimeouts) {
+            this.acquireTimeouts = acquireTimeouts;
+        }
+
+        public long getAcquireWaitCount() {
+            return acquireWaitCount;
+        }
+
+        public void setAcquireWaitCount(long acquireWaitCount) {
+            this.acquireWaitCount = acquireWaitCount;
+        }
+
+        public long getAcquireWaitMillisP99() {
+            return acquireWaitMillisP99;
+        }
+
+        public void setAcquireWaitMillisP99(long acquireWaitMillisP99) {
+            this.acquireWaitMillisP99 = acquireWaitMillisP99;
+        }
+
+        public long getInflightRequests() {
+            return inflightRequests;
+        }
+
+        public void setInflightRequests(long inflightRequests) {
+            this.inflightRequests = inflightRequests;
+        }
+
+        public long getLatencyEwmaMicros() {
+            return latencyEwmaMicros;
+        }
+
+        public void setLatencyEwmaMicros(long latencyEwmaMicros) {
+            this.latencyEwmaMicros = latencyEwmaMicros;
+        }
     }
 
 
+    public static class EventLoopStatus {
+
+        private String group;
+        private long lastLagMicros;
+        private long maxLagMicros;
+        private int pendingTasks;
+        private int busyPercent;
+
+        public String getGroup() {
+            return group;
+        }
+
+        public void setGroup(String group) {
+            this.group = group;
+        }
+
+        public long getLastLagMicros() {
+            return lastLagMicros;
+        }
+
+        public void setLastLagMicros(long lastLagMicros) {
+            this.lastLagMicros = lastLagMicros;
+        }
+
+        public long getMaxLagMicros() {
+            return maxLagMicros;
+        }
+
+        public void setMaxLagMicros(long maxLagMicros) {
+            this.maxLagMicros = maxLagMicros;
+        }
+
+        public int getPendingTasks() {
+            return pendingTasks;
+        }
+
+        public void setPendingTasks(int pendingTasks) {
+            this.pendingTasks = pendingTasks;
+        }
+
+        /**
+         * Returns the percentage of time the event loop thread was on CPU, {@code -1} if not available.
+         */
+        public int getBusyPercent() {
+            return busyPercent;
+        }
+
+        public void setBusyPercent(int busyPercent) {
+            this.busyPercent = busyPercent;
+        }
+    }
+
     public static class Status {
 
         private Map<String, TestCaseStatus> testNameVSStatus = new HashMap<String, TestCaseStatus>();
         private long connectedClients;
+        private String allocatorName;
+        private long allocatorUsedHeapMemory;
+        private long allocatorUsedDirectMemory;
+        private long gcCount;
+        private long gcTimeMillis;
+        private long uptimeMillis;
+        private String admissionAction;
+        private long admissionShedRequests;
+        private long admissionPausedConnections;
+        private long admissionPausedNow;
+        private final Map<String, EventLoopStatus> eventLoopStatus = new LinkedHashMap<String, EventLoopStatus>();
 
         public Map<String, TestCaseStatus> getTestNameVSStatus() {
             return testNameVSStatus;
@@ -234,5 +517,73 @@ public class StatusRetriever {
         public void setConnectedClients(long connectedClients) {
             this.connectedClients = connectedClients;
         }
+
+        public void setAllocatorName(String allocatorName) {
+            this.allocatorName = allocatorName;
+        }
+
+        public void setAllocatorUsedHeapMemory(long allocatorUsedHeapMemory) {
+            this.allocatorUsedHeapMemory = allocatorUsedHeapMemory;
+        }
+
+        public void setAllocatorUsedDirectMemory(long allocatorUsedDirectMemory) {
+            this.allocatorUsedDirectMemory = allocatorUsedDirectMemory;
+        }
+
+        public void setGcCount(long gcCount) {
+            this.gcCount = gcCount;
+        }
+
+        public void setGcTimeMillis(long gcTimeMillis) {
+            this.gcTimeMillis = gcTimeMillis;
+        }
+
+        public void setUptimeMillis(long uptimeMillis) {
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        public long getConnectedClients() {
+            return connectedClients;
+        }
+
+        public long getAllocatorUsedHeapMemory() {
+            return allocatorUsedHeapMemory;
+        }
+
+        public long getAllocatorUsedDirectMemory() {
+            return allocatorUsedDirectMemory;
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        public long getGcTimeMillis() {
+            return gcTimeMillis;
+        }
+
+        public void setAdmissionAction(String admissionAction) {
+            this.admissionAction = admissionAction;
+        }
+
+        public void setAdmissionShedRequests(long admissionShedRequests) {
+            this.admissionShedRequests = admissionShedRequests;
+        }
+
+        public void setAdmissionPausedConnections(long admissionPausedConnections) {
+            this.admissionPausedConnections = admissionPausedConnections;
+        }
+
+        public void setAdmissionPausedNow(long admissionPausedNow) {
+            this.admissionPausedNow = admissionPausedNow;
+        }
+
+        public void addEventLoopStatus(String loopName, EventLoopStatus status) {
+            eventLoopStatus.put(loopName, status);
+        }
+
+        public Map<String, EventLoopStatus> getEventLoopStatus() {
+            return eventLoopStatus;
+        }
     }
 }
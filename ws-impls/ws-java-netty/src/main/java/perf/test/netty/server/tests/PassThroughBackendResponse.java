@@ -0,0 +1,283 @@
+package perf.test.netty.server.tests;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+import perf.test.utils.BackendResponse;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+/**
+ * A backend response of which only the metadata fields are parsed. The elements of the items array are retained as a
+ * slice of the received content, without being decoded or copied, so that they can be added as is to the test response.
+ * <br/>
+ * The metadata is available as a {@link BackendResponse} without any items. The slice shares the reference count of the
+ * received content and must be released by the caller of {@link #getItems()}.
+ */
+class PassThroughBackendResponse {
+
+    private final BackendResponse metadata;
+    @Nullable private final ByteBuf items;
+
+    private PassThroughBackendResponse(BackendResponse metadata, @Nullable ByteBuf items) {
+        this.metadata = metadata;
+        this.items = items;
+    }
+
+    /**
+     * Parses the passed backend response content. The content is not released and its reader index is not changed.
+     *
+     * @throws IOException If the content is not a backend response.
+     */
+    static PassThroughBackendResponse parse(ByteBuf content) throws IOException {
+        Scanner scanner = new Scanner(content);
+        long responseKey = 0;
+        int delay = 0;
+        int numItems = 0;
+        int itemSize = 0;
+        ByteBuf items = null;
+
+        scanner.expect('{');
+        if (scanner.peek() == '}') {
+            throw new IOException("Empty backend response.");
+        }
+        do {
+            String fieldName = scanner.readString();
+            scanner.expect(':');
+            if ("responseKey".equals(fieldName)) {
+                responseKey = scanner.readLong();
+            } else if ("delay".equals(fieldName)) {
+                delay = (int) scanner.readLong();
+            } else if ("itemSize".equals(fieldName)) {
+                itemSize = (int) scanner.readLong();
+            } else if ("numItems".equals(fieldName)) {
+                numItems = (int) scanner.readLong();
+            } else if ("items".equals(fieldName)) {
+                scanner.expect('[');
+                int start = scanner.index;
+                if (scanner.peek() != ']') {
+                    scanner.skipArrayElements();
+                    items = content.slice(start, scanner.index - start);
+                }
+                scanner.expect(']');
+            } else {
+                scanner.skipValue();
+            }
+        } while (scanner.next(',', '}') == ',');
+
+        if (null != items) {
+            items.retain();
+        }
+        return new PassThroughBackendResponse(new BackendResponse(responseKey, delay, numItems, itemSize, null), items);
+    }
+
+    BackendResponse getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the comma separated elements of the items array, {@code null} if there are no items.
+     */
+    @Nullable
+    ByteBuf getItems() {
+        return items;
+    }
+
+    /**
+     * A minimal JSON scanner for the flat object sent by the backend, it does not decode the strings it skips.
+     */
+    private static class Scanner {
+
+        private final ByteBuf content;
+        private final int end;
+        private int index;
+
+        private Scanner(ByteBuf content) {
+            this.content = content;
+            index = content.readerIndex();
+            end = content.writerIndex();
+        }
+
+        /**
+         * Skips whitespace and returns the next byte without consuming it.
+         */
+        private byte peek() throws IOException {
+            while (index < end) {
+                byte next = content.getByte(index);
+                if (next != ' ' && next != '\t' && next != '\n' && next != '\r') {
+                    return next;
+                }
+                index++;
+            }
+            throw new IOException("Unexpected end of backend response.");
+        }
+
+        private void expect(char expected) throws IOException {
+            next(expected, expected);
+        }
+
+        private byte next(char expected, char alternate) throws IOException {
+            byte next = peek();
+            if (next != expected && next != alternate) {
+                throw new IOException("Expected '" + expected + "' at index " + index + " of backend response, found '"
+                                      + (char) next + "'.");
+            }
+            index++;
+            return next;
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            int start = index;
+            skipStringTail();
+            return content.toString(start, index - start - 1, CharsetUtil.UTF_8);
+        }
+
+        /**
+         * Skips the rest of a string whose opening quote is already consumed.
+         */
+        private void skipStringTail() throws IOException {
+            while (index < end) {
+                byte next = content.getByte(index++);
+                if (next == '\\') {
+                    index++;
+                } else if (next == '"') {
+                    return;
+                }
+            }
+            throw new IOException("Unterminated string in backend response.");
+        }
+
+        private long readLong() throws IOException {
+            peek();
+            boolean negative = content.getByte(index) == '-';
+            if (negative) {
+                index++;
+            }
+            int start = index;
+            long value = 0;
+            while (index < end) {
+                byte next = content.getByte(index);
+                if (next < '0' || next > '9') {
+                    break;
+                }
+                value = value * 10 + (next - '0');
+                index++;
+            }
+            if (index == start) {
+                throw new IOException("Expected a number at index " + index + " of backend response.");
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Skips the elements of an array whose opening bracket is already consumed, upto but excluding the closing
+         * bracket.
+         */
+        private void skipArrayElements() throws IOException {
+            skipValue();
+            while (peek() == ',') {
+                index++;
+                skipValue();
+            }
+        }
+
+        private void skipValue() throws IOException {
+            byte next = peek();
+            if (next == '"') {
+                index++;
+                skipStringTail();
+            } else if (next == '{' || next == '[') {
+                int depth = 0;
+                do {
+                    next = content.getByte(index++);
+                    if (next == '"') {
+                        skipStringTail();
+                    } else if (next == '{' || next == '[') {
+                        depth++;
+                    } else if (next == '}' || next == ']') {
+                        depth--;
+                    }
+                } while (depth > 0 && index < end);
+                if (depth > 0) {
+                    throw new IOException("Unterminated value in backend response.");
+                }
+            } else {
+                while (index < end) { // Number, true, false or null.
+                    next = content.getByte(index);
+                    if (next == ',' || next == '}' || next == ']' || next == ' ' || next == '\n' || next == '\r'
+                        || next == '\t') {
+                        break;
+                    }
+                    index++;
+                }
+            }
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void testNestedItems() throws Exception {
+            String items = "{\"id\": [1, {\"name\": \"]}\"}]}, [[]], \"last\"";
+            ByteBuf content = toBuffer("{\"responseKey\": 42, \"extra\": {\"nested\": [1, 2]}, \"items\": [" + items
+                                       + "], \"delay\": 5, \"itemSize\": 10, \"numItems\": 3}");
+            PassThroughBackendResponse response = parse(content);
+            content.release();
+            assertEquals(items, response.getItems().toString(CharsetUtil.UTF_8)); // Retained past the content.
+            assertEquals(42, response.getMetadata().getResponseKey());
+            assertEquals(5, response.getMetadata().getDelay());
+            assertEquals(10, response.getMetadata().getItemSize());
+            assertEquals(3, response.getMetadata().getNumItems());
+            assertEquals(1, response.getItems().refCnt());
+            response.getItems().release();
+        }
+
+        @Test
+        public void testEscapedQuotes() throws Exception {
+            String items = "\"Lor\\\"em\", \"Ips\\\\\"";
+            ByteBuf content = toBuffer("{\"note\": \"a \\\"}, \\\"items\\\": [\\\"\", \"responseKey\": 7, \"items\": ["
+                                       + items + "]}");
+            PassThroughBackendResponse response = parse(content);
+            assertEquals(items, response.getItems().toString(CharsetUtil.UTF_8));
+            assertEquals(7, response.getMetadata().getResponseKey());
+            response.getItems().release();
+            content.release();
+        }
+
+        @Test
+        public void testMissingFields() throws Exception {
+            ByteBuf content = toBuffer("{\"responseKey\": -3, \"items\": [ ]}");
+            PassThroughBackendResponse response = parse(content);
+            assertNull(response.getItems());
+            assertEquals(-3, response.getMetadata().getResponseKey());
+            assertEquals(0, response.getMetadata().getDelay());
+            assertEquals(0, response.getMetadata().getNumItems());
+            assertEquals(1, content.refCnt());
+            content.release();
+        }
+
+        @Test
+        public void testTruncatedResponse() throws Exception {
+            ByteBuf content = toBuffer("{\"responseKey\": 1, \"items\": [\"Lorem");
+            try {
+                parse(content);
+                fail("Truncated response parsed.");
+            } catch (IOException e) {
+                assertEquals(1, content.refCnt());
+            } finally {
+                content.release();
+            }
+        }
+
+        private static ByteBuf toBuffer(String json) {
+            return Unpooled.copiedBuffer(json, CharsetUtil.UTF_8);
+        }
+    }
+}
@@ -1,32 +1,46 @@
 package perf.test.netty.server.tests;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.CharsetUtil;
-import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.Recycler;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
-import io.netty.util.concurrent.Promise;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import perf.test.netty.ByteBufAllocators;
 import perf.test.netty.PropertyNames;
+import perf.test.netty.RequestTracer;
+import perf.test.netty.client.BackendRequestTemplate;
+import perf.test.netty.client.DecodedBackendHttpResponse;
 import perf.test.netty.client.PoolExhaustedException;
+import perf.test.netty.server.MetricsRetriever;
 import perf.test.netty.server.RequestProcessingFailedException;
 import perf.test.netty.server.RequestProcessingPromise;
 import perf.test.utils.BackendResponse;
+import perf.test.utils.ConcurrencyLimitExceededException;
+import perf.test.utils.Deadline;
+import perf.test.utils.DependencyUnavailableException;
+import perf.test.utils.LatencyHistogram;
 import perf.test.utils.ServiceResponseBuilder;
 import perf.test.utils.netty.SourceRequestState;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
 
 /**
  * @author Nitesh Kant (nkant@netflix.com)
@@ -60,6 +74,16 @@ public class TestCaseA extends TestCaseHandler {
             PropertyNames.TestCaseACallEItemSize.getValueAsInt(),
             PropertyNames.TestCaseACallEItemDelay.getValueAsInt());
 
+    private static final BackendRequestTemplate CALL_A_TEMPLATE = newTemplate(CALL_A_URI_WITHOUT_ID);
+    private static final BackendRequestTemplate CALL_B_TEMPLATE = newTemplate(CALL_B_URI_WITHOUT_ID);
+    private static final BackendRequestTemplate CALL_C_TEMPLATE = newTemplate(CALL_C_URI_WITHOUT_ID);
+    private static final BackendRequestTemplate CALL_D_TEMPLATE = newTemplate(CALL_D_URI_WITHOUT_ID);
+    private static final BackendRequestTemplate CALL_E_TEMPLATE = newTemplate(CALL_E_URI_WITHOUT_ID);
+
+    private static BackendRequestTemplate newTemplate(String uriWithoutId) {
+        return new BackendRequestTemplate(PropertyNames.MockBackendContextPath.getValueAsString() + uriWithoutId);
+    }
+
     private static String constructUri(String type, int numItems, int itemSize, int delay) {
         String uri = String.format("/mock.json?type=%s&numItems=%d&itemSize=%d&delay=%d&id=", type, numItems, itemSize, delay);
         if (logger.isDebugEnabled()) {
@@ -68,193 +92,343 @@ public class TestCaseA extends TestCaseHandler {
         return uri;
     }
 
+    /**
+     * Leaves the JSON object open on close, so that the pass-through response can add the items after the metadata.
+     */
+    private static final JsonFactory passThroughJsonFactory =
+            new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+    private static final ByteBuf ITEM_SEPARATOR =
+            Unpooled.unreleasableBuffer(Unpooled.directBuffer(1).writeByte(','));
+    private static final ByteBuf ITEMS_END =
+            Unpooled.unreleasableBuffer(Unpooled.directBuffer(2).writeByte(']').writeByte('}'));
+
+    private static final String[] CALL_NAMES = {"A", "B", "C", "D", "E"}; // Indexed by the RequestState indexes.
+
+    private final LatencyHistogram[] callLatencies = new LatencyHistogram[CALL_NAMES.length];
+
+    private final Recycler<RequestState> requestStates = new Recycler<RequestState>() {
+        @Override
+        protected RequestState newObject(Handle<RequestState> handle) {
+            return new RequestState(handle);
+        }
+    };
+
     public TestCaseA(EventLoopGroup eventLoopGroup) throws PoolExhaustedException {
         super("testA", eventLoopGroup);
+        for (int i = 0; i < callLatencies.length; i++) {
+            callLatencies[i] = new LatencyHistogram(LATENCY_HISTOGRAM_MAX_MILLIS);
+        }
     }
 
     @Override
     protected void executeTestCase(final Channel channel, final boolean keepAlive, String id,
                                    final RequestProcessingPromise requestProcessingPromise) {
-
-        final String requestId = SourceRequestState.instance().getRequestId(channel);
-
-        final ResponseCollector responseCollector = new ResponseCollector();
-
-        final MoveForwardBarrier topLevelMoveFwdBarrier = new MoveForwardBarrier(2);
-
-        CompletionListener callAListener =
-                new CompletionListener(responseCollector, ResponseCollector.RESPONSE_A_INDEX, requestProcessingPromise) {
-
-                    @Override
-                    protected void onResponseReceived() {
-                        final MoveForwardBarrier callAMoveFwdBarrier = new MoveForwardBarrier(2);
-
-                        CompletionListener callCListener =
-                                new CompletionListener(responseCollector, ResponseCollector.RESPONSE_C_INDEX,
-                                                       requestProcessingPromise) {
-
-                                    @Override
-                                    protected void onResponseReceived() {
-                                        if (callAMoveFwdBarrier.shouldProceedOnResponse() && topLevelMoveFwdBarrier
-                                                .shouldProceedOnResponse()) {
-                                            buildFinalResponseAndFinish(responseCollector, requestProcessingPromise);
-                                        }
-                                    }
-                                };
-
-                        CompletionListener callDListener =
-                                new CompletionListener(responseCollector, ResponseCollector.RESPONSE_D_INDEX,
-                                                       requestProcessingPromise) {
-
-                                    @Override
-                                    protected void onResponseReceived() {
-                                        if (callAMoveFwdBarrier.shouldProceedOnResponse() && topLevelMoveFwdBarrier
-                                                .shouldProceedOnResponse()) {
-                                            buildFinalResponseAndFinish(responseCollector, requestProcessingPromise);
-                                        }
-                                    }
-                                };
-
-                        get(requestId, channel.eventLoop().next(),
-                            CALL_C_URI_WITHOUT_ID
-                            + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey(),
-                            callCListener, requestProcessingPromise, ResponseCollector.RESPONSE_C_INDEX);
-                        get(requestId, channel.eventLoop().next(),
-                            CALL_D_URI_WITHOUT_ID
-                            + responseCollector.responses[ResponseCollector.RESPONSE_A_INDEX].getResponseKey(),
-                            callDListener, requestProcessingPromise, ResponseCollector.RESPONSE_D_INDEX);
-                    }
-                };
-
-        CompletionListener callBListener =
-                new CompletionListener(responseCollector, ResponseCollector.RESPONSE_B_INDEX,
-                                       requestProcessingPromise) {
-                    @Override
-                    protected void onResponseReceived() {
-                        CompletionListener callEListener =
-                                new CompletionListener(responseCollector, ResponseCollector.RESPONSE_E_INDEX,
-                                                       requestProcessingPromise) {
-
-                                    @Override
-                                    protected void onResponseReceived() {
-                                        if (topLevelMoveFwdBarrier.shouldProceedOnResponse()) {
-                                            buildFinalResponseAndFinish(responseCollector, requestProcessingPromise);
-                                        }
-                                    }
-                                };
-                        get(requestId, channel.eventLoop().next(),
-                            CALL_E_URI_WITHOUT_ID
-                            + responseCollector.responses[ResponseCollector.RESPONSE_B_INDEX].getResponseKey(),
-                            callEListener, requestProcessingPromise, ResponseCollector.RESPONSE_E_INDEX);
-                    }
-                };
-        get(requestId, channel.eventLoop().next(), CALL_A_URI_WITHOUT_ID + id, callAListener,
-            requestProcessingPromise, ResponseCollector.RESPONSE_A_INDEX);
-        get(requestId, channel.eventLoop().next(), CALL_B_URI_WITHOUT_ID + id, callBListener,
-            requestProcessingPromise, ResponseCollector.RESPONSE_B_INDEX);
+        requestStates.get().start(channel, id, requestProcessingPromise);
     }
 
-    protected Future<FullHttpResponse> get(String requestId, EventExecutor eventExecutor, String path,
-                                           GenericFutureListener<Future<FullHttpResponse>> responseHandler,
-                                           final RequestProcessingPromise requestProcessingPromise, int callIndex) {
-        if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-            requestProcessingPromise.checkpoint("Sending request for call index: " + callIndex);
+    @Override
+    public void populateMetrics(MetricsRetriever.TestCaseMetrics metrics) {
+        super.populateMetrics(metrics);
+        for (int i = 0; i < callLatencies.length; i++) {
+            metrics.addBackendCallLatencies(CALL_NAMES[i], callLatencies[i]);
         }
-        return get(requestId, eventExecutor, path, responseHandler);
     }
 
-    private static void buildFinalResponseAndFinish(ResponseCollector responseCollector,
-                                                    Promise<FullHttpResponse> requestProcessingPromise) {
-        ByteArrayOutputStream outputStream;
+    /**
+     * The pass-through aggregation needs the raw backend response content, so it is not used with the streaming decoder.
+     */
+    private static boolean isPassThroughAggregation() {
+        return PropertyNames.ServerPassThroughAggregation.getValueAsBoolean()
+               && !PropertyNames.ClientStreamingDecode.getValueAsBoolean();
+    }
+
+    private static void buildFinalResponseAndFinish(RequestState state) {
+        if (state.passThrough) {
+            buildPassThroughResponseAndFinish(state);
+            return;
+        }
+        ByteBuf content = ByteBufAllocators.get().buffer();
         try {
-            outputStream = ServiceResponseBuilder.buildTestAResponse(jsonFactory, responseCollector.responses);
-            ByteBuf content = Unpooled.copiedBuffer(outputStream.toByteArray());
+            ServiceResponseBuilder.writeTestAResponse(jsonFactory, new ByteBufOutputStream(content), state.responses);
             FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
-            requestProcessingPromise.trySuccess(response);
+            if (!state.requestProcessingPromise.trySuccess(response)) {
+                content.release(); // Request already failed, eg: deadline expired.
+            }
         } catch (IOException e) {
-            requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
+            content.release();
+            state.requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
         }
     }
 
+    /**
+     * Builds the response as a composite of the generated metadata and the items of the backend responses, which are
+     * neither decoded nor copied. All the components are direct buffers (with the default allocator), so the transport
+     * writes the composite with a single gathering write.
+     */
+    private static void buildPassThroughResponseAndFinish(RequestState state) {
+        ByteBufAllocator allocator = ByteBufAllocators.get();
+        ByteBuf metadata = allocator.buffer();
+        try {
+            JsonGenerator jsonGenerator = passThroughJsonFactory.createJsonGenerator(new ByteBufOutputStream(metadata));
+            jsonGenerator.writeStartObject();
+            ServiceResponseBuilder.writeTestAMetadata(jsonGenerator, state.responses);
+            jsonGenerator.writeArrayFieldStart("items");
+            jsonGenerator.close();
+        } catch (IOException e) {
+            metadata.release();
+            state.requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
+            return;
+        }
 
-    public static class ResponseCollector {
+        // Header, items with separators and the end, sized so that the composite never consolidates its components.
+        CompositeByteBuf content = allocator.compositeBuffer(2 * state.passThroughItems.length + 2);
+        content.addComponent(metadata);
+        boolean first = true;
+        for (ByteBuf items : state.passThroughItems) {
+            if (null != items) {
+                if (!first) {
+                    content.addComponent(ITEM_SEPARATOR.duplicate());
+                }
+                content.addComponent(items.duplicate().retain()); // The state releases its own references.
+                first = false;
+            }
+        }
+        content.addComponent(ITEMS_END.duplicate());
+        content.writerIndex(content.capacity());
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        if (!state.requestProcessingPromise.trySuccess(response)) {
+            content.release();
+        }
+    }
 
-        private final BackendResponse[] responses = new BackendResponse[5];
+    /**
+     * The state of a single test case request, ie: the five backend responses and the listeners of the five backend
+     * calls, reused by the requests of the same event loop through {@link #requestStates}. <br/>
+     * All the state is accessed on the event loop of the request channel: the backend calls whose future completes on
+     * another thread, eg: a client event loop, continue on the request event loop. A state is recycled once the request
+     * has completed and every backend call sent for it has completed, so that a late backend response never lands in the
+     * state of another request.
+     */
+    private final class RequestState implements GenericFutureListener<Future<FullHttpResponse>> {
 
         private static final int RESPONSE_A_INDEX = 0;
         private static final int RESPONSE_B_INDEX = 1;
         private static final int RESPONSE_C_INDEX = 2;
         private static final int RESPONSE_D_INDEX = 3;
         private static final int RESPONSE_E_INDEX = 4;
-    }
 
-    private static class MoveForwardBarrier {
+        private final Recycler.Handle<RequestState> handle;
+        private final BackendResponse[] responses = new BackendResponse[CALL_NAMES.length];
+        private final ByteBuf[] passThroughItems = new ByteBuf[CALL_NAMES.length]; // null if a response has no items.
+        private final CallListener[] callListeners = new CallListener[CALL_NAMES.length];
+
+        private Channel channel;
+        private String requestId;
+        private RequestProcessingPromise requestProcessingPromise;
+        private boolean passThrough;
+        private int pendingResponses; // The final response is built when all the responses are received.
+        private int inflightCalls;
+        private boolean completed; // Request completed, collected items are released.
+
+        private RequestState(Recycler.Handle<RequestState> handle) {
+            this.handle = handle;
+            for (int i = 0; i < callListeners.length; i++) {
+                callListeners[i] = new CallListener(i);
+            }
+        }
 
-        private final int expectedCalls;
-        private final AtomicInteger responseReceivedCounter;
+        private void start(Channel channel, String id, RequestProcessingPromise requestProcessingPromise) {
+            this.channel = channel;
+            this.requestProcessingPromise = requestProcessingPromise;
+            requestId = SourceRequestState.instance().getRequestId(channel);
+            passThrough = isPassThroughAggregation();
+            pendingResponses = responses.length;
+            inflightCalls = 1; // Keeps the state till the first calls are sent, as a call may fail the request at once.
+            requestProcessingPromise.addListener(this);
+            call(RESPONSE_A_INDEX, CALL_A_TEMPLATE.newRequest(id));
+            call(RESPONSE_B_INDEX, CALL_B_TEMPLATE.newRequest(id));
+            onCallComplete();
+        }
 
-        private MoveForwardBarrier(int expectedCalls) {
-            this.expectedCalls = expectedCalls;
-            responseReceivedCounter = new AtomicInteger();
+        private void call(int callIndex, FullHttpRequest request) {
+            if (completed) {
+                return; // Request already failed, eg: by a previous call.
+            }
+            requestProcessingPromise.checkpoint(RequestTracer.Checkpoint.BackendCallSent, callIndex);
+            CallListener listener = callListeners[callIndex];
+            listener.startTime = System.currentTimeMillis();
+            inflightCalls++;
+            RequestTracer.setCurrentTrace(requestProcessingPromise.getTraceId()); // Backend call checkpoints join this trace.
+            try {
+                get(requestId, channel.eventLoop(), request, listener, requestProcessingPromise.getDeadline());
+            } finally {
+                RequestTracer.clearCurrentTrace();
+            }
         }
 
-        boolean shouldProceedOnResponse() {
-            int responseCount = responseReceivedCounter.incrementAndGet();
-            return responseCount >= expectedCalls;
+        /**
+         * Called when the request completes, with or without a response.
+         */
+        @Override
+        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+            completed = true;
+            for (int i = 0; i < passThroughItems.length; i++) {
+                if (null != passThroughItems[i]) {
+                    passThroughItems[i].release(); // The response, if any, has its own references.
+                    passThroughItems[i] = null;
+                }
+            }
+            recycleIfDone();
         }
-    }
 
-    private abstract static class CompletionListener implements GenericFutureListener<Future<FullHttpResponse>> {
+        private void onResponseReceived(int responseIndex) {
+            switch (responseIndex) {
+                case RESPONSE_A_INDEX:
+                    call(RESPONSE_C_INDEX, CALL_C_TEMPLATE.newRequest(responses[RESPONSE_A_INDEX].getResponseKey()));
+                    call(RESPONSE_D_INDEX, CALL_D_TEMPLATE.newRequest(responses[RESPONSE_A_INDEX].getResponseKey()));
+                    break;
+                case RESPONSE_B_INDEX:
+                    call(RESPONSE_E_INDEX, CALL_E_TEMPLATE.newRequest(responses[RESPONSE_B_INDEX].getResponseKey()));
+                    break;
+            }
+            if (--pendingResponses == 0) {
+                buildFinalResponseAndFinish(this);
+            }
+        }
 
-        private final ResponseCollector responseCollector;
-        private final int responseIndex;
-        private final RequestProcessingPromise topLevelRequestCompletionPromise;
+        private void onCallComplete() {
+            inflightCalls--;
+            recycleIfDone();
+        }
 
-        protected CompletionListener(ResponseCollector responseCollector, int responseIndex, RequestProcessingPromise topLevelRequestCompletionPromise) {
-            this.responseCollector = responseCollector;
-            this.responseIndex = responseIndex;
-            this.topLevelRequestCompletionPromise = topLevelRequestCompletionPromise;
+        private void recycleIfDone() {
+            if (!completed || inflightCalls > 0) {
+                return;
+            }
+            channel = null;
+            requestId = null;
+            requestProcessingPromise = null;
+            completed = false;
+            Arrays.fill(responses, null);
+            handle.recycle(this);
         }
 
-        @Override
-        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
-            if (future.isSuccess()) {
-                if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                    topLevelRequestCompletionPromise.checkpoint("Call success for response index: " + responseIndex);
+        private final class CallListener implements GenericFutureListener<Future<FullHttpResponse>>, Runnable {
+
+            private final int responseIndex;
+            private long startTime;
+            private Future<FullHttpResponse> future; // Set while the completion is passed to the request event loop.
+
+            private CallListener(int responseIndex) {
+                this.responseIndex = responseIndex;
+            }
+
+            @Override
+            public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+                callLatencies[responseIndex].record(System.currentTimeMillis() - startTime);
+                EventLoop eventLoop = channel.eventLoop();
+                if (eventLoop.inEventLoop()) {
+                    onCallComplete(future);
+                } else {
+                    this.future = future;
+                    eventLoop.execute(this);
+                }
+            }
+
+            @Override
+            public void run() {
+                Future<FullHttpResponse> future = this.future;
+                this.future = null;
+                onCallComplete(future);
+            }
+
+            private void onCallComplete(Future<FullHttpResponse> future) {
+                try {
+                    if (completed) {
+                        releaseLateResponse(future);
+                    } else {
+                        handleResponse(future);
+                    }
+                } finally {
+                    RequestState.this.onCallComplete();
                 }
-                FullHttpResponse response = future.get();
-                HttpResponseStatus status = response.getStatus();
-                if (status.equals(HttpResponseStatus.OK)) {
-                    ByteBuf responseContent = response.content();
-                    if (responseContent.isReadable()) {
-                        String content = responseContent.toString(CharsetUtil.UTF_8);
-                        responseContent.release();
-                        try {
-                            responseCollector.responses[responseIndex] = BackendResponse.fromJson(jsonFactory, content);
-                            onResponseReceived();
-                        } catch (Exception e) {
-                            logger.error("Failed to parse the received backend response.", e);
-                            topLevelRequestCompletionPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
+            }
+
+            private void handleResponse(Future<FullHttpResponse> future) {
+                if (future.isSuccess()) {
+                    requestProcessingPromise.checkpoint(RequestTracer.Checkpoint.BackendCallSucceeded, responseIndex);
+                    FullHttpResponse response = future.getNow();
+                    HttpResponseStatus status = response.status();
+                    if (status.equals(HttpResponseStatus.OK)) {
+                        ByteBuf responseContent = response.content();
+                        if (response instanceof DecodedBackendHttpResponse) {
+                            // Already parsed by the streaming decoder in the client pipeline.
+                            DecodedBackendHttpResponse decoded = (DecodedBackendHttpResponse) response;
+                            if (null != decoded.getBackendResponse()) {
+                                responses[responseIndex] = decoded.getBackendResponse();
+                                onResponseReceived(responseIndex);
+                            } else {
+                                logger.error("Failed to parse the received backend response.", decoded.getDecodeFailure());
+                                requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, decoded.getDecodeFailure()));
+                            }
+                        } else if (responseContent.isReadable() && passThrough) {
+                            collectPassThroughResponse(responseContent);
+                        } else if (responseContent.isReadable()) {
+                            String content = responseContent.toString(CharsetUtil.UTF_8);
+                            responseContent.release();
+                            try {
+                                responses[responseIndex] = BackendResponse.fromJson(jsonFactory, content);
+                            } catch (Exception e) {
+                                logger.error("Failed to parse the received backend response.", e);
+                                requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
+                                return;
+                            }
+                            onResponseReceived(responseIndex);
                         }
+                    } else {
+                        requestProcessingPromise.checkpoint(RequestTracer.Checkpoint.BackendCallFailed, responseIndex);
+                        requestProcessingPromise.tryFailure(new RequestProcessingFailedException(status));
                     }
                 } else {
-                    if (PropertyNames.ServerTraceRequests.getValueAsBoolean()) {
-                        topLevelRequestCompletionPromise.checkpoint("Call failed for response index: " + responseIndex + ", error: " + future.cause());
+                    requestProcessingPromise.checkpoint(RequestTracer.Checkpoint.BackendCallFailed, responseIndex);
+                    HttpResponseStatus status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+                    Throwable cause = future.cause();
+                    if (cause instanceof PoolExhaustedException || cause instanceof ReadTimeoutException
+                        || cause instanceof ConcurrencyLimitExceededException
+                        || cause instanceof DependencyUnavailableException) {
+                        status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    } else if (future.isCancelled() || Deadline.isDeadlineExceeded(cause)) {
+                        status = HttpResponseStatus.GATEWAY_TIMEOUT; // Only cancelled when the deadline expires.
                     }
-                    topLevelRequestCompletionPromise.tryFailure(new RequestProcessingFailedException(status));
+                    requestProcessingPromise.tryFailure(new RequestProcessingFailedException(status, cause));
                 }
-            } else {
-                HttpResponseStatus status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
-                Throwable cause = future.cause();
-                if (cause instanceof PoolExhaustedException || cause instanceof ReadTimeoutException) {
-                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+            }
+
+            private void collectPassThroughResponse(ByteBuf responseContent) {
+                PassThroughBackendResponse passThroughResponse;
+                try {
+                    passThroughResponse = PassThroughBackendResponse.parse(responseContent);
+                } catch (IOException e) {
+                    logger.error("Failed to parse the received backend response.", e);
+                    requestProcessingPromise.tryFailure(new RequestProcessingFailedException(HttpResponseStatus.INTERNAL_SERVER_ERROR, e));
+                    return;
+                } finally {
+                    responseContent.release(); // The items, if any, are retained.
                 }
-                topLevelRequestCompletionPromise.tryFailure(new RequestProcessingFailedException(status, cause));
+                responses[responseIndex] = passThroughResponse.getMetadata();
+                passThroughItems[responseIndex] = passThroughResponse.getItems();
+                onResponseReceived(responseIndex);
+            }
 
+            /**
+             * Releases a response that arrived after the request completed, eg: after the deadline expired.
+             */
+            private void releaseLateResponse(Future<FullHttpResponse> future) {
+                if (future.isSuccess() && !(future.getNow() instanceof DecodedBackendHttpResponse)) {
+                    future.getNow().release();
+                }
             }
         }
-
-        protected abstract void onResponseReceived();
     }
-
 }
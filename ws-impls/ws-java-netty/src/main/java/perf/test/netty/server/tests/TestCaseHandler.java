@@ -6,33 +6,50 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.codehaus.jackson.JsonFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import perf.test.netty.PropertyNames;
+import perf.test.netty.client.BackendRequestTemplate;
+import perf.test.netty.client.HedgingHttpClient;
 import perf.test.netty.client.HttpClient;
 import perf.test.netty.client.HttpClientFactory;
 import perf.test.netty.client.LBAwareHttpClientImpl;
+import perf.test.netty.client.LeastLoadedLB;
+import perf.test.netty.client.LoadBalancer;
+import perf.test.netty.client.PoolExhaustedException;
 import perf.test.netty.client.RoundRobinLB;
+import perf.test.netty.server.MetricsRetriever;
 import perf.test.netty.server.RequestProcessingFailedException;
 import perf.test.netty.server.RequestProcessingPromise;
-import perf.test.netty.server.ServerHandler;
 import perf.test.netty.server.StatusRetriever;
+import perf.test.utils.AdaptiveConcurrencyLimiter;
+import perf.test.utils.ConcurrencyLimitExceededException;
+import perf.test.utils.Deadline;
+import perf.test.utils.DeadlineExceededException;
+import perf.test.utils.DependencyGuard;
+import perf.test.utils.DependencyUnavailableException;
 import perf.test.utils.EventLogger;
+import perf.test.utils.LatencyHistogram;
 import perf.test.utils.PerformanceLogger;
+import perf.test.utils.StripedCounter;
 
+import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
@@ -42,6 +59,9 @@ import java.util.regex.Pattern;
 public abstract class TestCaseHandler {
 
     private static final Pattern HOSTS_SPLITTER = Pattern.compile(",");
+    protected static final int LATENCY_HISTOGRAM_MAX_MILLIS = 10000;
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final String LEAST_LOADED_LB = "leastloaded";
     private final Logger logger = LoggerFactory.getLogger(TestCaseHandler.class);
 
     private final String testCaseName;
@@ -51,34 +71,69 @@ public abstract class TestCaseHandler {
     private final AtomicLong testWithErrors = new AtomicLong();
     private final AtomicLong inflightTests = new AtomicLong();
     private final AtomicLong requestRecvCount = new AtomicLong();
+    private final LatencyHistogram requestLatencies = new LatencyHistogram(LATENCY_HISTOGRAM_MAX_MILLIS);
+    private final StripedCounter[] responsesByStatusClass = new StripedCounter[STATUS_CLASSES.length];
+    private final StripedCounter sendFailedCount = new StripedCounter();
+    @Nullable private final AdaptiveConcurrencyLimiter.Registry backendLimiters;
+    @Nullable private final DependencyGuard.Registry dependencyGuards;
 
     protected TestCaseHandler(String testCaseName, EventLoopGroup eventLoopGroup) {
         this.testCaseName = testCaseName;
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            responsesByStatusClass[i] = new StripedCounter();
+        }
         clientFactory = new HttpClientFactory(null, eventLoopGroup);
         String hosts = PropertyNames.MockBackendHost.getValueAsString();
         String[] splittedHosts = HOSTS_SPLITTER.split(hosts);
         int serverPort = PropertyNames.MockBackendPort.getValueAsInt();
-        if (splittedHosts.length > 1) {
-            RoundRobinLB<FullHttpRequest> lb = new RoundRobinLB<FullHttpRequest>(splittedHosts,
-                                                                                 serverPort);
-            httpClient = new LBAwareHttpClientImpl(lb, clientFactory);
+        if (PropertyNames.HedgeEnable.getValueAsBoolean()) {
+            httpClient = new HedgingHttpClient(newLoadBalancer(splittedHosts, serverPort), clientFactory);
+        } else if (splittedHosts.length > 1) {
+            httpClient = new LBAwareHttpClientImpl(newLoadBalancer(splittedHosts, serverPort), clientFactory);
         } else {
             httpClient = clientFactory.getHttpClient(new InetSocketAddress(hosts, serverPort));
         }
+        if (PropertyNames.BackendLimiterEnable.getValueAsBoolean()) {
+            backendLimiters = new AdaptiveConcurrencyLimiter.Registry(
+                    PropertyNames.BackendLimiterInitialLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMinLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMaxLimit.getValueAsInt());
+        } else {
+            backendLimiters = null;
+        }
+        if (PropertyNames.BackendIsolationEnable.getValueAsBoolean()) {
+            dependencyGuards = new DependencyGuard.Registry(new DependencyGuard.Config(
+                    PropertyNames.BackendBulkheadMaxConcurrent.getValueAsInt(),
+                    PropertyNames.BackendBreakerErrorPercent.getValueAsInt(),
+                    PropertyNames.BackendBreakerMinRequests.getValueAsInt(),
+                    PropertyNames.BackendBreakerWindowMs.getValueAsInt(),
+                    PropertyNames.BackendBreakerSleepWindowMs.getValueAsInt()));
+        } else {
+            dependencyGuards = null;
+        }
+    }
+
+    private LoadBalancer<FullHttpRequest> newLoadBalancer(String[] hosts, int serverPort) {
+        if (LEAST_LOADED_LB.equalsIgnoreCase(PropertyNames.MockBackendLoadBalancer.getValueAsString())) {
+            return new LeastLoadedLB(hosts, serverPort, clientFactory);
+        }
+        return new RoundRobinLB<FullHttpRequest>(hosts, serverPort);
     }
 
     public void processRequest(Channel channel, HttpRequest request, QueryStringDecoder qpDecoder,
                                RequestProcessingPromise requestProcessingPromise) {
         inflightTests.incrementAndGet();
         requestRecvCount.incrementAndGet();
+        final long startTime = System.currentTimeMillis();
         requestProcessingPromise.addListener(new GenericFutureListener<Future<? super FullHttpResponse>>() {
             @Override
             public void operationComplete(Future<? super FullHttpResponse> future) throws Exception {
                 inflightTests.decrementAndGet();
+                requestLatencies.record(System.currentTimeMillis() - startTime);
             }
         });
 
-        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
         Map<String,List<String>> parameters = qpDecoder.parameters();
         List<String> id = parameters.get("id");
         if (null == id || id.isEmpty()) {
@@ -87,6 +142,7 @@ public abstract class TestCaseHandler {
             try {
                 String thisId = id.get(0);
                 requestProcessingPromise.setTestCaseId(thisId);
+                startDeadline(channel, request, requestProcessingPromise);
                 executeTestCase(channel, keepAlive, thisId, requestProcessingPromise);
             } catch (Throwable throwable) {
                 logger.error("Test case execution failed.", throwable);
@@ -96,6 +152,29 @@ public abstract class TestCaseHandler {
         }
     }
 
+    private static void startDeadline(Channel channel, HttpRequest request,
+                                      final RequestProcessingPromise requestProcessingPromise) {
+        int deadlineMs = PropertyNames.RequestDeadlineMs.getValueAsInt();
+        if (deadlineMs <= 0) {
+            return;
+        }
+        Deadline deadline = Deadline.fromHeader(request.headers().get(Deadline.HEADER_NAME), deadlineMs);
+        requestProcessingPromise.setDeadline(deadline);
+        final ScheduledFuture<?> expiryTimer = channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                requestProcessingPromise.tryFailure(new RequestProcessingFailedException(
+                        HttpResponseStatus.GATEWAY_TIMEOUT, new DeadlineExceededException("test case execution")));
+            }
+        }, deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        requestProcessingPromise.addListener(new GenericFutureListener<Future<? super FullHttpResponse>>() {
+            @Override
+            public void operationComplete(Future<? super FullHttpResponse> future) throws Exception {
+                expiryTimer.cancel(false);
+            }
+        });
+    }
+
     protected abstract void executeTestCase(Channel channel, boolean keepAlive, String id,
                                             RequestProcessingPromise requestProcessingPromise);
 
@@ -109,34 +188,233 @@ public abstract class TestCaseHandler {
 
     protected Future<FullHttpResponse> get(String requestId, EventExecutor eventExecutor, String path,
                                            final GenericFutureListener<Future<FullHttpResponse>> responseHandler) {
-        Preconditions.checkNotNull(eventExecutor, "Event executor can not be null");
+        return get(requestId, eventExecutor, path, responseHandler, null);
+    }
+
+    /**
+     * Sends a backend request bounded by the passed deadline. If the deadline has already expired, the request is not
+     * sent and the returned future fails with a {@link DeadlineExceededException}. Otherwise, the request is cancelled
+     * if it does not complete before the deadline.
+     */
+    protected Future<FullHttpResponse> get(String requestId, EventExecutor eventExecutor, String path,
+                                           final GenericFutureListener<Future<FullHttpResponse>> responseHandler,
+                                           @Nullable Deadline deadline) {
         String basePath = PropertyNames.MockBackendContextPath.getValueAsString();
         path = basePath + path;
-        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+        return get(requestId, eventExecutor, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path),
+                   responseHandler, deadline);
+    }
+
+    /**
+     * Same as {@link #get(String, EventExecutor, String, GenericFutureListener, Deadline)} for an already created
+     * request, eg: from a {@link BackendRequestTemplate}, whose uri has the context path. The uri is only read if a log
+     * needs it.
+     */
+    protected Future<FullHttpResponse> get(String requestId, EventExecutor eventExecutor, FullHttpRequest request,
+                                           final GenericFutureListener<Future<FullHttpResponse>> responseHandler,
+                                           @Nullable Deadline deadline) {
+        Preconditions.checkNotNull(eventExecutor, "Event executor can not be null");
+
+        if (null != deadline && deadline.isExpired()) {
+            String path = request.uri();
+            EventLogger.log(requestId, "backend-request-deadline-exceeded " + path);
+            return failedFuture(eventExecutor, new DeadlineExceededException("backend-request " + path),
+                                responseHandler);
+        }
+
+        String dependencyName = null;
+        if (null != dependencyGuards || null != backendLimiters) {
+            dependencyName = BackendRequestTemplate.getDependencyName(request);
+        }
+
+        DependencyGuard dependencyGuard = null;
+        if (null != dependencyGuards) {
+            dependencyGuard = dependencyGuards.get(dependencyName);
+            try {
+                dependencyGuard.enter();
+            } catch (DependencyUnavailableException e) {
+                EventLogger.log(requestId, "backend-request-short-circuited " + request.uri());
+                return failedFuture(eventExecutor, e, responseHandler);
+            }
+        }
+
+        AdaptiveConcurrencyLimiter backendLimiter = null;
+        if (null != backendLimiters) {
+            backendLimiter = backendLimiters.get(dependencyName);
+            if (!backendLimiter.tryAcquire()) {
+                String path = request.uri();
+                EventLogger.log(requestId, "backend-request-rejected " + path);
+                if (null != dependencyGuard) {
+                    dependencyGuard.onIgnore();
+                }
+                return failedFuture(eventExecutor,
+                                    new ConcurrencyLimitExceededException("backend-request " + path,
+                                                                          backendLimiter.getLimit()),
+                                    responseHandler);
+            }
+        }
+        final long startNanos = System.nanoTime();
+
+        if (null != deadline && PropertyNames.RequestDeadlinePropagate.getValueAsBoolean()) {
+            request.headers().set(Deadline.HEADER_NAME, deadline.toHeaderValue());
+        }
+
+        // The log messages and the listener are only created if a log is enabled, as this runs for every backend call.
+        LogListener logListener = null;
+        if (EventLogger.isEnabled() || PerformanceLogger.isEnabled()) {
+            String path = request.uri();
+            String perfLogName = "backend-request " + path;
+            PerformanceLogger perfLog = PerformanceLogger.instance();
+            perfLog.start(requestId, perfLogName);
+            EventLogger.log(requestId, "backend-request-submit " + path);
+            logListener = new LogListener(requestId, "backend-request-end " + path, perfLog, perfLogName);
+        }
+
+        Future<FullHttpResponse> responseFuture = httpClient.execute(eventExecutor, request);
+        if (null != deadline) {
+            cancelOnDeadline(eventExecutor, responseFuture, deadline);
+        }
+        if (null != backendLimiter) {
+            responseFuture.addListener(new LimiterReleaseListener(backendLimiter, startNanos));
+        }
+        if (null != dependencyGuard) {
+            responseFuture.addListener(new GuardReleaseListener(dependencyGuard));
+        }
+        if (null != logListener) {
+            responseFuture.addListener(logListener);
+        }
+        return responseFuture.addListener(responseHandler);
 
-        final String perfLogName = "backend-request " + path;
-        final PerformanceLogger perfLog = PerformanceLogger.instance();
-        perfLog.start(requestId, perfLogName);
+    }
 
-        EventLogger.log(requestId, "backend-request-submit " + path);
-        return httpClient.execute(eventExecutor, request)
-            .addListener(new LogListener(requestId, "backend-request-end " + path, perfLog, perfLogName))
-            .addListener(responseHandler);
+    private static Future<FullHttpResponse> failedFuture(EventExecutor eventExecutor, Throwable cause,
+                                                        GenericFutureListener<Future<FullHttpResponse>> responseHandler) {
+        return eventExecutor.<FullHttpResponse>newFailedFuture(cause).addListener(responseHandler);
+    }
 
+    private static void cancelOnDeadline(EventExecutor eventExecutor, final Future<FullHttpResponse> responseFuture,
+                                         Deadline deadline) {
+        final ScheduledFuture<?> cancelTimer = eventExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                responseFuture.cancel(false);
+            }
+        }, deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        responseFuture.addListener(new GenericFutureListener<Future<FullHttpResponse>>() {
+            @Override
+            public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+                cancelTimer.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Counts a response sent for a request of this test case. Called for every request from all the server event loops,
+     * so the counters are striped.
+     */
+    public void onResponseSent(int statusCode) {
+        int statusClass = Math.max(1, Math.min(statusCode / 100, STATUS_CLASSES.length)) - 1;
+        responsesByStatusClass[statusClass].increment();
+    }
+
+    public void onResponseSendFailed() {
+        sendFailedCount.increment();
     }
 
     public void populateStatus(StatusRetriever.Status statusToPopulate) {
         StatusRetriever.TestCaseStatus testCaseStatus = new StatusRetriever.TestCaseStatus();
         httpClient.populateStatus(testCaseStatus);
-        ServerHandler.populateStatus(testCaseStatus);
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            long count = responsesByStatusClass[i].sum();
+            if (count > 0) {
+                testCaseStatus.addResponseCount(STATUS_CLASSES[i], count);
+            }
+        }
+        testCaseStatus.setSendFailedCount(sendFailedCount.sum());
         testCaseStatus.setInflightTests(inflightTests.get());
         testCaseStatus.setRequestRecvCount(requestRecvCount.get());
         testCaseStatus.setTestWithErrors(testWithErrors.get());
+        if (null != backendLimiters) {
+            for (AdaptiveConcurrencyLimiter limiter : backendLimiters.getAll()) {
+                testCaseStatus.addBackendLimiterStatus(limiter.getName(), limiter.getStatus());
+            }
+        }
+        if (null != dependencyGuards) {
+            for (DependencyGuard guard : dependencyGuards.getAll()) {
+                testCaseStatus.addDependencyStatus(guard.getName(), guard.getStatus());
+            }
+        }
         statusToPopulate.addTestStatus(testCaseName, testCaseStatus);
     }
 
-    public void populateTrace(StringBuilder traceBuilder) {
-        httpClient.populateTrace(traceBuilder);
+    public long getInflightTests() {
+        return inflightTests.get();
+    }
+
+    public void populateMetrics(MetricsRetriever.TestCaseMetrics metrics) {
+        metrics.setRequestLatencies(requestLatencies);
+        clientFactory.populateMetrics(metrics);
+    }
+
+    /**
+     * Releases the {@link AdaptiveConcurrencyLimiter} slot of a backend call. Only successful calls are used as round
+     * trip time samples, timeouts and overload responses are reported as drops.
+     */
+    private static final class LimiterReleaseListener implements GenericFutureListener<Future<FullHttpResponse>> {
+
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final long startNanos;
+
+        private LimiterReleaseListener(AdaptiveConcurrencyLimiter limiter, long startNanos) {
+            this.limiter = limiter;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+            if (future.isSuccess()) {
+                limiter.onResponse(startNanos, future.getNow().status().code());
+            } else {
+                Throwable cause = future.cause();
+                if (future.isCancelled() || cause instanceof ReadTimeoutException
+                    || cause instanceof PoolExhaustedException) {
+                    limiter.onDropped();
+                } else {
+                    limiter.onIgnore();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the outcome of a backend call to its {@link DependencyGuard}. Server errors, timeouts and connection
+     * failures count against the dependency, client errors and local pool exhaustion do not.
+     */
+    private static final class GuardReleaseListener implements GenericFutureListener<Future<FullHttpResponse>> {
+
+        private final DependencyGuard guard;
+
+        private GuardReleaseListener(DependencyGuard guard) {
+            this.guard = guard;
+        }
+
+        @Override
+        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+            if (future.isSuccess()) {
+                int statusCode = future.getNow().status().code();
+                if (statusCode < 400) {
+                    guard.onSuccess();
+                } else if (statusCode >= 500) {
+                    guard.onFailure();
+                } else {
+                    guard.onIgnore();
+                }
+            } else if (future.cause() instanceof PoolExhaustedException) {
+                guard.onIgnore();
+            } else {
+                guard.onFailure();
+            }
+        }
     }
 
     // hack listener to do Event and Performance logging after a backend request finishes
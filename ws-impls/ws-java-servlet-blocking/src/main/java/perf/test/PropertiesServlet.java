@@ -0,0 +1,52 @@
+package perf.test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sets the properties passed as request parameters, ignoring unknown property names, and reloads all the properties,
+ * so that the values read on every request change. The values read once, eg: the client connection pool sizes, do not
+ * change. <br/>
+ * eg: /properties?perf.test.request.deadline.ms=500
+ */
+public class PropertiesServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        StringBuilder result = new StringBuilder();
+        Map<String, String[]> parameters = request.getParameterMap();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            if (isPropertyName(parameter.getKey()) && parameter.getValue().length > 0) {
+                String value = parameter.getValue()[parameter.getValue().length - 1];
+                System.setProperty(parameter.getKey(), value);
+                result.append(parameter.getKey()).append('=').append(value).append('\n');
+            }
+        }
+        PropertyNames.reload();
+        perf.test.utils.PropertyNames.reload();
+        result.append("Properties reloaded.\n");
+        log(result.toString());
+
+        response.setContentType("text/plain");
+        response.getWriter().write(result.toString());
+    }
+
+    private static boolean isPropertyName(String name) {
+        for (PropertyNames property : PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        for (perf.test.utils.PropertyNames property : perf.test.utils.PropertyNames.values()) {
+            if (property.getPropertyName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
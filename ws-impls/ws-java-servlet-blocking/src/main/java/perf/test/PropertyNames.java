@@ -3,7 +3,9 @@ package perf.test;
 /**
  * All the properties used by netty module. The property values are obtained as {@link System#getProperty(String, String)} for
  * the property name specified by {@link perf.test.PropertyNames#getPropertyName()} with a default value as specified
- * by {@link perf.test.PropertyNames#getDefaultVal()}
+ * by {@link perf.test.PropertyNames#getDefaultVal()}. <br/>
+ * The values are read on their first use and cached, as they are read on every request; {@link #reload()} reads them
+ * again.
  *
  * @author Nitesh Kant (nkant@netflix.com)
  */
@@ -14,16 +16,43 @@ public enum PropertyNames {
     ClientConnectionRequestTimeout("client.connection-request.timeout", "1010"),
     ClientMaxConnectionsTotal("client.max-connections-total", "1000"),
 
+    BackendLimiterEnable("perf.test.backend.limiter.enable", "false"),
+    BackendLimiterInitialLimit("perf.test.backend.limiter.initial", "20"),
+    BackendLimiterMinLimit("perf.test.backend.limiter.min", "1"),
+    BackendLimiterMaxLimit("perf.test.backend.limiter.max", "1000"),
+
+    BackendIsolationEnable("perf.test.backend.isolation.enable", "false"), // Bulkhead & circuit breaker per call type.
+    BackendBulkheadMaxConcurrent("perf.test.backend.bulkhead.max.concurrent", "400"),
+    BackendBreakerErrorPercent("perf.test.backend.breaker.error.percent", "50"),
+    BackendBreakerMinRequests("perf.test.backend.breaker.min.requests", "20"),
+    BackendBreakerWindowMs("perf.test.backend.breaker.window.ms", "10000"),
+    BackendBreakerSleepWindowMs("perf.test.backend.breaker.sleep.window.ms", "5000"),
+
+    RequestDeadlineMs("perf.test.request.deadline.ms", "0"), // 0 means no deadline for the top level requests.
+    RequestDeadlinePropagate("perf.test.request.deadline.propagate", "false"), // Send remaining budget to the backend.
+
     BackendRequestThreadPoolSize("backend-request.max-thread-pool-size", "2000");
 
-    private String propertyName;
-    private String defaultVal;
+    private final String propertyName;
+    private final String defaultVal;
+    private volatile Value value; // Read on the first use, null after a reload.
 
     PropertyNames(String propertyName, String defaultVal) {
         this.propertyName = propertyName;
         this.defaultVal = defaultVal;
     }
 
+    /**
+     * Reads all the properties again on their next use, eg: after they were changed with
+     * {@link System#setProperty(String, String)}. Components that read a property once, eg: on startup, keep their
+     * value.
+     */
+    public static void reload() {
+        for (PropertyNames property : values()) {
+            property.value = null;
+        }
+    }
+
     public String getDefaultVal() {
         return defaultVal;
     }
@@ -33,15 +62,54 @@ public enum PropertyNames {
     }
 
     public boolean getValueAsBoolean() {
-        return Boolean.getBoolean(propertyName);
+        return getValue().booleanValue;
     }
 
     public int getValueAsInt() {
-        String property = System.getProperty(propertyName, defaultVal);
-        return Integer.parseInt(property);
+        Value value = getValue();
+        if (!value.isInt) {
+            return Integer.parseInt(value.stringValue); // Throws the same error as on every call before caching.
+        }
+        return value.intValue;
     }
 
     public String getValueAsString() {
-        return System.getProperty(propertyName, defaultVal);
+        return getValue().stringValue;
+    }
+
+    private Value getValue() {
+        Value value = this.value;
+        if (null == value) {
+            // As Boolean.getBoolean(), the default value is not used for a boolean.
+            value = new Value(System.getProperty(propertyName, defaultVal), Boolean.getBoolean(propertyName));
+            this.value = value; // Concurrent first reads may all read the property, with the same result.
+        }
+        return value;
+    }
+
+    /**
+     * The value of a property in all its forms, parsed once.
+     */
+    private static final class Value {
+
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final boolean isInt;
+        private final int intValue;
+
+        private Value(String stringValue, boolean booleanValue) {
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            int parsed = 0;
+            boolean parsedInt = false;
+            try {
+                parsed = Integer.parseInt(stringValue);
+                parsedInt = true;
+            } catch (NumberFormatException e) {
+                // Not an int property, the error is thrown by getValueAsInt().
+            }
+            isInt = parsedInt;
+            intValue = parsed;
+        }
     }
 }
@@ -5,12 +5,19 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.codehaus.jackson.JsonFactory;
 import perf.test.utils.BackendMockHostSelector;
+import perf.test.utils.AdaptiveConcurrencyLimiter;
 import perf.test.utils.BackendResponse;
+import perf.test.utils.ConcurrencyLimitExceededException;
+import perf.test.utils.Deadline;
+import perf.test.utils.DeadlineExceededException;
+import perf.test.utils.DependencyGuard;
+import perf.test.utils.DependencyUnavailableException;
 import perf.test.utils.EventLogger;
 import perf.test.utils.PerformanceLogger;
 import perf.test.utils.ServiceResponseBuilder;
@@ -21,12 +28,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Servlet implementation class TestServlet
@@ -37,6 +48,9 @@ public class TestCaseAServlet extends HttpServlet {
     private final static JsonFactory jsonFactory = new JsonFactory();
 
     private final HttpClient client;
+    private final RequestConfig defaultRequestConfig;
+    private final AdaptiveConcurrencyLimiter.Registry backendLimiters; // null if the limiter is disabled.
+    private final DependencyGuard.Registry dependencyGuards; // null if isolation is disabled.
 
     // used for parallel execution of requests
     private final ThreadPoolExecutor executor;
@@ -77,6 +91,7 @@ public class TestCaseAServlet extends HttpServlet {
             .setSocketTimeout(PropertyNames.ClientSocketTimeout.getValueAsInt())
             .setConnectionRequestTimeout(PropertyNames.ClientConnectionRequestTimeout.getValueAsInt())
             .build();
+        defaultRequestConfig = reqConfig;
 
         // don't care about total vs. per-route right now, will set them to the same
         final PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager();
@@ -88,6 +103,26 @@ public class TestCaseAServlet extends HttpServlet {
             .setConnectionManager(connMgr)
             .build();
 
+        if (PropertyNames.BackendLimiterEnable.getValueAsBoolean()) {
+            backendLimiters = new AdaptiveConcurrencyLimiter.Registry(
+                    PropertyNames.BackendLimiterInitialLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMinLimit.getValueAsInt(),
+                    PropertyNames.BackendLimiterMaxLimit.getValueAsInt());
+        } else {
+            backendLimiters = null;
+        }
+
+        if (PropertyNames.BackendIsolationEnable.getValueAsBoolean()) {
+            dependencyGuards = new DependencyGuard.Registry(new DependencyGuard.Config(
+                    PropertyNames.BackendBulkheadMaxConcurrent.getValueAsInt(),
+                    PropertyNames.BackendBreakerErrorPercent.getValueAsInt(),
+                    PropertyNames.BackendBreakerMinRequests.getValueAsInt(),
+                    PropertyNames.BackendBreakerWindowMs.getValueAsInt(),
+                    PropertyNames.BackendBreakerSleepWindowMs.getValueAsInt()));
+        } else {
+            dependencyGuards = null;
+        }
+
         // used for parallel execution
         final int backendRequestThreadPoolSize = PropertyNames.BackendRequestThreadPoolSize.getValueAsInt();
 
@@ -116,11 +151,16 @@ public class TestCaseAServlet extends HttpServlet {
             }
             final long id = Long.parseLong(String.valueOf(_id));
 
+            final int deadlineMs = PropertyNames.RequestDeadlineMs.getValueAsInt();
+            final Deadline deadline = deadlineMs > 0
+                                      ? Deadline.fromHeader(request.getHeader(Deadline.HEADER_NAME), deadlineMs)
+                                      : null;
+
             try {
 
                 /* First 2 requests (A, B) in parallel */
-                final Future<String> aResponse = queueGet(requestId, "/mock.json?type=A&numItems=2&itemSize=50&delay=50&id=" + id);
-                final Future<String> bResponse = queueGet(requestId, "/mock.json?type=B&numItems=25&itemSize=30&delay=150&id=" + id);
+                final Future<String> aResponse = queueGet(requestId, "/mock.json?type=A&numItems=2&itemSize=50&delay=50&id=" + id, deadline);
+                final Future<String> bResponse = queueGet(requestId, "/mock.json?type=B&numItems=25&itemSize=30&delay=150&id=" + id, deadline);
 
                 /* When response A received perform C & D */
                 // spawned in another thread so we don't block the ability to B/E to proceed in parallel
@@ -128,20 +168,20 @@ public class TestCaseAServlet extends HttpServlet {
 
                     @Override
                     public BackendResponse[] call() throws Exception {
-                        String aValue = aResponse.get();
+                        String aValue = await(aResponse, deadline);
                         BackendResponse aResponse = BackendResponse.fromJson(jsonFactory, aValue);
-                        final Future<String> cResponse = queueGet(requestId, "/mock.json?type=C&numItems=1&itemSize=5000&delay=80&id=" + aResponse.getResponseKey());
-                        final Future<String> dResponse = queueGet(requestId, "/mock.json?type=D&numItems=1&itemSize=1000&delay=1&id=" + aResponse.getResponseKey());
-                        return new BackendResponse[] { aResponse, BackendResponse.fromJson(jsonFactory, cResponse.get()),
-                                BackendResponse.fromJson(jsonFactory, dResponse.get()) };
+                        final Future<String> cResponse = queueGet(requestId, "/mock.json?type=C&numItems=1&itemSize=5000&delay=80&id=" + aResponse.getResponseKey(), deadline);
+                        final Future<String> dResponse = queueGet(requestId, "/mock.json?type=D&numItems=1&itemSize=1000&delay=1&id=" + aResponse.getResponseKey(), deadline);
+                        return new BackendResponse[] { aResponse, BackendResponse.fromJson(jsonFactory, await(cResponse, deadline)),
+                                BackendResponse.fromJson(jsonFactory, await(dResponse, deadline)) };
                     }
 
                 });
 
                 /* When response B is received perform E */
-                String bValue = bResponse.get();
+                String bValue = await(bResponse, deadline);
                 BackendResponse b = BackendResponse.fromJson(jsonFactory, bValue);
-                String eValue = get(requestId, "/mock.json?type=E&numItems=100&itemSize=30&delay=40&id=" + b.getResponseKey());
+                String eValue = get(requestId, "/mock.json?type=E&numItems=100&itemSize=30&delay=40&id=" + b.getResponseKey(), deadline);
 
                 BackendResponse e = BackendResponse.fromJson(jsonFactory, eValue);
 
@@ -150,9 +190,10 @@ public class TestCaseAServlet extends HttpServlet {
                  * 
                  * This simulates what real web-services do most of the time.
                  */
-                BackendResponse a = aGroupResponses.get()[0];
-                BackendResponse c = aGroupResponses.get()[1];
-                BackendResponse d = aGroupResponses.get()[2];
+                BackendResponse[] aGroup = await(aGroupResponses, deadline);
+                BackendResponse a = aGroup[0];
+                BackendResponse c = aGroup[1];
+                BackendResponse d = aGroup[2];
 
                 EventLogger.log(requestId, "build-response-start");
                 ByteArrayOutputStream bos = ServiceResponseBuilder.buildTestAResponse(jsonFactory, a, b, c, d, e);
@@ -164,7 +205,13 @@ public class TestCaseAServlet extends HttpServlet {
                 EventLogger.log(requestId, "flush-response-end");
             } catch (Exception e) {
                 // error that needs to be returned
-                response.setStatus(500);
+                if (Deadline.isDeadlineExceeded(e)) {
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                } else if (isConcurrencyLimitExceeded(e) || isDependencyUnavailable(e)) {
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                } else {
+                    response.setStatus(500);
+                }
                 response.getWriter().println("Error: " + e.getMessage());
                 e.printStackTrace();
             }
@@ -176,22 +223,134 @@ public class TestCaseAServlet extends HttpServlet {
         }
     }
 
-    public Future<String> queueGet(final String requestId, final String url) {
-        final Future<String> f = executor.submit(new Callable<String>() {
+    /**
+     * Queues a backend call on the executor. The call enters its {@link DependencyGuard} before it is queued, so that a
+     * call to an unavailable dependency fails without waiting in the queue.
+     */
+    /**
+     * Queues a backend call on the executor. The call enters its {@link DependencyGuard} before it is queued, so that a
+     * call to an unavailable dependency fails without waiting in the queue.
+     */
+    public Future<String> queueGet(final String requestId, final String url, final Deadline deadline) {
+        final DependencyGuard dependencyGuard = enterDependencyGuard(url);
+        final QueuedGet f = new QueuedGet(this, requestId, url, deadline, dependencyGuard, new AtomicBoolean());
+        try {
+            executor.execute(f);
+        } catch (RuntimeException e) {
+            f.cancel(false); // Releases the guard.
+            throw e;
+        }
 
-            @Override
-            public String call() throws Exception {
-                return get(requestId, url);
+        EventLogger.log(requestId, "backend-request-submit " + url);
+        return f;
+    }
+
+    /**
+     * Enters the guard of the dependency called by the passed url, if the dependencies are isolated.
+     *
+     * @return The entered guard, null if the dependencies are not isolated.
+     * @throws DependencyUnavailableException If the circuit is open or the bulkhead is full.
+     */
+    private DependencyGuard enterDependencyGuard(String url) {
+        if (null == dependencyGuards) {
+            return null;
+        }
+        DependencyGuard dependencyGuard = dependencyGuards.get(DependencyGuard.dependencyName(url, url));
+        dependencyGuard.enter(); // Fails fast with an open circuit or a full bulkhead.
+        return dependencyGuard;
+    }
+
+    /**
+     * A queued backend call. Its guard is released by the call or, if the call is cancelled before it runs, eg: when
+     * the deadline expires while it waits in the queue, on cancellation.
+     */
+    private static final class QueuedGet extends FutureTask<String> {
+
+        private final DependencyGuard dependencyGuard; // null if the dependencies are not isolated.
+        private final AtomicBoolean claimed; // Set by whoever releases the guard: the call or the cancellation.
+
+        private QueuedGet(final TestCaseAServlet servlet, final String requestId, final String url,
+                          final Deadline deadline, final DependencyGuard dependencyGuard, final AtomicBoolean claimed) {
+            super(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null; // Cancelled, the guard is already released.
+                    }
+                    return servlet.get(requestId, url, deadline, dependencyGuard);
+                }
+            });
+            this.dependencyGuard = dependencyGuard;
+            this.claimed = claimed;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && claimed.compareAndSet(false, true) && null != dependencyGuard) {
+                dependencyGuard.onIgnore();
+            }
+        }
+    }
+
+    /**
+     * Waits for the passed future at most till the deadline expires, if there is one. The future is cancelled on expiry.
+     */
+    private static <T> T await(Future<T> future, Deadline deadline) throws Exception {
+        if (null == deadline) {
+            return future.get();
+        }
+        try {
+            return future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new DeadlineExceededException("waiting for backend response");
+        }
+    }
+
+    private static boolean isConcurrencyLimitExceeded(Throwable throwable) {
+        for (Throwable cause = throwable; null != cause; cause = cause.getCause()) {
+            if (cause instanceof ConcurrencyLimitExceededException) {
+                return true;
             }
+        }
+        return false;
+    }
 
-        });
+    private static boolean isDependencyUnavailable(Throwable throwable) {
+        for (Throwable cause = throwable; null != cause; cause = cause.getCause()) {
+            if (cause instanceof DependencyUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        EventLogger.log(requestId, "backend-request-submit " + url);
-        return f;
+    public String get(String requestId, String url, Deadline deadline) {
+        return get(requestId, url, deadline, enterDependencyGuard(url));
     }
 
-    public String get(String requestId, String url) {
+    /**
+     * Calls the backend, for a call that already entered the passed guard. The guard is released before returning.
+     */
+    private String get(String requestId, String url, Deadline deadline, DependencyGuard dependencyGuard) {
         String uri = BackendMockHostSelector.getRandomBackendPathPrefix() + url;
+        if (null != deadline && deadline.isExpired()) {
+            if (null != dependencyGuard) {
+                dependencyGuard.onIgnore();
+            }
+            throw new DeadlineExceededException("backend-request " + uri);
+        }
+        AdaptiveConcurrencyLimiter backendLimiter =
+                null == backendLimiters ? null : backendLimiters.get(DependencyGuard.dependencyName(url, url));
+        if (null != backendLimiter && !backendLimiter.tryAcquire()) {
+            if (null != dependencyGuard) {
+                dependencyGuard.onIgnore();
+            }
+            throw new ConcurrencyLimitExceededException("backend-request " + uri, backendLimiter.getLimit());
+        }
+        final long startNanos = System.nanoTime();
+        int statusCode = -1;
+        Exception failure = null;
 
         final PerformanceLogger perfLogger = PerformanceLogger.instance();
         final String perfKey = "backend-request " + uri;
@@ -199,10 +358,22 @@ public class TestCaseAServlet extends HttpServlet {
         EventLogger.log(requestId, "backend-request-start " + uri);
 
         HttpGet httpGet = new HttpGet(uri);
+        if (null != deadline) {
+            // No single read or pool wait may outlast the remaining budget.
+            int remaining = (int) Math.max(1, deadline.getRemainingMillis());
+            httpGet.setConfig(RequestConfig.copy(defaultRequestConfig)
+                                           .setSocketTimeout(Math.min(remaining, defaultRequestConfig.getSocketTimeout()))
+                                           .setConnectionRequestTimeout(Math.min(remaining, defaultRequestConfig.getConnectionRequestTimeout()))
+                                           .build());
+            if (PropertyNames.RequestDeadlinePropagate.getValueAsBoolean()) {
+                httpGet.setHeader(Deadline.HEADER_NAME, deadline.toHeaderValue());
+            }
+        }
         try {
             HttpResponse response = this.client.execute(httpGet);
+            statusCode = response.getStatusLine().getStatusCode();
 
-            if (response.getStatusLine().getStatusCode() != 200) {
+            if (statusCode != 200) {
                 throw new RuntimeException("Failure: " + response.getStatusLine());
             }
 
@@ -216,8 +387,31 @@ public class TestCaseAServlet extends HttpServlet {
 
             return data;
         } catch (Exception e) {
+            failure = e;
+            if (null != deadline && deadline.isExpired()) {
+                throw new DeadlineExceededException("backend-request " + uri);
+            }
             throw new RuntimeException("Failure retrieving: " + uri, e);
         } finally {
+            if (null != dependencyGuard) {
+                if (statusCode >= 500 || (null != failure && statusCode < 400)) {
+                    dependencyGuard.onFailure();
+                } else if (statusCode > 0 && statusCode < 400) {
+                    dependencyGuard.onSuccess();
+                } else {
+                    dependencyGuard.onIgnore();
+                }
+            }
+            if (null != backendLimiter) {
+                if (statusCode > 0 && (statusCode != 200 || null == failure)) {
+                    backendLimiter.onResponse(startNanos, statusCode);
+                } else if (failure instanceof SocketTimeoutException
+                           || failure instanceof ConnectionPoolTimeoutException) {
+                    backendLimiter.onDropped();
+                } else {
+                    backendLimiter.onIgnore();
+                }
+            }
             httpGet.releaseConnection();
             perfLogger.stop(requestId, perfKey);
             EventLogger.log(requestId, "backend-request-end " + uri);